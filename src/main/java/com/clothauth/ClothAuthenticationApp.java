@@ -1,39 +1,526 @@
 package com.clothauth;
 
+import com.clothauth.batch.BatchIngestor;
+import com.clothauth.batch.IngestSummary;
 import com.clothauth.extractor.ClothFeatureExtractor;
+import com.clothauth.extractor.ExtractionCache;
+import com.clothauth.index.FeatureMatrixIndex;
+import com.clothauth.index.HistogramAnnIndex;
+import com.clothauth.index.ImageDigestIndex;
+import com.clothauth.index.IndexHit;
+import com.clothauth.index.LshIndex;
+import com.clothauth.matching.ClothIdentifier;
+import com.clothauth.matching.MatchResult;
+import com.clothauth.matching.SimilarityScorer;
 import com.clothauth.model.ClothFeatures;
 import com.clothauth.model.ClothIdentity;
+import com.clothauth.model.CompactClothFeatures;
 import com.clothauth.security.HashGenerator;
+import com.clothauth.service.ClothRegistrationService;
+import com.clothauth.service.RegistrationResult;
+import com.clothauth.storage.ClothRecord;
+import com.clothauth.storage.ClothStore;
+import com.clothauth.storage.JsonDirectoryStore;
 import com.clothauth.storage.LocalStorageManager;
+import com.clothauth.storage.RegistryArchive;
+import com.clothauth.storage.StorageFormatBenchmark;
+import com.clothauth.utils.LbpBenchmark;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Scanner;
-import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 public class ClothAuthenticationApp {
     private static final Logger logger = LoggerFactory.getLogger(ClothAuthenticationApp.class);
+    private static final String PARALLEL_EXTRACTION_PROPERTY = "clothauth.extraction.parallel";
+    private static final int IDENTIFY_TOP_K = 5;
+    private static final int LIST_PAGE_SIZE = Integer.getInteger("clothauth.list.pageSize", 20);
+    private static final String FEATURE_SNAPSHOT_FILE = "data/index/features.map";
     
     private final ClothFeatureExtractor featureExtractor;
     private final LocalStorageManager storageManager;
+    private final ClothRegistrationService registrationService;
+    private final ImageDigestIndex digestIndex;
+    private final FeatureMatrixIndex featureIndex;
+    private final HistogramAnnIndex histogramIndex;
+    private final LshIndex lshIndex;
+    private final ClothIdentifier clothIdentifier;
     private final Scanner scanner;
     
     public ClothAuthenticationApp() {
-        this.featureExtractor = new ClothFeatureExtractor();
+        // Run the extraction stages of an image concurrently when enabled; results are cached by image content
+        ExtractionCache extractionCache = ExtractionCache.fromSystemProperties();
+        this.featureExtractor = Boolean.getBoolean(PARALLEL_EXTRACTION_PROPERTY)
+            ? ClothFeatureExtractor.parallel(extractionCache)
+            : new ClothFeatureExtractor(null, extractionCache);
         this.storageManager = new LocalStorageManager();
+        this.digestIndex = new ImageDigestIndex(storageManager);
+        this.registrationService = new ClothRegistrationService(featureExtractor, storageManager, digestIndex);
+        
+        // Load the in-memory feature index up front so scans never touch the feature files
+        this.featureIndex = new FeatureMatrixIndex(storageManager, Paths.get(FEATURE_SNAPSHOT_FILE));
+        this.featureIndex.load();
+        this.clothIdentifier = new ClothIdentifier(featureIndex);
+        
+        // Approximate colour search; loads the saved graph and catches up with the store
+        this.histogramIndex = new HistogramAnnIndex(storageManager);
+        
+        // Near-duplicate candidates from the SimHash signatures on the identities
+        this.lshIndex = new LshIndex(storageManager);
         this.scanner = new Scanner(System.in);
     }
     
     public static void main(String[] args) {
         logger.info("Starting Cloth Authentication System");
         
+        // Non-interactive commands
+        if (args.length > 0) {
+            System.exit(runCommand(args));
+        }
+        
         ClothAuthenticationApp app = new ClothAuthenticationApp();
         app.run();
     }
     
+    private static int runCommand(String[] args) {
+        switch (args[0]) {
+            case "ingest":
+                return runIngestCommand(args);
+            case "convert-store":
+                return runConvertStoreCommand(args);
+            case "migrate-json-layout":
+                return runMigrateJsonLayoutCommand();
+            case "storage-benchmark":
+                return runStorageBenchmarkCommand(args);
+            case "lbp-benchmark":
+                return runLbpBenchmarkCommand(args);
+            case "archive":
+                return runArchiveCommand(args);
+            case "reextract":
+                return runReextractCommand(args);
+            case "export":
+                return runExportCommand(args);
+            case "import":
+                return runImportCommand(args);
+            default:
+                System.out.println("Unknown command: " + args[0]);
+                printUsage();
+                return 1;
+        }
+    }
+    
+    private static void printUsage() {
+        System.out.println("Usage:");
+        System.out.println("  (no arguments)                                  interactive menu");
+        System.out.println("  ingest <dir> [--threads N] [--summary <file>]   register every image in a directory");
+        System.out.println("  convert-store <from> <to>                       copy all cloths between storage backends (json, segment)");
+        System.out.println("  migrate-json-layout                             move the json store to the sharded directory layout");
+        System.out.println("  storage-benchmark [--sample N] [--rounds N]     compare the json store formats on stored cloths");
+        System.out.println("  lbp-benchmark [--rounds N] [--scale N] [image...]");
+        System.out.println("                                                  time the LBP operator against the old loop and compare");
+        System.out.println("                                                  their codes (default: the images in data/images)");
+        System.out.println("  archive [--older-than-days N]                   move cloths older than N days (default 30) to the cold archive");
+        System.out.println("  reextract <cloth id> <image>                    extract a registered cloth again, keeping its ID");
+        System.out.println("  export <file>                                   write every stored cloth to one archive file");
+        System.out.println("  import <file> [--threads N] [--restart]         store every cloth of an exported archive, resuming by default");
+    }
+    
+    private static int runIngestCommand(String[] args) {
+        if (args.length < 2) {
+            printUsage();
+            return 1;
+        }
+        
+        Path directory = Paths.get(args[1]);
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path summaryFile = null;
+        
+        try {
+            for (int i = 2; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--summary":
+                        summaryFile = Paths.get(args[++i]);
+                        break;
+                    default:
+                        System.out.println("Unknown option: " + args[i]);
+                        printUsage();
+                        return 1;
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid arguments: " + e.getMessage());
+            printUsage();
+            return 1;
+        }
+        
+        if (summaryFile == null) {
+            summaryFile = Paths.get(BatchIngestor.DEFAULT_SUMMARY_DIR, "ingest-" + System.currentTimeMillis() + ".json");
+        }
+        
+        // Images are processed one per thread, so each extraction runs sequentially
+        LocalStorageManager storageManager = new LocalStorageManager();
+        ExtractionCache extractionCache = ExtractionCache.fromSystemProperties();
+        ImageDigestIndex digestIndex = new ImageDigestIndex(storageManager);
+        ClothRegistrationService registrationService = new ClothRegistrationService(
+            new ClothFeatureExtractor(null, extractionCache), storageManager, digestIndex);
+        HistogramAnnIndex histogramIndex = new HistogramAnnIndex(storageManager);
+        LshIndex lshIndex = new LshIndex(storageManager);
+        
+        try {
+            IngestSummary summary = new BatchIngestor(registrationService, threads).ingest(directory, summaryFile);
+            return summary.getFailed() == 0 ? 0 : 2;
+        } catch (Exception e) {
+            logger.error("Batch ingest failed: {}", e.getMessage(), e);
+            System.out.println("Batch ingest failed: " + e.getMessage());
+            return 1;
+        } finally {
+            if (extractionCache != null) {
+                System.out.println("Extraction cache: " + extractionCache);
+            }
+            System.out.println("Group commit: " + storageManager.getGroupCommitStats());
+            histogramIndex.save();
+            digestIndex.save();
+            lshIndex.save();
+            storageManager.close();
+        }
+    }
+    
+    private static int runConvertStoreCommand(String[] args) {
+        if (args.length != 3) {
+            printUsage();
+            return 1;
+        }
+        
+        long start = System.currentTimeMillis();
+        int copied = 0;
+        try (ClothStore source = LocalStorageManager.openStore(args[1]);
+             ClothStore target = LocalStorageManager.openStore(args[2])) {
+            for (String clothId : source.listClothIds()) {
+                ClothFeatures features = source.loadFeatures(clothId);
+                ClothIdentity identity = source.loadIdentity(clothId);
+                if (features != null) {
+                    target.storeFeatures(clothId, features);
+                }
+                if (identity != null) {
+                    target.storeIdentity(clothId, identity);
+                }
+                copied++;
+            }
+        } catch (Exception e) {
+            logger.error("Store conversion failed after {} cloths: {}", copied, e.getMessage(), e);
+            System.out.println("Store conversion failed: " + e.getMessage());
+            return 1;
+        }
+        
+        System.out.printf("Copied %d cloths from %s to %s in %d ms\n", copied, args[1], args[2], System.currentTimeMillis() - start);
+        return 0;
+    }
+    
+    private static int runMigrateJsonLayoutCommand() {
+        long start = System.currentTimeMillis();
+        try {
+            int moved = LocalStorageManager.migrateJsonLayout();
+            System.out.printf("Moved %d files to the sharded layout in %d ms\n", moved, System.currentTimeMillis() - start);
+            return 0;
+        } catch (IOException e) {
+            logger.error("Layout migration failed: {}", e.getMessage(), e);
+            System.out.println("Layout migration failed: " + e.getMessage());
+            return 1;
+        }
+    }
+    
+    private static int runStorageBenchmarkCommand(String[] args) {
+        int sampleSize = 200;
+        int rounds = 5;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--sample":
+                        sampleSize = Integer.parseInt(args[++i]);
+                        break;
+                    case "--rounds":
+                        rounds = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    default:
+                        System.out.println("Unknown option: " + args[i]);
+                        printUsage();
+                        return 1;
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid arguments: " + e.getMessage());
+            printUsage();
+            return 1;
+        }
+        
+        List<ClothRecord> sample = new ArrayList<>();
+        String backend = System.getProperty("clothauth.storage.backend", JsonDirectoryStore.NAME);
+        try (ClothStore store = LocalStorageManager.openStore(backend)) {
+            for (String clothId : store.listClothIds(null, sampleSize)) {
+                ClothFeatures features = store.loadFeatures(clothId);
+                ClothIdentity identity = store.loadIdentity(clothId);
+                if (features != null && identity != null) {
+                    sample.add(new ClothRecord(clothId, features, identity));
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Could not load the sample: " + e.getMessage());
+            return 1;
+        }
+        if (sample.isEmpty()) {
+            System.out.println("No stored cloths to benchmark with.");
+            return 1;
+        }
+        
+        Path directory = null;
+        try {
+            directory = Files.createTempDirectory("clothauth-storage-benchmark");
+            List<StorageFormatBenchmark.Result> results = StorageFormatBenchmark.run(sample, directory, rounds);
+            long baseline = results.get(0).getBytesPerCloth();
+            System.out.printf("Storage formats on %d cloths, %d rounds (per cloth: features and identity files)\n", sample.size(), rounds);
+            System.out.printf("%-14s %12s %8s %12s %12s\n", "Format", "Bytes", "Size", "Write (us)", "Read (us)");
+            for (StorageFormatBenchmark.Result result : results) {
+                System.out.printf("%-14s %12d %7.0f%% %12.1f %12.1f\n", result.getName(), result.getBytesPerCloth(),
+                    100.0 * result.getBytesPerCloth() / baseline, result.getWriteMicros(), result.getReadMicros());
+            }
+            return 0;
+        } catch (IOException e) {
+            logger.error("Storage benchmark failed: {}", e.getMessage(), e);
+            System.out.println("Storage benchmark failed: " + e.getMessage());
+            return 1;
+        } finally {
+            if (directory != null) {
+                try {
+                    Files.deleteIfExists(directory);
+                } catch (IOException e) {
+                    logger.warn("Could not remove {}: {}", directory, e.getMessage());
+                }
+            }
+        }
+    }
+    
+    private static int runLbpBenchmarkCommand(String[] args) {
+        int rounds = 3;
+        int scale = 1;
+        List<String> images = new ArrayList<>();
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--rounds":
+                        rounds = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    case "--scale":
+                        scale = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    default:
+                        if (args[i].startsWith("--")) {
+                            System.out.println("Unknown option: " + args[i]);
+                            printUsage();
+                            return 1;
+                        }
+                        images.add(args[i]);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid arguments: " + e.getMessage());
+            printUsage();
+            return 1;
+        }
+        
+        if (images.isEmpty()) {
+            File[] samples = new File("data/images").listFiles(File::isFile);
+            if (samples != null) {
+                for (File sample : samples) {
+                    images.add(sample.getPath());
+                }
+                Collections.sort(images);
+            }
+        }
+        if (images.isEmpty()) {
+            System.out.println("No images to benchmark with.");
+            return 1;
+        }
+        
+        System.out.printf("LBP radius %d, %d neighbours, %d rounds at %dx scale\n",
+            ClothFeatureExtractor.LBP_RADIUS, ClothFeatureExtractor.LBP_NEIGHBORS, rounds, scale);
+        System.out.printf("%-40s %11s %12s %12s %8s %10s\n", "Image", "Size", "Legacy (ms)", "Bulk (ms)", "Speedup", "Differing");
+        long differing = 0;
+        for (String image : images) {
+            try {
+                LbpBenchmark.Result result = LbpBenchmark.run(image, scale, ClothFeatureExtractor.LBP_RADIUS, ClothFeatureExtractor.LBP_NEIGHBORS, rounds);
+                System.out.printf("%-40s %11s %12.1f %12.1f %7.1fx %10d\n", new File(image).getName(),
+                    result.getWidth() + "x" + result.getHeight(), result.getLegacyMillis(), result.getOperatorMillis(),
+                    result.getLegacyMillis() / result.getOperatorMillis(), result.getDifferingPixels());
+                differing += result.getDifferingPixels();
+            } catch (RuntimeException e) {
+                logger.error("LBP benchmark failed on {}: {}", image, e.getMessage(), e);
+                System.out.println("LBP benchmark failed on " + image + ": " + e.getMessage());
+                return 1;
+            }
+        }
+        System.out.println(differing == 0 ? "Codes are bit-identical." : "Codes differ in " + differing + " pixels.");
+        return differing == 0 ? 0 : 2;
+    }
+    
+    private static int runArchiveCommand(String[] args) {
+        long days = Long.getLong("clothauth.archive.maxAgeDays", 0);
+        if (days <= 0) {
+            days = 30;
+        }
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if ("--older-than-days".equals(args[i])) {
+                    days = Long.parseLong(args[++i]);
+                } else {
+                    System.out.println("Unknown option: " + args[i]);
+                    printUsage();
+                    return 1;
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid arguments: " + e.getMessage());
+            printUsage();
+            return 1;
+        }
+        
+        long start = System.currentTimeMillis();
+        LocalStorageManager storageManager = new LocalStorageManager();
+        try {
+            if (storageManager.getArchiveStats() == null) {
+                System.out.println("The cold archive is disabled (clothauth.archive.enabled=false).");
+                return 1;
+            }
+            int moved = storageManager.archiveColdCloths(TimeUnit.DAYS.toMillis(days));
+            System.out.printf("Moved %d cloths older than %d days to the cold archive in %d ms\n",
+                moved, days, System.currentTimeMillis() - start);
+            System.out.println("Cold archive: " + storageManager.getArchiveStats());
+            return 0;
+        } finally {
+            storageManager.close();
+        }
+    }
+    
+    private static int runReextractCommand(String[] args) {
+        if (args.length != 3) {
+            printUsage();
+            return 1;
+        }
+        if (!new File(args[2]).exists()) {
+            System.out.println("Error: Image file not found at path: " + args[2]);
+            return 1;
+        }
+        
+        LocalStorageManager storageManager = new LocalStorageManager();
+        HistogramAnnIndex histogramIndex = new HistogramAnnIndex(storageManager);
+        ImageDigestIndex digestIndex = new ImageDigestIndex(storageManager);
+        LshIndex lshIndex = new LshIndex(storageManager);
+        try {
+            ClothRegistrationService registrationService = new ClothRegistrationService(
+                new ClothFeatureExtractor(null, ExtractionCache.fromSystemProperties()), storageManager, digestIndex);
+            ClothIdentity identity = registrationService.reextract(args[1], args[2]);
+            if (identity == null) {
+                System.out.println("Cloth ID not found: " + args[1]);
+                return 1;
+            }
+            System.out.println("Re-extracted cloth " + identity.getClothId() + " from " + args[2]);
+            System.out.println("Features Hash: " + identity.getFeaturesHash());
+            return 0;
+        } catch (Exception e) {
+            logger.error("Re-extraction failed: {}", e.getMessage(), e);
+            System.out.println("Re-extraction failed: " + e.getMessage());
+            return 1;
+        } finally {
+            histogramIndex.save();
+            digestIndex.save();
+            lshIndex.save();
+            storageManager.close();
+        }
+    }
+    
+    private static int runExportCommand(String[] args) {
+        if (args.length != 2) {
+            printUsage();
+            return 1;
+        }
+        
+        LocalStorageManager storageManager = new LocalStorageManager();
+        try {
+            RegistryArchive.Result result = new RegistryArchive(storageManager).export(Paths.get(args[1]));
+            System.out.printf("Exported %d cloths to %s in %.1f s (%d could not be read)%n",
+                result.getRecords(), args[1], result.getElapsedMillis() / 1000.0, result.getFailed());
+            return result.getFailed() == 0 ? 0 : 2;
+        } catch (IOException e) {
+            logger.error("Export failed: {}", e.getMessage(), e);
+            System.out.println("Export failed: " + e.getMessage());
+            return 1;
+        } finally {
+            storageManager.close();
+        }
+    }
+    
+    private static int runImportCommand(String[] args) {
+        if (args.length < 2) {
+            printUsage();
+            return 1;
+        }
+        
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean restart = false;
+        try {
+            for (int i = 2; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--restart":
+                        restart = true;
+                        break;
+                    default:
+                        System.out.println("Unknown option: " + args[i]);
+                        printUsage();
+                        return 1;
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid arguments: " + e.getMessage());
+            printUsage();
+            return 1;
+        }
+        
+        LocalStorageManager storageManager = new LocalStorageManager();
+        HistogramAnnIndex histogramIndex = new HistogramAnnIndex(storageManager);
+        ImageDigestIndex digestIndex = new ImageDigestIndex(storageManager);
+        LshIndex lshIndex = new LshIndex(storageManager);
+        try {
+            RegistryArchive.Result result = new RegistryArchive(storageManager).importArchive(Paths.get(args[1]), threads, restart);
+            System.out.printf("Imported %d cloths from %s in %.1f s (%d failed, %d done by an earlier run)%n",
+                result.getRecords(), args[1], result.getElapsedMillis() / 1000.0, result.getFailed(), result.getResumedAt());
+            return result.getFailed() == 0 ? 0 : 2;
+        } catch (Exception e) {
+            logger.error("Import failed: {}", e.getMessage(), e);
+            System.out.println("Import failed: " + e.getMessage());
+            return 1;
+        } finally {
+            System.out.println("Group commit: " + storageManager.getGroupCommitStats());
+            histogramIndex.save();
+            digestIndex.save();
+            lshIndex.save();
+            storageManager.close();
+        }
+    }
+    
     public void run() {
         boolean running = true;
         
@@ -55,7 +542,24 @@ public class ClothAuthenticationApp {
                     deleteClothData();
                     break;
                 case 5:
+                    identifyCloth();
+                    break;
+                case 6:
                     running = false;
+                    if (featureExtractor.getCache() != null) {
+                        logger.info("Extraction cache: {}", featureExtractor.getCache());
+                    }
+                    logger.info("Storage cache: features {}; identities {}",
+                        storageManager.getFeatureCacheStats(), storageManager.getIdentityCacheStats());
+                    logger.info("Group commit: {}", storageManager.getGroupCommitStats());
+                    if (storageManager.getArchiveStats() != null) {
+                        logger.info("Cold archive: {}", storageManager.getArchiveStats());
+                    }
+                    histogramIndex.save();
+                    digestIndex.save();
+                    lshIndex.save();
+                    featureIndex.saveSnapshot();
+                    storageManager.close();
                     logger.info("Shutting down Cloth Authentication System");
                     break;
                 default:
@@ -72,7 +576,8 @@ public class ClothAuthenticationApp {
         System.out.println("2. Verify Existing Cloth");
         System.out.println("3. List All Stored Cloths");
         System.out.println("4. Delete Cloth Data");
-        System.out.println("5. Exit");
+        System.out.println("5. Identify Unknown Cloth");
+        System.out.println("6. Exit");
         System.out.print("Enter your choice: ");
     }
     
@@ -96,28 +601,21 @@ public class ClothAuthenticationApp {
         }
         
         try {
-            // Generate unique cloth ID
-            String clothId = generateClothId();
-            System.out.println("Generated Cloth ID: " + clothId);
-            
-            // Step 1: Extract deep cloth features
-            System.out.println("Step 1: Extracting cloth features...");
-            ClothFeatures features = featureExtractor.extractFeatures(imagePath);
-            
-            // Step 2: Store features locally
-            System.out.println("Step 2: Storing features locally...");
-            storageManager.storeClothFeatures(clothId, features);
-            
-            // Step 3: Generate hashes
-            System.out.println("Step 3: Generating hashes...");
-            ClothIdentity identity = generateClothIdentity(clothId, features, imagePath);
+            // Extract features, generate hashes and store the new cloth
+            System.out.println("Extracting cloth features and creating digital identity...");
+            RegistrationResult result = registrationService.register(imagePath);
+            ClothIdentity identity = result.getIdentity();
             
-            // Store identity
-            storageManager.storeClothIdentity(clothId, identity);
+            if (result.isDuplicate()) {
+                System.out.println("\nThis image is already registered as cloth ID: " + identity.getClothId());
+                System.out.println("Created: " + new java.util.Date(identity.getCreationTime()));
+                System.out.println("Image Path: " + identity.getImagePath());
+                return;
+            }
             
             // Display results
-            displayProcessingResults(clothId, identity);
-            
+            displayProcessingResults(identity.getClothId(), identity);
+        
         } catch (Exception e) {
             logger.error("Error processing cloth: {}", e.getMessage(), e);
             System.out.println("Error processing cloth: " + e.getMessage());
@@ -148,51 +646,119 @@ public class ClothAuthenticationApp {
             ClothFeatures verificationFeatures = featureExtractor.extractFeatures(imagePath);
             verificationFeatures.setTimestamp(0); // Reset timestamp for consistent hashing
               // Get the features for comparison
-            ClothFeatures storedFeatures = storageManager.loadClothFeatures(clothId);
-            
-            // Compare features with tolerance
-            double textureSimilarity = compareTextureFeatures(storedFeatures, verificationFeatures);
-            double patternSimilarity = comparePatternFeatures(storedFeatures, verificationFeatures);
-            double dimensionSimilarity = compareDimensions(storedFeatures, verificationFeatures);
-            
-            // Weights for different feature types
-            double textureWeight = 0.4;
-            double patternWeight = 0.4;
-            double dimensionWeight = 0.2;
+            CompactClothFeatures storedFeatures = storageManager.loadCompactFeatures(clothId);
             
-            // Calculate weighted similarity score
-            double totalSimilarity = (textureSimilarity * textureWeight) +
-                                   (patternSimilarity * patternWeight) +
-                                   (dimensionSimilarity * dimensionWeight);
-            
-            // Threshold for authentication (80% similarity required)
-            double threshold = 0.80;
-            boolean isAuthentic = totalSimilarity >= threshold;
+            // Compare features with tolerance using the weighted similarity score
+            MatchResult match = SimilarityScorer.compare(clothId, storedFeatures, CompactClothFeatures.from(verificationFeatures));
+            boolean isAuthentic = match.isAuthentic();
             
             System.out.println("\n=== Verification Results ===");
             System.out.println("Cloth ID: " + clothId);
             
             // Print similarity scores
             System.out.println("\nSimilarity Scores:");
-            System.out.printf("Texture Similarity: %.2f%%\n", textureSimilarity * 100);
-            System.out.printf("Pattern Similarity: %.2f%%\n", patternSimilarity * 100);
-            System.out.printf("Dimension Similarity: %.2f%%\n", dimensionSimilarity * 100);
-            System.out.printf("Total Weighted Similarity: %.2f%%\n\n", totalSimilarity * 100);
+            if (match.isTextureScored()) {
+                System.out.printf("Texture Similarity: %.2f%%\n", match.getTextureSimilarity() * 100);
+                System.out.printf("Pattern Similarity: %.2f%%\n", match.getPatternSimilarity() * 100);
+            } else {
+                System.out.println("Texture Similarity: n/a (registered without texture features; re-register to include them)");
+                System.out.printf("Pattern Similarity: %.2f%% (symmetry only)\n", match.getPatternSimilarity() * 100);
+            }
+            System.out.printf("Dimension Similarity: %.2f%%\n", match.getDimensionSimilarity() * 100);
+            System.out.printf("Total Weighted Similarity: %.2f%%\n\n", match.getTotalSimilarity() * 100);
+            
+            // The stored features must still hash to what was recorded at registration
+            boolean intact = HashGenerator.verifyFeaturesHash(storedIdentity, storedFeatures);
+            System.out.printf("Stored Features Integrity: %s (hash v%d)\n", intact ? "OK" : "MODIFIED", storedIdentity.getHashVersion());
             
             System.out.println("Authentication Status: " + (isAuthentic ? "AUTHENTIC" : "NOT AUTHENTIC"));
             
             if (!isAuthentic) {
                 System.out.println("Warning: The cloth item may have been altered or is not the original item.");
             }
-            
+        
         } catch (Exception e) {
             logger.error("Error verifying cloth: {}", e.getMessage(), e);
             System.out.println("Error verifying cloth: " + e.getMessage());
         }
     }
     
+    private void identifyCloth() {
+        System.out.print("Enter path to cloth image to identify: ");
+        String imagePath = scanner.nextLine().trim();
+        
+        File imageFile = new File(imagePath);
+        if (!imageFile.exists()) {
+            System.out.println("Error: Image file not found at path: " + imagePath);
+            return;
+        }
+        
+        try {
+            System.out.println("Extracting features from image...");
+            ClothFeatures queryFeatures = featureExtractor.extractFeatures(imagePath);
+            
+            long start = System.nanoTime();
+            List<MatchResult> matches = clothIdentifier.identify(queryFeatures, IDENTIFY_TOP_K);
+            long elapsedMicros = (System.nanoTime() - start) / 1000;
+            
+            System.out.println("\n=== Identification Results ===");
+            if (matches.isEmpty()) {
+                System.out.println("No stored cloth items to compare against.");
+                return;
+            }
+            
+            System.out.printf("Top %d of %d stored items (%d us):\n", matches.size(), clothIdentifier.size(), elapsedMicros);
+            for (int i = 0; i < matches.size(); i++) {
+                MatchResult match = matches.get(i);
+                System.out.printf("%d. Cloth ID: %s  Total: %.2f%%  (Texture %s, Pattern %.2f%%, Dimension %.2f%%)%s\n",
+                    i + 1,
+                    match.getClothId(),
+                    match.getTotalSimilarity() * 100,
+                    match.isTextureScored() ? String.format("%.2f%%", match.getTextureSimilarity() * 100) : "n/a",
+                    match.getPatternSimilarity() * 100,
+                    match.getDimensionSimilarity() * 100,
+                    match.isAuthentic() ? "  MATCH" : "");
+            }
+            
+            start = System.nanoTime();
+            List<IndexHit> colourMatches = histogramIndex.nearest(queryFeatures, IDENTIFY_TOP_K);
+            elapsedMicros = (System.nanoTime() - start) / 1000;
+            
+            System.out.printf("\nNearest colour histograms (%d us):\n", elapsedMicros);
+            for (int i = 0; i < colourMatches.size(); i++) {
+                IndexHit hit = colourMatches.get(i);
+                System.out.printf("%d. Cloth ID: %s  Distance: %.4f\n", i + 1, hit.getClothId(), Math.sqrt(hit.getScore()));
+            }
+            
+            // Only the cloths sharing an LSH bucket with the query are scored
+            start = System.nanoTime();
+            List<IndexHit> candidates = lshIndex.candidates(queryFeatures);
+            List<String> candidateIds = new ArrayList<>(candidates.size());
+            for (IndexHit hit : candidates) {
+                candidateIds.add(hit.getClothId());
+            }
+            List<MatchResult> nearDuplicates = clothIdentifier.identify(queryFeatures, IDENTIFY_TOP_K, candidateIds);
+            elapsedMicros = (System.nanoTime() - start) / 1000;
+            
+            System.out.printf("\nNear-duplicate candidates (%d of %d stored items probed, %d us):\n",
+                candidates.size(), lshIndex.size(), elapsedMicros);
+            if (nearDuplicates.isEmpty()) {
+                System.out.println("None.");
+            }
+            for (int i = 0; i < nearDuplicates.size(); i++) {
+                MatchResult match = nearDuplicates.get(i);
+                System.out.printf("%d. Cloth ID: %s  Total: %.2f%%%s\n",
+                    i + 1, match.getClothId(), match.getTotalSimilarity() * 100, match.isAuthentic() ? "  MATCH" : "");
+            }
+        
+        } catch (Exception e) {
+            logger.error("Error identifying cloth: {}", e.getMessage(), e);
+            System.out.println("Error identifying cloth: " + e.getMessage());
+        }
+    }
+    
     private void listStoredCloths() {
-        List<String> clothIds = storageManager.getAllClothIds();
+        List<String> clothIds = storageManager.listClothIds(null, LIST_PAGE_SIZE);
         
         if (clothIds.isEmpty()) {
             System.out.println("No cloth items stored in the system.");
@@ -200,19 +766,32 @@ public class ClothAuthenticationApp {
         }
         
         System.out.println("\n=== Stored Cloth Items ===");
-        for (int i = 0; i < clothIds.size(); i++) {
-            String clothId = clothIds.get(i);
-            ClothIdentity identity = storageManager.loadClothIdentity(clothId);
-            
-            System.out.printf("%d. Cloth ID: %s\n", i + 1, clothId);
-            if (identity != null) {
-                System.out.printf("   Created: %s\n", new java.util.Date(identity.getCreationTime()));
-                System.out.printf("   Hash: %s\n", identity.getCombinedHash());
-                if (identity.getImagePath() != null) {
-                    System.out.printf("   Image: %s\n", identity.getImagePath());
+        int number = 0;
+        while (true) {
+            for (String clothId : clothIds) {
+                ClothIdentity identity = storageManager.loadClothIdentity(clothId);
+                
+                System.out.printf("%d. Cloth ID: %s\n", ++number, clothId);
+                if (identity != null) {
+                    System.out.printf("   Created: %s\n", new java.util.Date(identity.getCreationTime()));
+                    System.out.printf("   Hash: %s\n", identity.getCombinedHash());
+                    if (identity.getImagePath() != null) {
+                        System.out.printf("   Image: %s\n", identity.getImagePath());
+                    }
                 }
+                System.out.println();
+            }
+            if (clothIds.size() < LIST_PAGE_SIZE) {
+                return;
+            }
+            clothIds = storageManager.listClothIds(clothIds.get(clothIds.size() - 1), LIST_PAGE_SIZE);
+            if (clothIds.isEmpty()) {
+                return;
+            }
+            System.out.print("Show more? (y/n): ");
+            if (!scanner.nextLine().trim().equalsIgnoreCase("y")) {
+                return;
             }
-            System.out.println();
         }
     }
     
@@ -241,30 +820,6 @@ public class ClothAuthenticationApp {
         }
     }
     
-    private String generateClothId() {
-        return UUID.randomUUID().toString().substring(0, 8).toUpperCase();
-    }
-      private ClothIdentity generateClothIdentity(String clothId, ClothFeatures features, String imagePath) {
-        ClothIdentity identity = new ClothIdentity(clothId);
-        identity.setImagePath(imagePath);
-        
-        // Generate features hash without timestamp to ensure consistency
-        features.setTimestamp(0); // Reset timestamp to ensure consistent hashing
-        String featuresHash = HashGenerator.generateSHA256Hash(features);
-        identity.setFeaturesHash(featuresHash);
-        
-        // Generate timestamp hash
-        long timestamp = System.currentTimeMillis();
-        String timestampHash = HashGenerator.generateSHA256Hash(String.valueOf(timestamp));
-        identity.setTimestampHash(timestampHash);
-        features.setTimestamp(timestamp); // Set the actual timestamp after hashing
-        
-        // Generate combined hash - using only features hash to ensure consistency
-        identity.setCombinedHash(featuresHash); // Use features hash as the combined hash
-        
-        return identity;
-    }
-    
     private boolean verifyClothAuthenticity(ClothIdentity stored, ClothIdentity current) {
         // For basic verification, we compare the features hash
         // In a real-world scenario, you might allow for small variations due to lighting, angle, etc.
@@ -273,50 +828,13 @@ public class ClothAuthenticationApp {
       private void displayProcessingResults(String clothId, ClothIdentity identity) {
         System.out.println("\n=== Processing Results ===");
         System.out.println("Cloth ID: " + clothId);
-        System.out.println("Features Hash: " + identity.getFeaturesHash());
+        System.out.println("Features Hash: " + identity.getFeaturesHash() + " (v" + identity.getHashVersion() + ")");
         System.out.println("Timestamp Hash: " + identity.getTimestampHash());
         System.out.println("Combined Hash: " + identity.getCombinedHash());
+        System.out.println("LSH Signature: " + identity.getLshSignature());
         System.out.println("Created: " + new java.util.Date(identity.getCreationTime()));
         System.out.println("Image Path: " + identity.getImagePath());
         System.out.println("\nCloth digital identity created successfully!");
         System.out.println("Data stored locally in: data/features/ and data/identities/");
     }
-    
-    private double compareTextureFeatures(ClothFeatures stored, ClothFeatures current) {
-        Map<String, Double> storedTexture = stored.getFabricTexture();
-        Map<String, Double> currentTexture = current.getFabricTexture();
-        
-        double meanDiff = Math.abs(storedTexture.get("mean_intensity") - 
-                                 currentTexture.get("mean_intensity")) / 255.0;
-        double contrastDiff = Math.abs(storedTexture.get("contrast") - 
-                                     currentTexture.get("contrast"));
-        double homogeneityDiff = Math.abs(storedTexture.get("homogeneity") - 
-                                        currentTexture.get("homogeneity"));
-
-        return 1.0 - ((meanDiff + contrastDiff + homogeneityDiff) / 3.0);
-    }
-
-    private double comparePatternFeatures(ClothFeatures stored, ClothFeatures current) {
-        Map<String, Object> storedPattern = stored.getPatternFeatures();
-        Map<String, Object> currentPattern = current.getPatternFeatures();
-        
-        double complexityDiff = Math.abs(((Number)storedPattern.get("complexity_score")).doubleValue() - 
-                                       ((Number)currentPattern.get("complexity_score")).doubleValue()) / 100.0;
-        double symmetryDiff = Math.abs(((Number)storedPattern.get("symmetry_score")).doubleValue() - 
-                                     ((Number)currentPattern.get("symmetry_score")).doubleValue()) / 100.0;
-
-        return 1.0 - ((complexityDiff + symmetryDiff) / 2.0);
-    }
-
-    private double compareDimensions(ClothFeatures stored, ClothFeatures current) {
-        Map<String, Double> storedDim = stored.getDimensions();
-        Map<String, Double> currentDim = current.getDimensions();
-        
-        double aspectRatioDiff = Math.abs(storedDim.get("aspect_ratio") - 
-                                        currentDim.get("aspect_ratio"));
-        double areaDiff = Math.abs(storedDim.get("area") - 
-                                 currentDim.get("area")) / storedDim.get("area");
-
-        return 1.0 - ((aspectRatioDiff + areaDiff) / 2.0);
-    }
   }
\ No newline at end of file
@@ -0,0 +1,163 @@
+package com.clothauth.batch;
+
+import com.clothauth.service.ClothRegistrationService;
+import com.clothauth.service.RegistrationResult;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Registers every image found under a directory using a fixed number of
+ * worker threads, reporting progress as it goes and writing a JSON summary
+ * with throughput and per-image failures when done.
+ */
+public class BatchIngestor {
+    private static final Logger logger = LoggerFactory.getLogger(BatchIngestor.class);
+    public static final String DEFAULT_SUMMARY_DIR = "data/ingest";
+    
+    private static final Set<String> IMAGE_EXTENSIONS = new HashSet<>(Arrays.asList(
+        "jpg", "jpeg", "png", "bmp", "tif", "tiff", "webp"
+    ));
+    private static final int PROGRESS_STEPS = 20;
+    
+    private final ClothRegistrationService registrationService;
+    private final int threads;
+    private final ObjectMapper objectMapper;
+    
+    public BatchIngestor(ClothRegistrationService registrationService, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be positive: " + threads);
+        }
+        this.registrationService = registrationService;
+        this.threads = threads;
+        this.objectMapper = new ObjectMapper();
+        this.objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
+    }
+    
+    public IngestSummary ingest(Path directory, Path summaryFile) throws IOException, InterruptedException {
+        if (!Files.isDirectory(directory)) {
+            throw new IOException("Not a directory: " + directory);
+        }
+        
+        List<Path> images = findImages(directory);
+        logger.info("Found {} images under {}", images.size(), directory);
+        System.out.printf("Ingesting %d images from %s with %d threads%n", images.size(), directory, threads);
+        
+        IngestSummary summary = new IngestSummary();
+        summary.setDirectory(directory.toString());
+        summary.setThreads(threads);
+        summary.setTotal(images.size());
+        summary.setStartedAt(System.currentTimeMillis());
+        
+        List<IngestSummary.Entry> registered = Collections.synchronizedList(new ArrayList<>());
+        List<IngestSummary.Entry> failures = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger duplicates = new AtomicInteger();
+        AtomicInteger processed = new AtomicInteger();
+        int progressInterval = Math.max(1, images.size() / PROGRESS_STEPS);
+        long startNanos = System.nanoTime();
+        
+        // Bounded queue; the walking thread runs tasks itself when the workers fall behind
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            threads,
+            threads,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(threads * 4),
+            new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+        
+        try {
+            for (Path image : images) {
+                executor.execute(() -> {
+                    String imagePath = image.toString();
+                    try {
+                        RegistrationResult result = registrationService.register(imagePath);
+                        // Images registered before keep their existing cloth ID
+                        if (result.isDuplicate()) {
+                            duplicates.incrementAndGet();
+                        }
+                        registered.add(new IngestSummary.Entry(imagePath, result.getIdentity().getClothId(), null));
+                    } catch (Exception e) {
+                        logger.error("Failed to ingest {}: {}", imagePath, e.getMessage());
+                        failures.add(new IngestSummary.Entry(imagePath, null, describe(e)));
+                    }
+                    
+                    int done = processed.incrementAndGet();
+                    if (done % progressInterval == 0 || done == images.size()) {
+                        reportProgress(done, images.size(), failures.size(), startNanos);
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        summary.setFinishedAt(System.currentTimeMillis());
+        summary.setElapsedMillis(elapsedMillis);
+        summary.setSucceeded(registered.size());
+        summary.setFailed(failures.size());
+        summary.setDuplicates(duplicates.get());
+        summary.setItemsPerSecond(elapsedMillis > 0 ? images.size() * 1000.0 / elapsedMillis : 0.0);
+        summary.setRegistered(new ArrayList<>(registered));
+        summary.setFailures(new ArrayList<>(failures));
+        
+        writeSummary(summary, summaryFile);
+        
+        System.out.printf("Ingest finished: %d succeeded (%d already registered), %d failed in %.1f s (%.2f items/s)%n",
+            summary.getSucceeded(), summary.getDuplicates(), summary.getFailed(), elapsedMillis / 1000.0, summary.getItemsPerSecond());
+        System.out.println("Summary written to: " + summaryFile);
+        
+        return summary;
+    }
+    
+    private List<Path> findImages(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            return paths
+                .filter(Files::isRegularFile)
+                .filter(BatchIngestor::isImage)
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+    
+    private static boolean isImage(Path path) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 && IMAGE_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+    
+    private void reportProgress(int done, int total, int failed, long startNanos) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        double rate = seconds > 0 ? done / seconds : 0.0;
+        System.out.printf("Progress: %d/%d (%.0f%%), %d failed, %.2f items/s%n",
+            done, total, done * 100.0 / total, failed, rate);
+    }
+    
+    private void writeSummary(IngestSummary summary, Path summaryFile) throws IOException {
+        Path parent = summaryFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        objectMapper.writeValue(summaryFile.toFile(), summary);
+    }
+    
+    private static String describe(Exception e) {
+        Throwable cause = e;
+        while (cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause == e ? String.valueOf(e.getMessage()) : e.getMessage() + ": " + cause.getMessage();
+    }
+}
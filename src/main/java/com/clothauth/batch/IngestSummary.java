@@ -0,0 +1,107 @@
+package com.clothauth.batch;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class IngestSummary {
+    @JsonProperty("directory")
+    private String directory;
+    
+    @JsonProperty("threads")
+    private int threads;
+    
+    @JsonProperty("started_at")
+    private long startedAt;
+    
+    @JsonProperty("finished_at")
+    private long finishedAt;
+    
+    @JsonProperty("elapsed_ms")
+    private long elapsedMillis;
+    
+    @JsonProperty("total")
+    private int total;
+    
+    @JsonProperty("succeeded")
+    private int succeeded;
+    
+    @JsonProperty("failed")
+    private int failed;
+    
+    @JsonProperty("duplicates")
+    private int duplicates;
+    
+    @JsonProperty("items_per_second")
+    private double itemsPerSecond;
+    
+    @JsonProperty("registered")
+    private List<Entry> registered = new ArrayList<>();
+    
+    @JsonProperty("failures")
+    private List<Entry> failures = new ArrayList<>();
+    
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Entry {
+        @JsonProperty("image_path")
+        private String imagePath;
+        
+        @JsonProperty("cloth_id")
+        private String clothId;
+        
+        @JsonProperty("error")
+        private String error;
+        
+        public Entry() {
+        }
+        
+        public Entry(String imagePath, String clothId, String error) {
+            this.imagePath = imagePath;
+            this.clothId = clothId;
+            this.error = error;
+        }
+        
+        public String getImagePath() { return imagePath; }
+        public String getClothId() { return clothId; }
+        public String getError() { return error; }
+    }
+    
+    // Getters and Setters
+    public String getDirectory() { return directory; }
+    public void setDirectory(String directory) { this.directory = directory; }
+    
+    public int getThreads() { return threads; }
+    public void setThreads(int threads) { this.threads = threads; }
+    
+    public long getStartedAt() { return startedAt; }
+    public void setStartedAt(long startedAt) { this.startedAt = startedAt; }
+    
+    public long getFinishedAt() { return finishedAt; }
+    public void setFinishedAt(long finishedAt) { this.finishedAt = finishedAt; }
+    
+    public long getElapsedMillis() { return elapsedMillis; }
+    public void setElapsedMillis(long elapsedMillis) { this.elapsedMillis = elapsedMillis; }
+    
+    public int getTotal() { return total; }
+    public void setTotal(int total) { this.total = total; }
+    
+    public int getSucceeded() { return succeeded; }
+    public void setSucceeded(int succeeded) { this.succeeded = succeeded; }
+    
+    public int getFailed() { return failed; }
+    public void setFailed(int failed) { this.failed = failed; }
+    
+    public int getDuplicates() { return duplicates; }
+    public void setDuplicates(int duplicates) { this.duplicates = duplicates; }
+    
+    public double getItemsPerSecond() { return itemsPerSecond; }
+    public void setItemsPerSecond(double itemsPerSecond) { this.itemsPerSecond = itemsPerSecond; }
+    
+    public List<Entry> getRegistered() { return registered; }
+    public void setRegistered(List<Entry> registered) { this.registered = registered; }
+    
+    public List<Entry> getFailures() { return failures; }
+    public void setFailures(List<Entry> failures) { this.failures = failures; }
+}
@@ -0,0 +1,34 @@
+package com.clothauth.cache;
+
+public class CacheStats {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int size;
+    private final long weight;
+    
+    public CacheStats(long hits, long misses, long evictions, int size, long weight) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.size = size;
+        this.weight = weight;
+    }
+    
+    public long getHits() { return hits; }
+    public long getMisses() { return misses; }
+    public long getEvictions() { return evictions; }
+    public int getSize() { return size; }
+    public long getWeight() { return weight; }
+    
+    public double getHitRatio() {
+        long requests = hits + misses;
+        return requests > 0 ? (double) hits / requests : 0.0;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses (%.1f%% hit ratio), %d evictions, %d entries, %d KB",
+            hits, misses, getHitRatio() * 100, evictions, size, weight / 1024);
+    }
+}
@@ -0,0 +1,100 @@
+package com.clothauth.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * Least-recently-used cache bounded by the total weight of its values,
+ * e.g. their estimated size in bytes. When an insert pushes the weight over
+ * the limit, the least recently used entries are evicted until it fits.
+ *
+ * All operations lock the cache; they only touch a linked hash map, so the
+ * lock is held for well under a microsecond.
+ */
+public class LruCache<K, V> {
+    private final long maxWeight;
+    private final ToLongFunction<V> weigher;
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private long weight;
+    
+    public LruCache(long maxWeight, ToLongFunction<V> weigher) {
+        if (maxWeight < 0) {
+            throw new IllegalArgumentException("Maximum weight must not be negative: " + maxWeight);
+        }
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+    
+    /**
+     * @return the cached value, or null on a miss
+     */
+    public V get(K key) {
+        V value;
+        synchronized (this) {
+            value = entries.get(key);
+        }
+        (value != null ? hits : misses).incrementAndGet();
+        return value;
+    }
+    
+    /**
+     * Caches a value. A value heavier than the whole cache is not stored.
+     */
+    public void put(K key, V value) {
+        long valueWeight = weigher.applyAsLong(value);
+        synchronized (this) {
+            V previous = entries.remove(key);
+            if (previous != null) {
+                weight -= weigher.applyAsLong(previous);
+            }
+            if (valueWeight > maxWeight) {
+                return;
+            }
+            entries.put(key, value);
+            weight += valueWeight;
+            
+            Iterator<Map.Entry<K, V>> eldest = entries.entrySet().iterator();
+            while (weight > maxWeight && eldest.hasNext()) {
+                weight -= weigher.applyAsLong(eldest.next().getValue());
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+    
+    public void invalidate(K key) {
+        synchronized (this) {
+            V previous = entries.remove(key);
+            if (previous != null) {
+                weight -= weigher.applyAsLong(previous);
+            }
+        }
+    }
+    
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+    
+    public synchronized int size() {
+        return entries.size();
+    }
+    
+    public synchronized long weight() {
+        return weight;
+    }
+    
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+    
+    public synchronized CacheStats stats() {
+        return new CacheStats(hits.get(), misses.get(), evictions.get(), entries.size(), weight);
+    }
+}
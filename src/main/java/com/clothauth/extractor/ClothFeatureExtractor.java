@@ -1,11 +1,19 @@
 package com.clothauth.extractor;
 
 import com.clothauth.model.ClothFeatures;
+import com.clothauth.security.HashGenerator;
+import com.clothauth.security.ImageDigest;
+import com.clothauth.utils.ImageContext;
 import com.clothauth.utils.ImageProcessor;
+import com.clothauth.utils.NativeScope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 public class ClothFeatureExtractor {
@@ -15,49 +23,136 @@ public class ClothFeatureExtractor {
     private static final int CANNY_LOW_THRESHOLD = 50;
     private static final int CANNY_HIGH_THRESHOLD = 150;
     private static final int HISTOGRAM_BINS = 256;
-    private static final int LBP_RADIUS = 1;
-    private static final int LBP_NEIGHBORS = 8;
+    public static final int LBP_RADIUS = 1;
+    public static final int LBP_NEIGHBORS = 8;
     private static final int DECIMAL_PRECISION = 4; // Reduced precision for consistency
     
+    // Bump when the extraction algorithm changes so cached results are not reused
+    private static final int EXTRACTOR_VERSION = 1;
+    private static final String PARAMETER_FINGERPRINT = HashGenerator.generateSHA256Hash(
+        "version=" + EXTRACTOR_VERSION
+            + ";canny=" + CANNY_LOW_THRESHOLD + "/" + CANNY_HIGH_THRESHOLD
+            + ";histogramBins=" + HISTOGRAM_BINS
+            + ";lbp=" + LBP_RADIUS + "/" + LBP_NEIGHBORS
+            + ";precision=" + DECIMAL_PRECISION
+    ).substring(0, 16);
+    
+    // Shared pool for parallel extraction stages
+    private static final String EXTRACTION_THREADS_PROPERTY = "clothauth.extraction.threads";
+    private static final int EXTRACTION_QUEUE_CAPACITY = 256;
+    private static ExecutorService sharedExecutor;
+    
+    private final ExecutorService executor;
+    private final ExtractionCache cache;
+    
+    public ClothFeatureExtractor() {
+        this(null);
+    }
+    
+    /**
+     * Creates an extractor that runs the independent extraction stages of an
+     * image concurrently on the given executor. A null executor runs them
+     * sequentially on the calling thread.
+     */
+    public ClothFeatureExtractor(ExecutorService executor) {
+        this(executor, null);
+    }
+    
+    /**
+     * Creates an extractor that looks results up in the given cache before
+     * running the pipeline. A null cache disables caching.
+     */
+    public ClothFeatureExtractor(ExecutorService executor, ExtractionCache cache) {
+        this.executor = executor;
+        this.cache = cache;
+    }
+    
+    public static ClothFeatureExtractor parallel() {
+        return parallel(null);
+    }
+    
+    public static ClothFeatureExtractor parallel(ExtractionCache cache) {
+        return new ClothFeatureExtractor(sharedExecutor(), cache);
+    }
+    
+    public boolean isParallel() {
+        return executor != null;
+    }
+    
+    public ExtractionCache getCache() {
+        return cache;
+    }
+    
+    /**
+     * Short hash of every parameter that influences the extracted values.
+     */
+    public static String getParameterFingerprint() {
+        return PARAMETER_FINGERPRINT;
+    }
+    
     public ClothFeatures extractFeatures(String imagePath) {
+        if (cache == null) {
+            return extractUncached(imagePath);
+        }
+        String imageDigest;
+        try {
+            imageDigest = ImageDigest.sha256Hex(Paths.get(imagePath));
+        } catch (IOException e) {
+            // Unreadable images fail in the pipeline with the usual error
+            return extractUncached(imagePath);
+        }
+        return extractFeatures(imagePath, imageDigest);
+    }
+    
+    /**
+     * Same as {@link #extractFeatures(String)} for callers that already have
+     * the SHA-256 of the image bytes.
+     */
+    public ClothFeatures extractFeatures(String imagePath, String imageDigest) {
+        if (cache == null) {
+            return extractUncached(imagePath);
+        }
+        String key = imageDigest + "-" + PARAMETER_FINGERPRINT;
+        ClothFeatures cached = cache.get(key);
+        if (cached != null) {
+            logger.info("Using cached features for image: {}", imagePath);
+            cached.setTimestamp(System.currentTimeMillis());
+            return cached;
+        }
+        ClothFeatures features = extractUncached(imagePath);
+        cache.put(key, features);
+        return features;
+    }
+    
+    private ClothFeatures extractUncached(String imagePath) {
         logger.info("Starting feature extraction for image: {}", imagePath);
         
         ClothFeatures features = new ClothFeatures();
         
-        try {
-            // Extract and normalize all features with fixed parameters
-            Map<String, Double> textureFeatures = ImageProcessor.extractTextureFeatures(
-                imagePath, 
-                CANNY_LOW_THRESHOLD,
-                CANNY_HIGH_THRESHOLD,
-                LBP_RADIUS,
-                LBP_NEIGHBORS
-            );
-            features.setFabricTexture(normalizeFeatureMap(textureFeatures));
-            
-            List<Double> colorHistogram = ImageProcessor.extractColorHistogram(
-                imagePath,
-                HISTOGRAM_BINS
-            );
-            features.setColorHistogram(normalizeFeatureList(colorHistogram));
+        // Decode the image once and share it across all extraction stages
+        try (ImageContext context = ImageContext.load(imagePath)) {
+            if (context.isEmpty()) {
+                throw new RuntimeException("Could not load image: " + imagePath);
+            }
             
-            Map<String, Double> dimensions = ImageProcessor.extractDimensions(imagePath);
-            features.setDimensions(normalizeFeatureMap(dimensions));
+            // Extract all features with fixed parameters
+            StageResults stages = executor == null ? runSequential(context) : runParallel(context);
             
-            List<Double> edgeFeatures = ImageProcessor.extractEdgeFeatures(
-                imagePath,
-                CANNY_LOW_THRESHOLD,
-                CANNY_HIGH_THRESHOLD
-            );
-            features.setEdgeFeatures(normalizeFeatureList(edgeFeatures));
+            // Normalize in a fixed order regardless of the execution mode
+            features.setFabricTexture(normalizeFeatureMap(stages.texture));
+            features.setColorHistogram(normalizeFeatureList(stages.colorHistogram));
+            features.setDimensions(normalizeFeatureMap(stages.dimensions));
+            features.setEdgeFeatures(normalizeFeatureList(stages.edges));
             
             // Create deterministic pattern features
             Map<String, Object> patternFeatures = new LinkedHashMap<>();
             patternFeatures.put("complexity_score", round(calculateComplexityScore(features)));
-            patternFeatures.put("symmetry_score", round(calculateSymmetryScore(imagePath)));
+            patternFeatures.put("symmetry_score", round(calculateSymmetryScore(stages.dimensions)));
             features.setPatternFeatures(patternFeatures);
             
             logger.info("Feature extraction completed successfully for image: {}", imagePath);
+            logger.debug("Live native image memory: {} bytes (peak {} bytes)",
+                NativeScope.getLiveNativeBytes(), NativeScope.getPeakNativeBytes());
             
         } catch (Exception e) {
             logger.error("Error during feature extraction: {}", e.getMessage(), e);
@@ -67,6 +162,97 @@ public class ClothFeatureExtractor {
         return features;
     }
     
+    private StageResults runSequential(ImageContext context) {
+        StageResults stages = new StageResults();
+        stages.texture = extractTexture(context);
+        stages.colorHistogram = extractColorHistogram(context);
+        stages.dimensions = ImageProcessor.extractDimensions(context);
+        stages.edges = extractEdges(context);
+        return stages;
+    }
+    
+    private StageResults runParallel(ImageContext context) {
+        CompletableFuture<Map<String, Double>> texture =
+            CompletableFuture.supplyAsync(() -> extractTexture(context), executor);
+        CompletableFuture<List<Double>> colorHistogram =
+            CompletableFuture.supplyAsync(() -> extractColorHistogram(context), executor);
+        CompletableFuture<List<Double>> edges =
+            CompletableFuture.supplyAsync(() -> extractEdges(context), executor);
+        
+        // Dimensions are only header values; no need to hand them to the pool
+        Map<String, Double> dimensions = ImageProcessor.extractDimensions(context);
+        
+        // Wait for every stage before the context is closed, even if one of them failed
+        try {
+            CompletableFuture.allOf(texture, colorHistogram, edges).join();
+        } catch (CompletionException e) {
+            throw new RuntimeException("Parallel extraction stage failed", e.getCause());
+        }
+        
+        StageResults stages = new StageResults();
+        stages.texture = texture.join();
+        stages.colorHistogram = colorHistogram.join();
+        stages.dimensions = dimensions;
+        stages.edges = edges.join();
+        return stages;
+    }
+    
+    private Map<String, Double> extractTexture(ImageContext context) {
+        return ImageProcessor.extractTextureFeatures(
+            context,
+            CANNY_LOW_THRESHOLD,
+            CANNY_HIGH_THRESHOLD,
+            LBP_RADIUS,
+            LBP_NEIGHBORS
+        );
+    }
+    
+    private List<Double> extractColorHistogram(ImageContext context) {
+        return ImageProcessor.extractColorHistogram(
+            context,
+            HISTOGRAM_BINS
+        );
+    }
+    
+    private List<Double> extractEdges(ImageContext context) {
+        return ImageProcessor.extractEdgeFeatures(
+            context,
+            CANNY_LOW_THRESHOLD,
+            CANNY_HIGH_THRESHOLD
+        );
+    }
+    
+    private static synchronized ExecutorService sharedExecutor() {
+        if (sharedExecutor == null) {
+            int threads = Integer.getInteger(EXTRACTION_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+            AtomicInteger threadCounter = new AtomicInteger();
+            ThreadFactory threadFactory = runnable -> {
+                Thread thread = new Thread(runnable, "feature-extractor-" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+            // Bounded queue; when saturated the submitting thread runs the stage itself
+            sharedExecutor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(EXTRACTION_QUEUE_CAPACITY),
+                threadFactory,
+                new ThreadPoolExecutor.CallerRunsPolicy()
+            );
+            logger.info("Created shared extraction pool with {} threads", threads);
+        }
+        return sharedExecutor;
+    }
+    
+    private static class StageResults {
+        Map<String, Double> texture;
+        List<Double> colorHistogram;
+        Map<String, Double> dimensions;
+        List<Double> edges;
+    }
+    
     private Map<String, Double> normalizeFeatureMap(Map<String, Double> map) {
         if (map == null) return new TreeMap<>();
         
@@ -98,9 +284,8 @@ public class ClothFeatureExtractor {
         return 0.0;
     }
     
-    private double calculateSymmetryScore(String imagePath) {
+    private double calculateSymmetryScore(Map<String, Double> dimensions) {
         try {
-            Map<String, Double> dimensions = ImageProcessor.extractDimensions(imagePath);
             Double width = dimensions.get("width");
             Double height = dimensions.get("height");
             
@@ -0,0 +1,143 @@
+package com.clothauth.extractor;
+
+import com.clothauth.cache.CacheStats;
+import com.clothauth.cache.LruCache;
+import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.CompactClothFeatures;
+import com.clothauth.storage.RecordCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed cache of extraction results. Entries are keyed by the
+ * SHA-256 of the image bytes plus the fingerprint of the extractor
+ * parameters, so a renamed copy of an image hits and a change of any
+ * extraction parameter misses.
+ *
+ * The memory tier is an LRU bounded by the estimated bytes of the compact
+ * features. The optional disk tier keeps one binary record per entry in a
+ * directory; it is not bounded and may be deleted at any time.
+ */
+public class ExtractionCache {
+    private static final Logger logger = LoggerFactory.getLogger(ExtractionCache.class);
+    private static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    private static final String FILE_EXTENSION = ".bin";
+    
+    private final LruCache<String, CompactClothFeatures> memory;
+    private final Path directory;
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong diskMisses = new AtomicLong();
+    private final AtomicLong diskWrites = new AtomicLong();
+    
+    /**
+     * @param maxBytes  bound of the memory tier
+     * @param directory directory of the disk tier, or null for memory only
+     */
+    public ExtractionCache(long maxBytes, Path directory) {
+        this.memory = new LruCache<>(maxBytes, CompactClothFeatures::estimatedBytes);
+        this.directory = directory;
+    }
+    
+    /**
+     * Creates the cache configured by the {@code clothauth.cache.*}
+     * properties, or returns null if caching is disabled.
+     */
+    public static ExtractionCache fromSystemProperties() {
+        if (!Boolean.parseBoolean(System.getProperty("clothauth.cache.enabled", "true"))) {
+            return null;
+        }
+        long maxBytes = Long.getLong("clothauth.cache.maxBytes", DEFAULT_MAX_BYTES);
+        String dir = System.getProperty("clothauth.cache.dir", "");
+        return new ExtractionCache(maxBytes, dir.isEmpty() ? null : Paths.get(dir));
+    }
+    
+    /**
+     * @return a new copy of the cached features, or null on a miss
+     */
+    public ClothFeatures get(String key) {
+        CompactClothFeatures cached = memory.get(key);
+        if (cached == null && directory != null) {
+            cached = readDisk(key);
+            if (cached != null) {
+                memory.put(key, cached);
+            }
+        }
+        return cached != null ? cached.toClothFeatures() : null;
+    }
+    
+    public void put(String key, ClothFeatures features) {
+        CompactClothFeatures compact = CompactClothFeatures.from(features);
+        memory.put(key, compact);
+        if (directory != null) {
+            writeDisk(key, features);
+        }
+    }
+    
+    public CacheStats getMemoryStats() {
+        return memory.stats();
+    }
+    
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+    
+    public long getDiskMisses() {
+        return diskMisses.get();
+    }
+    
+    public long getDiskWrites() {
+        return diskWrites.get();
+    }
+    
+    @Override
+    public String toString() {
+        String summary = "memory: " + memory.stats();
+        if (directory != null) {
+            summary += String.format("; disk: %d hits, %d misses, %d writes", diskHits.get(), diskMisses.get(), diskWrites.get());
+        }
+        return summary;
+    }
+    
+    private CompactClothFeatures readDisk(String key) {
+        try {
+            byte[] data = Files.readAllBytes(directory.resolve(key + FILE_EXTENSION));
+            CompactClothFeatures features = RecordCodec.decodeCompactFeatures(data, 0, data.length);
+            diskHits.incrementAndGet();
+            return features;
+        } catch (NoSuchFileException e) {
+            diskMisses.incrementAndGet();
+            return null;
+        } catch (IOException e) {
+            logger.warn("Ignoring unreadable extraction cache entry {}: {}", key, e.getMessage());
+            diskMisses.incrementAndGet();
+            return null;
+        }
+    }
+    
+    private void writeDisk(String key, ClothFeatures features) {
+        Path file = directory.resolve(key + FILE_EXTENSION);
+        Path temp = directory.resolve(key + FILE_EXTENSION + ".tmp" + Thread.currentThread().getId());
+        try {
+            Files.createDirectories(directory);
+            Files.write(temp, RecordCodec.encodeFeatures(features));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            diskWrites.incrementAndGet();
+        } catch (IOException e) {
+            // The cache is only an optimisation; extraction results are never lost
+            logger.warn("Failed to write extraction cache entry {}: {}", key, e.getMessage());
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // Nothing left to clean up
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.clothauth.index;
+
+import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.CompactClothFeatures;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed column order used when cloth features are stored as a flat row of
+ * floats: the 768 colour histogram bins (R, G, B), then the texture,
+ * edge, dimension and pattern values. Values that are missing from the
+ * features map are stored as NaN.
+ */
+public final class FeatureLayout {
+    public static final int HISTOGRAM_BINS = 768;
+    
+    public static final int HISTOGRAM = 0;
+    public static final int CONTRAST = HISTOGRAM + HISTOGRAM_BINS;
+    public static final int HOMOGENEITY = CONTRAST + 1;
+    public static final int MEAN_INTENSITY = HOMOGENEITY + 1;
+    public static final int STD_DEVIATION = MEAN_INTENSITY + 1;
+    public static final int EDGE_DENSITY = STD_DEVIATION + 1;
+    public static final int EDGE_ORIENTATION = EDGE_DENSITY + 1;
+    public static final int AREA = EDGE_ORIENTATION + 1;
+    public static final int ASPECT_RATIO = AREA + 1;
+    public static final int HEIGHT = ASPECT_RATIO + 1;
+    public static final int WIDTH = HEIGHT + 1;
+    public static final int COMPLEXITY_SCORE = WIDTH + 1;
+    public static final int SYMMETRY_SCORE = COMPLEXITY_SCORE + 1;
+    
+    public static final int COLUMNS = SYMMETRY_SCORE + 1;
+    
+    private FeatureLayout() {
+    }
+    
+    public static void write(ClothFeatures features, float[] dst, int offset) {
+        List<Double> histogram = features.getColorHistogram();
+        int bins = Math.min(histogram.size(), HISTOGRAM_BINS);
+        for (int i = 0; i < bins; i++) {
+            dst[offset + HISTOGRAM + i] = value(histogram.get(i));
+        }
+        for (int i = bins; i < HISTOGRAM_BINS; i++) {
+            dst[offset + HISTOGRAM + i] = 0f;
+        }
+        
+        Map<String, Double> texture = features.getFabricTexture();
+        dst[offset + CONTRAST] = value(texture.get("contrast"));
+        dst[offset + HOMOGENEITY] = value(texture.get("homogeneity"));
+        dst[offset + MEAN_INTENSITY] = value(texture.get("mean_intensity"));
+        dst[offset + STD_DEVIATION] = value(texture.get("std_deviation"));
+        
+        List<Double> edges = features.getEdgeFeatures();
+        dst[offset + EDGE_DENSITY] = edges.size() > 0 ? value(edges.get(0)) : Float.NaN;
+        dst[offset + EDGE_ORIENTATION] = edges.size() > 1 ? value(edges.get(1)) : Float.NaN;
+        
+        Map<String, Double> dimensions = features.getDimensions();
+        dst[offset + AREA] = value(dimensions.get("area"));
+        dst[offset + ASPECT_RATIO] = value(dimensions.get("aspect_ratio"));
+        dst[offset + HEIGHT] = value(dimensions.get("height"));
+        dst[offset + WIDTH] = value(dimensions.get("width"));
+        
+        Map<String, Object> pattern = features.getPatternFeatures();
+        dst[offset + COMPLEXITY_SCORE] = value(pattern.get("complexity_score"));
+        dst[offset + SYMMETRY_SCORE] = value(pattern.get("symmetry_score"));
+    }
+    
+    public static void write(CompactClothFeatures features, float[] dst, int offset) {
+        float[] histogram = features.getHistogramFloats();
+        int bins = Math.min(histogram.length, HISTOGRAM_BINS);
+        System.arraycopy(histogram, 0, dst, offset + HISTOGRAM, bins);
+        for (int i = bins; i < HISTOGRAM_BINS; i++) {
+            dst[offset + HISTOGRAM + i] = 0f;
+        }
+        
+        dst[offset + CONTRAST] = (float) features.get(CompactClothFeatures.CONTRAST);
+        dst[offset + HOMOGENEITY] = (float) features.get(CompactClothFeatures.HOMOGENEITY);
+        dst[offset + MEAN_INTENSITY] = (float) features.get(CompactClothFeatures.MEAN_INTENSITY);
+        dst[offset + STD_DEVIATION] = (float) features.get(CompactClothFeatures.STD_DEVIATION);
+        
+        dst[offset + EDGE_DENSITY] = features.getEdgeCount() > 0 ? (float) features.getEdge(0) : Float.NaN;
+        dst[offset + EDGE_ORIENTATION] = features.getEdgeCount() > 1 ? (float) features.getEdge(1) : Float.NaN;
+        
+        dst[offset + AREA] = (float) features.get(CompactClothFeatures.AREA);
+        dst[offset + ASPECT_RATIO] = (float) features.get(CompactClothFeatures.ASPECT_RATIO);
+        dst[offset + HEIGHT] = (float) features.get(CompactClothFeatures.HEIGHT);
+        dst[offset + WIDTH] = (float) features.get(CompactClothFeatures.WIDTH);
+        
+        dst[offset + COMPLEXITY_SCORE] = (float) features.get(CompactClothFeatures.COMPLEXITY_SCORE);
+        dst[offset + SYMMETRY_SCORE] = (float) features.get(CompactClothFeatures.SYMMETRY_SCORE);
+    }
+    
+    public static float[] histogram(CompactClothFeatures features) {
+        float[] histogram = new float[HISTOGRAM_BINS];
+        float[] bins = features.getHistogramFloats();
+        System.arraycopy(bins, 0, histogram, 0, Math.min(bins.length, HISTOGRAM_BINS));
+        return histogram;
+    }
+    
+    public static float[] histogram(ClothFeatures features) {
+        float[] histogram = new float[HISTOGRAM_BINS];
+        List<Double> bins = features.getColorHistogram();
+        for (int i = 0; i < Math.min(bins.size(), HISTOGRAM_BINS); i++) {
+            histogram[i] = value(bins.get(i));
+        }
+        return histogram;
+    }
+    
+    public static float[] toRow(ClothFeatures features) {
+        float[] row = new float[COLUMNS];
+        write(features, row, 0);
+        return row;
+    }
+    
+    private static float value(Object value) {
+        return value instanceof Number ? ((Number) value).floatValue() : Float.NaN;
+    }
+}
@@ -0,0 +1,374 @@
+package com.clothauth.index;
+
+import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.CompactClothFeatures;
+import com.clothauth.storage.LocalStorageManager;
+import com.clothauth.storage.StorageListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * In-memory matrix holding the features of every stored cloth as
+ * contiguous float rows in FeatureLayout column order.
+ *
+ * Rows live in fixed-size blocks so the matrix can grow past the array size
+ * limit without copying. Scans run in parallel, one task per block, over
+ * plain float arrays. The index registers itself as a storage listener and
+ * stays in sync with stores and deletes; deleted rows are filled by moving
+ * the last row into the hole.
+ *
+ * When a snapshot file is configured the rows are loaded from a
+ * MappedFeatureStore written by {@link #saveSnapshot()}, and only cloths
+ * stored since the snapshot are read and parsed from storage. Every row is
+ * saved with the storage fingerprint of the features it was read from; a
+ * row whose fingerprint no longer matches was rewritten by another process
+ * (import, reextract, log replay) and is read again. Rows changed through
+ * storage events are saved without a fingerprint and read again on the
+ * next load.
+ */
+public class FeatureMatrixIndex implements StorageListener {
+    private static final Logger logger = LoggerFactory.getLogger(FeatureMatrixIndex.class);
+    private static final int STRIDE = FeatureLayout.COLUMNS;
+    private static final int BLOCK_ROWS = 4096;
+    
+    private final LocalStorageManager storageManager;
+    private final Path snapshotFile;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> rowsById = new HashMap<>();
+    private final List<float[]> blocks = new ArrayList<>();
+    private String[] ids = new String[BLOCK_ROWS];
+    private long[] fingerprints = new long[BLOCK_ROWS];
+    private int size;
+    private boolean loaded;
+    
+    public FeatureMatrixIndex(LocalStorageManager storageManager) {
+        this(storageManager, null);
+    }
+    
+    public FeatureMatrixIndex(LocalStorageManager storageManager, Path snapshotFile) {
+        this.storageManager = storageManager;
+        this.snapshotFile = snapshotFile;
+        storageManager.addStorageListener(this);
+    }
+    
+    /**
+     * Loads the features of every stored cloth. Safe to call more than once;
+     * only the first call reads storage.
+     */
+    public void load() {
+        lock.writeLock().lock();
+        try {
+            if (loaded) {
+                return;
+            }
+            long start = System.nanoTime();
+            List<String> clothIds = storageManager.getAllClothIds();
+            int mapped = loadSnapshot(clothIds);
+            for (String clothId : clothIds) {
+                if (rowsById.containsKey(clothId)) {
+                    continue;
+                }
+                // Taken before the read, so a write in between leaves a mismatch rather than a stale row
+                long fingerprint = storageManager.featuresFingerprint(clothId);
+                CompactClothFeatures features = storageManager.loadCompactFeatures(clothId);
+                if (features != null) {
+                    int row = rowFor(clothId);
+                    FeatureLayout.write(features, blocks.get(row / BLOCK_ROWS), (row % BLOCK_ROWS) * STRIDE);
+                    fingerprints[row] = fingerprint;
+                }
+            }
+            loaded = true;
+            logger.info("Loaded feature matrix index with {} rows ({} from snapshot, {} KB) in {} ms",
+                size, mapped, memoryBytes() / 1024, (System.nanoTime() - start) / 1_000_000);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Writes every row to the snapshot file so the next load can map it
+     * instead of parsing the stored features.
+     */
+    public void saveSnapshot() {
+        if (snapshotFile == null) {
+            return;
+        }
+        lock.readLock().lock();
+        try {
+            if (!loaded) {
+                return;
+            }
+            try (MappedFeatureStore.Writer writer = MappedFeatureStore.writer(snapshotFile)) {
+                for (int row = 0; row < size; row++) {
+                    writer.add(ids[row], fingerprints[row], blocks.get(row / BLOCK_ROWS), (row % BLOCK_ROWS) * STRIDE);
+                }
+            }
+            logger.info("Saved feature matrix snapshot with {} rows to {}", size, snapshotFile);
+        } catch (IOException e) {
+            logger.error("Failed to save feature matrix snapshot: {}", e.getMessage());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    public int size() {
+        load();
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    public boolean contains(String clothId) {
+        load();
+        lock.readLock().lock();
+        try {
+            return rowsById.containsKey(clothId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Copies the row of a cloth into a new array, or returns null if the
+     * cloth is not indexed.
+     */
+    public float[] getRow(String clothId) {
+        load();
+        lock.readLock().lock();
+        try {
+            Integer row = rowsById.get(clothId);
+            if (row == null) {
+                return null;
+            }
+            float[] copy = new float[STRIDE];
+            System.arraycopy(blocks.get(row / BLOCK_ROWS), (row % BLOCK_ROWS) * STRIDE, copy, 0, STRIDE);
+            return copy;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Scans every row and returns the k highest scoring ones, best first.
+     * One scorer is requested per block so scorers may keep scratch state.
+     */
+    public List<IndexHit> topK(Supplier<RowScorer> scorers, int k) {
+        load();
+        lock.readLock().lock();
+        try {
+            int blockCount = (size + BLOCK_ROWS - 1) / BLOCK_ROWS;
+            List<List<IndexHit>> partials = IntStream.range(0, blockCount)
+                .parallel()
+                .mapToObj(block -> scanBlock(block, scorers.get(), k))
+                .collect(Collectors.toList());
+            
+            List<IndexHit> hits = new ArrayList<>();
+            partials.forEach(hits::addAll);
+            hits.sort(Comparator.comparingDouble(IndexHit::getScore).reversed()
+                .thenComparing(IndexHit::getClothId));
+            return hits.size() > k ? new ArrayList<>(hits.subList(0, k)) : hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Nearest neighbours by squared Euclidean distance over the colour
+     * histogram columns. Hit scores are distances, smallest first.
+     */
+    public List<IndexHit> nearestByHistogram(float[] queryHistogram, int k) {
+        if (queryHistogram.length != FeatureLayout.HISTOGRAM_BINS) {
+            throw new IllegalArgumentException("Expected " + FeatureLayout.HISTOGRAM_BINS + " histogram bins, got " + queryHistogram.length);
+        }
+        List<IndexHit> hits = topK(() -> (data, offset) -> -squaredDistance(data, offset + FeatureLayout.HISTOGRAM, queryHistogram), k);
+        return hits.stream()
+            .map(hit -> new IndexHit(hit.getClothId(), -hit.getScore()))
+            .collect(Collectors.toList());
+    }
+    
+    public long memoryBytes() {
+        return (long) blocks.size() * BLOCK_ROWS * STRIDE * Float.BYTES;
+    }
+    
+    private List<IndexHit> scanBlock(int block, RowScorer scorer, int k) {
+        float[] data = blocks.get(block);
+        int first = block * BLOCK_ROWS;
+        int rows = Math.min(BLOCK_ROWS, size - first);
+        
+        // Primitive min-heap of the best k rows in this block
+        int[] heapRows = new int[k];
+        double[] heapScores = new double[k];
+        int heapSize = 0;
+        
+        for (int r = 0; r < rows; r++) {
+            double score = scorer.score(data, r * STRIDE);
+            if (Double.isNaN(score) || k == 0) {
+                continue;
+            }
+            if (heapSize < k) {
+                int i = heapSize++;
+                heapRows[i] = r;
+                heapScores[i] = score;
+                while (i > 0 && heapScores[(i - 1) >>> 1] > heapScores[i]) {
+                    int parent = (i - 1) >>> 1;
+                    swap(heapRows, heapScores, i, parent);
+                    i = parent;
+                }
+            } else if (score > heapScores[0]) {
+                heapRows[0] = r;
+                heapScores[0] = score;
+                int i = 0;
+                while (true) {
+                    int left = 2 * i + 1;
+                    if (left >= heapSize) {
+                        break;
+                    }
+                    int smallest = left + 1 < heapSize && heapScores[left + 1] < heapScores[left] ? left + 1 : left;
+                    if (heapScores[i] <= heapScores[smallest]) {
+                        break;
+                    }
+                    swap(heapRows, heapScores, i, smallest);
+                    i = smallest;
+                }
+            }
+        }
+        
+        List<IndexHit> hits = new ArrayList<>(heapSize);
+        for (int i = 0; i < heapSize; i++) {
+            hits.add(new IndexHit(ids[first + heapRows[i]], heapScores[i]));
+        }
+        return hits;
+    }
+    
+    private static float squaredDistance(float[] data, int offset, float[] query) {
+        float sum = 0f;
+        for (int i = 0; i < query.length; i++) {
+            float diff = data[offset + i] - query[i];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+    
+    private static void swap(int[] rows, double[] scores, int a, int b) {
+        int row = rows[a];
+        rows[a] = rows[b];
+        rows[b] = row;
+        double score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+    
+    @Override
+    public void onFeaturesStored(String clothId, ClothFeatures features) {
+        lock.writeLock().lock();
+        try {
+            // Before the first load the data is simply read from storage
+            if (loaded) {
+                put(clothId, features);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    @Override
+    public void onClothDeleted(String clothId) {
+        lock.writeLock().lock();
+        try {
+            if (loaded) {
+                remove(clothId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    private int loadSnapshot(List<String> clothIds) {
+        if (snapshotFile == null || !MappedFeatureStore.exists(snapshotFile)) {
+            return 0;
+        }
+        int mapped = 0;
+        int stale = 0;
+        try (MappedFeatureStore snapshot = MappedFeatureStore.open(snapshotFile)) {
+            // Rows of cloths deleted since the snapshot are skipped, stale rows are left to be read again
+            for (String clothId : clothIds) {
+                int source = snapshot.rowOf(clothId);
+                if (source < 0) {
+                    continue;
+                }
+                long fingerprint = storageManager.featuresFingerprint(clothId);
+                if (fingerprint == 0 || fingerprint != snapshot.fingerprint(source)) {
+                    stale++;
+                    continue;
+                }
+                int row = rowFor(clothId);
+                snapshot.copyRow(source, blocks.get(row / BLOCK_ROWS), (row % BLOCK_ROWS) * STRIDE);
+                fingerprints[row] = fingerprint;
+                mapped++;
+            }
+            if (stale > 0) {
+                logger.info("Reading {} feature matrix rows again that changed since the snapshot", stale);
+            }
+        } catch (IOException e) {
+            logger.warn("Ignoring feature matrix snapshot {}: {}", snapshotFile, e.getMessage());
+        }
+        return mapped;
+    }
+    
+    private void put(String clothId, ClothFeatures features) {
+        int row = rowFor(clothId);
+        FeatureLayout.write(features, blocks.get(row / BLOCK_ROWS), (row % BLOCK_ROWS) * STRIDE);
+        // Which write the event belongs to is unknown, so the next load reads the row again
+        fingerprints[row] = 0;
+    }
+    
+    private int rowFor(String clothId) {
+        Integer row = rowsById.get(clothId);
+        if (row == null) {
+            row = size++;
+            if (row / BLOCK_ROWS == blocks.size()) {
+                blocks.add(new float[BLOCK_ROWS * STRIDE]);
+            }
+            if (row == ids.length) {
+                ids = Arrays.copyOf(ids, ids.length * 2);
+                fingerprints = Arrays.copyOf(fingerprints, fingerprints.length * 2);
+            }
+            ids[row] = clothId;
+            rowsById.put(clothId, row);
+        }
+        return row;
+    }
+    
+    private void remove(String clothId) {
+        Integer row = rowsById.remove(clothId);
+        if (row == null) {
+            return;
+        }
+        int last = --size;
+        if (row != last) {
+            System.arraycopy(blocks.get(last / BLOCK_ROWS), (last % BLOCK_ROWS) * STRIDE,
+                blocks.get(row / BLOCK_ROWS), (row % BLOCK_ROWS) * STRIDE, STRIDE);
+            ids[row] = ids[last];
+            fingerprints[row] = fingerprints[last];
+            rowsById.put(ids[row], row);
+        }
+        ids[last] = null;
+        
+        // Drop a trailing block once it is empty
+        if (last % BLOCK_ROWS == 0 && blocks.size() > last / BLOCK_ROWS) {
+            blocks.remove(blocks.size() - 1);
+        }
+    }
+}
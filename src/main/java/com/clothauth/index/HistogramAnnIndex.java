@@ -0,0 +1,246 @@
+package com.clothauth.index;
+
+import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.CompactClothFeatures;
+import com.clothauth.storage.LocalStorageManager;
+import com.clothauth.storage.StorageListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Approximate nearest neighbour search over the colour histograms of all
+ * stored cloths, backed by an HnswIndex that is persisted to disk.
+ *
+ * At startup the saved graph is loaded and reconciled with the stored IDs:
+ * missing items are inserted and items that no longer exist are
+ * tombstoned, so only the difference is rebuilt. Next to the graph, a
+ * {@code .fp} file keeps the features fingerprint each item was inserted
+ * with; items whose stored features have another fingerprint since, or
+ * that were inserted through a storage event, are inserted again. Afterwards the graph is
+ * updated through storage events and saved again every
+ * {@code SAVE_INTERVAL} changes and on {@link #save()}. Once deletes and
+ * re-registrations leave more tombstones than half the live items, the
+ * graph is rebuilt without them and saved.
+ */
+public class HistogramAnnIndex implements StorageListener {
+    private static final Logger logger = LoggerFactory.getLogger(HistogramAnnIndex.class);
+    private static final String INDEX_FILE = "data/index/histogram.hnsw";
+    private static final int FINGERPRINT_MAGIC = 0x484E4650; // "HNFP"
+    private static final int FINGERPRINT_VERSION = 1;
+    private static final int SAVE_INTERVAL = 1000;
+    private static final double REBUILD_TOMBSTONE_RATIO = 0.5;
+    
+    // Tunable recall/latency parameters
+    private static final int M = Integer.getInteger("clothauth.hnsw.m", 16);
+    private static final int EF_CONSTRUCTION = Integer.getInteger("clothauth.hnsw.efConstruction", 200);
+    private static final int EF_SEARCH = Integer.getInteger("clothauth.hnsw.efSearch", 64);
+    
+    private final LocalStorageManager storageManager;
+    private final Path indexFile;
+    private final Path fingerprintFile;
+    // Features fingerprint per indexed item, 0 if unknown
+    private final Map<String, Long> fingerprints = new ConcurrentHashMap<>();
+    private final AtomicInteger unsavedChanges = new AtomicInteger();
+    private HnswIndex index;
+    
+    public HistogramAnnIndex(LocalStorageManager storageManager) {
+        this(storageManager, Paths.get(INDEX_FILE));
+    }
+    
+    public HistogramAnnIndex(LocalStorageManager storageManager, Path indexFile) {
+        this.storageManager = storageManager;
+        this.indexFile = indexFile;
+        this.fingerprintFile = indexFile.resolveSibling(indexFile.getFileName() + ".fp");
+        this.index = openIndex();
+        reconcile();
+        storageManager.addStorageListener(this);
+    }
+    
+    public List<IndexHit> nearest(ClothFeatures query, int k) {
+        return index.search(FeatureLayout.histogram(query), k);
+    }
+    
+    public HnswIndex getIndex() {
+        return index;
+    }
+    
+    public synchronized void save() {
+        try {
+            // Graph first: fingerprints saved with an older graph would vouch for vectors it lacks
+            index.save(indexFile);
+            saveFingerprints();
+            unsavedChanges.set(0);
+            logger.info("Saved histogram ANN index with {} items to {}", index.size(), indexFile);
+        } catch (IOException e) {
+            logger.error("Failed to save histogram ANN index: {}", e.getMessage());
+        }
+    }
+    
+    @Override
+    public void onFeaturesStored(String clothId, ClothFeatures features) {
+        index.insert(clothId, FeatureLayout.histogram(features));
+        fingerprints.put(clothId, 0L);
+        changed();
+    }
+    
+    @Override
+    public void onClothDeleted(String clothId) {
+        fingerprints.remove(clothId);
+        if (index.delete(clothId)) {
+            changed();
+        }
+    }
+    
+    private void changed() {
+        if (unsavedChanges.incrementAndGet() >= SAVE_INTERVAL || dropTombstonesIfNeeded()) {
+            save();
+        }
+    }
+    
+    private boolean tooManyTombstones() {
+        return index.tombstoneCount() > Math.max(1, index.size()) * REBUILD_TOMBSTONE_RATIO;
+    }
+    
+    /**
+     * @return true if the graph was rebuilt
+     */
+    private boolean dropTombstonesIfNeeded() {
+        if (!tooManyTombstones()) {
+            return false;
+        }
+        synchronized (this) {
+            // Another thread may have rebuilt while this one waited
+            if (!tooManyTombstones()) {
+                return false;
+            }
+            long start = System.nanoTime();
+            int tombstones = index.tombstoneCount();
+            index.rebuild();
+            logger.info("Rebuilt histogram ANN index to drop {} tombstones in {} ms",
+                tombstones, (System.nanoTime() - start) / 1_000_000);
+            return true;
+        }
+    }
+    
+    private HnswIndex openIndex() {
+        if (Files.exists(indexFile)) {
+            try {
+                long start = System.nanoTime();
+                HnswIndex loaded = HnswIndex.load(indexFile, EF_SEARCH);
+                if (loaded.getDimension() == FeatureLayout.HISTOGRAM_BINS) {
+                    loadFingerprints();
+                    logger.info("Loaded histogram ANN index with {} items in {} ms",
+                        loaded.size(), (System.nanoTime() - start) / 1_000_000);
+                    return loaded;
+                }
+                logger.warn("Histogram ANN index has dimension {}, rebuilding", loaded.getDimension());
+            } catch (IOException e) {
+                logger.warn("Could not load histogram ANN index, rebuilding: {}", e.getMessage());
+            }
+        }
+        return new HnswIndex(FeatureLayout.HISTOGRAM_BINS, M, EF_CONSTRUCTION, EF_SEARCH);
+    }
+    
+    /**
+     * Reads the fingerprints saved with the graph. Without them every item
+     * is inserted again.
+     */
+    private void loadFingerprints() {
+        if (!Files.exists(fingerprintFile)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(fingerprintFile), 1 << 16))) {
+            if (in.readInt() != FINGERPRINT_MAGIC) {
+                throw new IOException("Not a histogram fingerprint file: " + fingerprintFile);
+            }
+            int version = in.readInt();
+            if (version != FINGERPRINT_VERSION) {
+                throw new IOException("Unsupported histogram fingerprint version " + version);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String clothId = in.readUTF();
+                fingerprints.put(clothId, in.readLong());
+            }
+        } catch (IOException e) {
+            logger.warn("Could not load histogram fingerprints, inserting every item again: {}", e.getMessage());
+            fingerprints.clear();
+        }
+    }
+    
+    private void saveFingerprints() throws IOException {
+        Path temp = fingerprintFile.resolveSibling(fingerprintFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            Map<String, Long> entries = Map.copyOf(fingerprints);
+            out.writeInt(FINGERPRINT_MAGIC);
+            out.writeInt(FINGERPRINT_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        }
+        Files.move(temp, fingerprintFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    private void reconcile() {
+        long start = System.nanoTime();
+        Set<String> stored = new HashSet<>(storageManager.getAllClothIds());
+        Set<String> indexed = index.ids();
+        
+        fingerprints.keySet().retainAll(indexed);
+        
+        int removed = 0;
+        for (String clothId : indexed) {
+            if (!stored.contains(clothId)) {
+                index.delete(clothId);
+                fingerprints.remove(clothId);
+                removed++;
+            }
+        }
+        
+        int added = 0;
+        int changed = 0;
+        for (String clothId : stored) {
+            long fingerprint = storageManager.featuresFingerprint(clothId);
+            boolean known = indexed.contains(clothId);
+            if (known && fingerprint != 0 && fingerprint == fingerprints.getOrDefault(clothId, 0L)) {
+                continue;
+            }
+            CompactClothFeatures features = storageManager.loadCompactFeatures(clothId);
+            if (features != null) {
+                index.insert(clothId, FeatureLayout.histogram(features));
+                fingerprints.put(clothId, fingerprint);
+                if (known) {
+                    changed++;
+                } else {
+                    added++;
+                }
+            }
+        }
+        
+        boolean rebuilt = dropTombstonesIfNeeded();
+        
+        if (added > 0 || changed > 0 || removed > 0 || rebuilt) {
+            logger.info("Reconciled histogram ANN index: {} added, {} inserted again, {} removed in {} ms",
+                added, changed, removed, (System.nanoTime() - start) / 1_000_000);
+            save();
+        }
+    }
+}
@@ -0,0 +1,511 @@
+package com.clothauth.index;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Hierarchical navigable small world graph for approximate nearest
+ * neighbour search by squared Euclidean distance.
+ *
+ * Tuning: {@code m} is the number of links per node on the upper layers
+ * (twice that on layer 0), {@code efConstruction} the beam width while
+ * inserting and {@code efSearch} the beam width while querying. Larger
+ * values raise recall at the cost of latency and memory.
+ *
+ * Deleted items are tombstoned: they stay in the graph so it remains
+ * navigable but are never returned. Re-inserting an existing id tombstones
+ * the old node. {@link #rebuild()} drops tombstones by re-inserting the
+ * live nodes.
+ *
+ * On-disk format (big-endian, see {@link #save(Path)}): magic "HNSW",
+ * format version, dimension, m, efConstruction, node count, entry point,
+ * max level, then per node its id, deleted flag, level, vector and the
+ * neighbour lists of every level.
+ */
+public class HnswIndex {
+    private static final int MAGIC = 0x484E5357; // "HNSW"
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_LEVEL_CAP = 16;
+
+    private final int dimension;
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private final double levelMultiplier;
+    private volatile int efSearch;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<Node> nodes = new ArrayList<>();
+    private final Map<String, Integer> nodeById = new HashMap<>();
+    private final ThreadLocal<VisitedSet> visitedSets = ThreadLocal.withInitial(VisitedSet::new);
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    private int tombstones;
+
+    private static final class Node {
+        final String id;
+        final float[] vector;
+        final int[][] neighbours;
+        final int[] counts;
+        boolean deleted;
+
+        Node(String id, float[] vector, int level, int m, int maxM0) {
+            this.id = id;
+            this.vector = vector;
+            this.neighbours = new int[level + 1][];
+            this.counts = new int[level + 1];
+            for (int l = 0; l <= level; l++) {
+                neighbours[l] = new int[l == 0 ? maxM0 : m];
+            }
+        }
+
+        int level() {
+            return neighbours.length - 1;
+        }
+    }
+
+    public HnswIndex(int dimension, int m, int efConstruction, int efSearch) {
+        if (dimension < 1 || m < 2 || efConstruction < 1 || efSearch < 1) {
+            throw new IllegalArgumentException("Invalid HNSW parameters: dimension=" + dimension +
+                ", m=" + m + ", efConstruction=" + efConstruction + ", efSearch=" + efSearch);
+        }
+        this.dimension = dimension;
+        this.m = m;
+        this.maxM0 = 2 * m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.levelMultiplier = 1.0 / Math.log(m);
+    }
+
+    public int getDimension() { return dimension; }
+    public int getM() { return m; }
+    public int getEfConstruction() { return efConstruction; }
+    public int getEfSearch() { return efSearch; }
+    public void setEfSearch(int efSearch) { this.efSearch = Math.max(1, efSearch); }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return nodeById.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int tombstoneCount() {
+        lock.readLock().lock();
+        try {
+            return tombstones;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(String id) {
+        lock.readLock().lock();
+        try {
+            return nodeById.containsKey(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Set<String> ids() {
+        lock.readLock().lock();
+        try {
+            return new HashSet<>(nodeById.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void insert(String id, float[] vector) {
+        if (vector.length != dimension) {
+            throw new IllegalArgumentException("Expected vector of " + dimension + " values, got " + vector.length);
+        }
+        lock.writeLock().lock();
+        try {
+            Integer existing = nodeById.remove(id);
+            if (existing != null) {
+                markDeleted(existing);
+            }
+
+            int level = randomLevel(id);
+            int index = nodes.size();
+            Node node = new Node(id, vector.clone(), level, m, maxM0);
+            nodes.add(node);
+            nodeById.put(id, index);
+
+            if (entryPoint < 0) {
+                entryPoint = index;
+                maxLevel = level;
+                return;
+            }
+
+            int current = entryPoint;
+            for (int l = maxLevel; l > level; l--) {
+                current = greedyClosest(node.vector, current, l);
+            }
+
+            for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+                List<Candidate> candidates = searchLayer(node.vector, current, efConstruction, l);
+                int maxLinks = l == 0 ? maxM0 : m;
+                List<Candidate> selected = selectNeighbours(candidates, m);
+                for (Candidate neighbour : selected) {
+                    link(node, l, neighbour.node);
+                    link(nodes.get(neighbour.node), l, index);
+                    if (nodes.get(neighbour.node).counts[l] > maxLinks) {
+                        shrink(neighbour.node, l, maxLinks);
+                    }
+                }
+                current = candidates.get(0).node;
+            }
+
+            if (level > maxLevel) {
+                maxLevel = level;
+                entryPoint = index;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean delete(String id) {
+        lock.writeLock().lock();
+        try {
+            Integer index = nodeById.remove(id);
+            if (index == null) {
+                return false;
+            }
+            markDeleted(index);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public List<IndexHit> search(float[] query, int k) {
+        if (query.length != dimension) {
+            throw new IllegalArgumentException("Expected vector of " + dimension + " values, got " + query.length);
+        }
+        lock.readLock().lock();
+        try {
+            if (entryPoint < 0 || k < 1) {
+                return new ArrayList<>();
+            }
+            int current = entryPoint;
+            for (int l = maxLevel; l > 0; l--) {
+                current = greedyClosest(query, current, l);
+            }
+            List<Candidate> candidates = searchLayer(query, current, Math.max(efSearch, k), 0);
+
+            List<IndexHit> hits = new ArrayList<>(k);
+            for (Candidate candidate : candidates) {
+                Node node = nodes.get(candidate.node);
+                if (!node.deleted) {
+                    hits.add(new IndexHit(node.id, candidate.distance));
+                    if (hits.size() == k) {
+                        break;
+                    }
+                }
+            }
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuilds the graph from the live nodes, dropping all tombstones.
+     */
+    public void rebuild() {
+        lock.writeLock().lock();
+        try {
+            List<Node> live = new ArrayList<>();
+            for (Node node : nodes) {
+                if (!node.deleted) {
+                    live.add(node);
+                }
+            }
+            nodes.clear();
+            nodeById.clear();
+            entryPoint = -1;
+            maxLevel = -1;
+            tombstones = 0;
+            for (Node node : live) {
+                insert(node.id, node.vector);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void markDeleted(int index) {
+        Node node = nodes.get(index);
+        if (!node.deleted) {
+            node.deleted = true;
+            tombstones++;
+        }
+    }
+
+    private int randomLevel(String id) {
+        // Derived from the id so a rebuilt graph gets the same level layout
+        double uniform = 1.0 - new Random(id.hashCode() * 0x9E3779B97F4A7C15L).nextDouble();
+        return Math.min(MAX_LEVEL_CAP, (int) (-Math.log(uniform) * levelMultiplier));
+    }
+
+    private int greedyClosest(float[] query, int start, int level) {
+        int current = start;
+        float currentDistance = distance(query, nodes.get(current).vector);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            Node node = nodes.get(current);
+            int[] links = node.neighbours[level];
+            for (int i = 0; i < node.counts[level]; i++) {
+                float d = distance(query, nodes.get(links[i]).vector);
+                if (d < currentDistance) {
+                    currentDistance = d;
+                    current = links[i];
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Beam search on one layer; returns up to ef candidates, closest first.
+     */
+    private List<Candidate> searchLayer(float[] query, int entry, int ef, int level) {
+        VisitedSet visited = visitedSets.get();
+        visited.reset(nodes.size());
+
+        PriorityQueue<Candidate> frontier = new PriorityQueue<>(Comparator.comparingDouble(c -> c.distance));
+        PriorityQueue<Candidate> results = new PriorityQueue<>(Comparator.comparingDouble((Candidate c) -> c.distance).reversed());
+
+        Candidate start = new Candidate(entry, distance(query, nodes.get(entry).vector));
+        visited.add(entry);
+        frontier.add(start);
+        results.add(start);
+
+        while (!frontier.isEmpty()) {
+            Candidate closest = frontier.poll();
+            if (closest.distance > results.peek().distance && results.size() >= ef) {
+                break;
+            }
+            Node node = nodes.get(closest.node);
+            int[] links = node.neighbours[level];
+            for (int i = 0; i < node.counts[level]; i++) {
+                int neighbour = links[i];
+                if (!visited.add(neighbour)) {
+                    continue;
+                }
+                float d = distance(query, nodes.get(neighbour).vector);
+                if (results.size() < ef || d < results.peek().distance) {
+                    Candidate candidate = new Candidate(neighbour, d);
+                    frontier.add(candidate);
+                    results.add(candidate);
+                    if (results.size() > ef) {
+                        results.poll();
+                    }
+                }
+            }
+        }
+
+        List<Candidate> sorted = new ArrayList<>(results);
+        sorted.sort(Comparator.comparingDouble(c -> c.distance));
+        return sorted;
+    }
+
+    /**
+     * Neighbour selection heuristic: prefer candidates that are closer to the
+     * new node than to any neighbour already selected, then top up with the
+     * closest remaining candidates.
+     */
+    private List<Candidate> selectNeighbours(List<Candidate> candidates, int count) {
+        List<Candidate> selected = new ArrayList<>(count);
+        List<Candidate> skipped = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            if (selected.size() == count) {
+                break;
+            }
+            float[] vector = nodes.get(candidate.node).vector;
+            boolean diverse = true;
+            for (Candidate chosen : selected) {
+                if (distance(vector, nodes.get(chosen.node).vector) < candidate.distance) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                selected.add(candidate);
+            } else {
+                skipped.add(candidate);
+            }
+        }
+        for (int i = 0; i < skipped.size() && selected.size() < count; i++) {
+            selected.add(skipped.get(i));
+        }
+        return selected;
+    }
+
+    private void link(Node node, int level, int target) {
+        int[] links = node.neighbours[level];
+        if (node.counts[level] == links.length) {
+            node.neighbours[level] = Arrays.copyOf(links, links.length + 1);
+        }
+        node.neighbours[level][node.counts[level]++] = target;
+    }
+
+    private void shrink(int index, int level, int maxLinks) {
+        Node node = nodes.get(index);
+        List<Candidate> candidates = new ArrayList<>(node.counts[level]);
+        for (int i = 0; i < node.counts[level]; i++) {
+            int neighbour = node.neighbours[level][i];
+            candidates.add(new Candidate(neighbour, distance(node.vector, nodes.get(neighbour).vector)));
+        }
+        candidates.sort(Comparator.comparingDouble(c -> c.distance));
+        List<Candidate> kept = selectNeighbours(candidates, maxLinks);
+
+        int[] links = new int[maxLinks];
+        for (int i = 0; i < kept.size(); i++) {
+            links[i] = kept.get(i).node;
+        }
+        node.neighbours[level] = links;
+        node.counts[level] = kept.size();
+    }
+
+    private static float distance(float[] a, float[] b) {
+        float sum = 0f;
+        for (int i = 0; i < a.length; i++) {
+            float diff = a[i] - b[i];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    public void save(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        lock.readLock().lock();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(dimension);
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(nodes.size());
+            out.writeInt(entryPoint);
+            out.writeInt(maxLevel);
+            for (Node node : nodes) {
+                out.writeUTF(node.id);
+                out.writeBoolean(node.deleted);
+                out.writeByte(node.level());
+                for (float value : node.vector) {
+                    out.writeFloat(value);
+                }
+                for (int l = 0; l <= node.level(); l++) {
+                    out.writeShort(node.counts[l]);
+                    for (int i = 0; i < node.counts[l]; i++) {
+                        out.writeInt(node.neighbours[l][i]);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static HnswIndex load(Path file, int efSearch) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an HNSW index file: " + file);
+            }
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported HNSW index version " + version + " in " + file);
+            }
+            HnswIndex index = new HnswIndex(in.readInt(), in.readInt(), in.readInt(), efSearch);
+            int count = in.readInt();
+            index.entryPoint = in.readInt();
+            index.maxLevel = in.readInt();
+            for (int n = 0; n < count; n++) {
+                String id = in.readUTF();
+                boolean deleted = in.readBoolean();
+                int level = in.readByte();
+                float[] vector = new float[index.dimension];
+                for (int i = 0; i < vector.length; i++) {
+                    vector[i] = in.readFloat();
+                }
+                Node node = new Node(id, vector, level, index.m, index.maxM0);
+                for (int l = 0; l <= level; l++) {
+                    int links = in.readShort();
+                    if (links > node.neighbours[l].length) {
+                        node.neighbours[l] = new int[links];
+                    }
+                    for (int i = 0; i < links; i++) {
+                        node.neighbours[l][i] = in.readInt();
+                    }
+                    node.counts[l] = links;
+                }
+                node.deleted = deleted;
+                index.nodes.add(node);
+                if (deleted) {
+                    index.tombstones++;
+                } else {
+                    index.nodeById.put(id, n);
+                }
+            }
+            return index;
+        }
+    }
+
+    private static final class Candidate {
+        final int node;
+        final float distance;
+
+        Candidate(int node, float distance) {
+            this.node = node;
+            this.distance = distance;
+        }
+    }
+
+    /**
+     * Epoch-stamped visited marks, reused per thread to avoid allocating a
+     * set for every search.
+     */
+    private static final class VisitedSet {
+        private int[] marks = new int[0];
+        private int epoch;
+
+        void reset(int size) {
+            if (marks.length < size) {
+                marks = new int[Math.max(size, marks.length * 2)];
+                epoch = 0;
+            }
+            if (++epoch == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                epoch = 1;
+            }
+        }
+
+        boolean add(int node) {
+            if (marks[node] == epoch) {
+                return false;
+            }
+            marks[node] = epoch;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.clothauth.index;
+
+import com.clothauth.model.ClothIdentity;
+import com.clothauth.storage.LocalStorageManager;
+import com.clothauth.storage.StorageListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the SHA-256 of each registered image file to its cloth ID, so an
+ * image that is submitted again can be recognised before any extraction.
+ *
+ * The map is saved to disk on {@link #save()} and loaded at startup, where
+ * it is reconciled with the stored IDs: only identities that are not in the
+ * saved map, or whose identity fingerprint changed since, are read. The file is deleted once loaded and written again on
+ * a clean shutdown, so after a crash the index is rebuilt from all
+ * identities. Afterwards it is kept in sync through storage events.
+ * Identities registered before digests were recorded are not indexed.
+ *
+ * On-disk format (big-endian): magic "IDGX", format version, entry count,
+ * then per entry the cloth ID, the digest ("" if none), whether the cloth
+ * owns the digest and the identity fingerprint it was read with (0 if it
+ * came from a storage event).
+ */
+public class ImageDigestIndex implements StorageListener {
+    private static final Logger logger = LoggerFactory.getLogger(ImageDigestIndex.class);
+    private static final String INDEX_FILE = "data/index/image-digests.idx";
+    private static final int MAGIC = 0x49444758; // "IDGX"
+    private static final int FORMAT_VERSION = 2;
+    private static final String NO_DIGEST = "";
+    
+    private final LocalStorageManager storageManager;
+    private final Path indexFile;
+    private final Map<String, String> clothIdsByDigest = new ConcurrentHashMap<>();
+    private final Map<String, String> digestsByClothId = new ConcurrentHashMap<>();
+    private final Map<String, Long> fingerprints = new ConcurrentHashMap<>();
+    
+    public ImageDigestIndex(LocalStorageManager storageManager) {
+        this(storageManager, Paths.get(INDEX_FILE));
+    }
+    
+    public ImageDigestIndex(LocalStorageManager storageManager, Path indexFile) {
+        this.storageManager = storageManager;
+        this.indexFile = indexFile;
+        load();
+        reconcile();
+        storageManager.addStorageListener(this);
+    }
+    
+    /**
+     * @return the cloth registered from an image with this digest, or null
+     */
+    public String find(String imageDigest) {
+        return clothIdsByDigest.get(imageDigest);
+    }
+    
+    public int size() {
+        return clothIdsByDigest.size();
+    }
+    
+    public synchronized void save() {
+        try {
+            Path parent = indexFile.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+                Map<String, String> entries = Map.copyOf(digestsByClothId);
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, String> entry : entries.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(entry.getValue());
+                    out.writeBoolean(entry.getKey().equals(clothIdsByDigest.get(entry.getValue())));
+                    out.writeLong(fingerprints.getOrDefault(entry.getKey(), 0L));
+                }
+            }
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Saved image digest index with {} entries to {}", clothIdsByDigest.size(), indexFile);
+        } catch (IOException e) {
+            logger.error("Failed to save image digest index: {}", e.getMessage());
+        }
+    }
+    
+    @Override
+    public void onIdentityStored(String clothId, ClothIdentity identity) {
+        put(clothId, identity.getImageDigest());
+        fingerprints.put(clothId, 0L);
+    }
+    
+    @Override
+    public void onClothDeleted(String clothId) {
+        fingerprints.remove(clothId);
+        String digest = digestsByClothId.remove(clothId);
+        if (digest != null) {
+            clothIdsByDigest.remove(digest, clothId);
+        }
+    }
+    
+    private void put(String clothId, String digest) {
+        if (digest == null) {
+            digest = NO_DIGEST;
+        }
+        String previous = digestsByClothId.put(clothId, digest);
+        if (previous != null && !previous.equals(digest)) {
+            clothIdsByDigest.remove(previous, clothId);
+        }
+        if (!digest.equals(NO_DIGEST)) {
+            // The first cloth registered from an image stays its owner
+            clothIdsByDigest.putIfAbsent(digest, clothId);
+        }
+    }
+    
+    private void load() {
+        if (!Files.exists(indexFile)) {
+            return;
+        }
+        long start = System.nanoTime();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an image digest index file: " + indexFile);
+            }
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported image digest index version " + version);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String clothId = in.readUTF();
+                String digest = in.readUTF();
+                digestsByClothId.put(clothId, digest);
+                if (in.readBoolean()) {
+                    clothIdsByDigest.put(digest, clothId);
+                }
+                fingerprints.put(clothId, in.readLong());
+            }
+            logger.info("Loaded image digest index with {} entries in {} ms",
+                clothIdsByDigest.size(), (System.nanoTime() - start) / 1_000_000);
+        } catch (IOException e) {
+            logger.warn("Could not load image digest index, rebuilding: {}", e.getMessage());
+            digestsByClothId.clear();
+            clothIdsByDigest.clear();
+            fingerprints.clear();
+        }
+        try {
+            // Only a clean shutdown writes it again; until then the stored identities are authoritative
+            Files.delete(indexFile);
+        } catch (IOException e) {
+            logger.warn("Could not remove image digest index, rebuilding: {}", e.getMessage());
+            digestsByClothId.clear();
+            clothIdsByDigest.clear();
+            fingerprints.clear();
+        }
+    }
+    
+    private void reconcile() {
+        long start = System.nanoTime();
+        Set<String> stored = new HashSet<>(storageManager.getAllClothIds());
+        
+        int removed = 0;
+        for (String clothId : digestsByClothId.keySet()) {
+            if (!stored.contains(clothId)) {
+                onClothDeleted(clothId);
+                removed++;
+            }
+        }
+        
+        int added = 0;
+        int changed = 0;
+        int legacy = 0;
+        for (String clothId : stored) {
+            long fingerprint = storageManager.identityFingerprint(clothId);
+            boolean known = digestsByClothId.containsKey(clothId);
+            if (known && fingerprint != 0 && fingerprint == fingerprints.getOrDefault(clothId, 0L)) {
+                continue;
+            }
+            ClothIdentity identity = storageManager.loadClothIdentity(clothId);
+            if (identity == null) {
+                continue;
+            }
+            put(clothId, identity.getImageDigest());
+            fingerprints.put(clothId, fingerprint);
+            if (identity.getImageDigest() == null) {
+                legacy++;
+            } else if (known) {
+                changed++;
+            } else {
+                added++;
+            }
+        }
+        
+        if (added > 0 || changed > 0 || removed > 0 || legacy > 0) {
+            logger.info("Reconciled image digest index: {} added, {} read again ({} identities without digest), {} removed in {} ms",
+                added, changed, legacy, removed, (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+}
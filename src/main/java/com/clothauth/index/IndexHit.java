@@ -0,0 +1,14 @@
+package com.clothauth.index;
+
+public class IndexHit {
+    private final String clothId;
+    private final double score;
+    
+    public IndexHit(String clothId, double score) {
+        this.clothId = clothId;
+        this.score = score;
+    }
+    
+    public String getClothId() { return clothId; }
+    public double getScore() { return score; }
+}
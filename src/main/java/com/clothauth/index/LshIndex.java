@@ -0,0 +1,318 @@
+package com.clothauth.index;
+
+import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.ClothIdentity;
+import com.clothauth.model.CompactClothFeatures;
+import com.clothauth.storage.LocalStorageManager;
+import com.clothauth.storage.StorageListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Banded LSH table over the SimHash signatures of all stored cloths. The
+ * 64 signature bits are split into {@code bands} bands; two cloths become
+ * candidates when all bits of at least one band agree. A lookup therefore
+ * probes one bucket per band instead of scanning the catalogue, and the
+ * candidates are then ranked by the Hamming distance of the full signature.
+ * A cloth fewer than {@code bands} bits away always shares a band with the
+ * query; more distant ones are found with falling probability.
+ *
+ * The signatures are saved to disk on {@link #save()}. At startup the saved
+ * signatures are loaded, the band buckets are filled from them in memory
+ * and only cloths that are not in the file, or whose identity fingerprint
+ * changed since, are read from storage:
+ * identities written before signatures existed are hashed from their
+ * stored features. The file is deleted once loaded and written again on a
+ * clean shutdown, so after a crash every identity is read again.
+ * Afterwards the table follows storage events.
+ *
+ * On-disk format (big-endian): magic "LSHX", format version, entry count,
+ * then per entry the cloth ID, its signature and the identity fingerprint
+ * it was read with (0 if it came from a storage event).
+ */
+public class LshIndex implements StorageListener {
+    private static final Logger logger = LoggerFactory.getLogger(LshIndex.class);
+    private static final int DEFAULT_BANDS = 8;
+    private static final String INDEX_FILE = "data/index/lsh.sig";
+    private static final int MAGIC = 0x4C534858; // "LSHX"
+    private static final int FORMAT_VERSION = 2;
+    
+    // More bands find more distant candidates at the cost of larger buckets
+    private static final int BANDS = Integer.getInteger("clothauth.lsh.bands", DEFAULT_BANDS);
+    private static final int MAX_DISTANCE = Integer.getInteger("clothauth.lsh.maxDistance", 12);
+    
+    private final LocalStorageManager storageManager;
+    private final Path indexFile;
+    private final int bands;
+    private final int rowsPerBand;
+    private final long bandMask;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Long> signatures = new HashMap<>();
+    private final Map<String, Long> fingerprints = new HashMap<>();
+    private final List<Map<Long, Set<String>>> buckets = new ArrayList<>();
+    
+    public LshIndex(LocalStorageManager storageManager) {
+        this(storageManager, Paths.get(INDEX_FILE), BANDS);
+    }
+    
+    public LshIndex(LocalStorageManager storageManager, Path indexFile, int bands) {
+        if (bands < 1 || SimHash.BITS % bands != 0) {
+            logger.warn("LSH band count {} does not divide {} bits, using {}", bands, SimHash.BITS, DEFAULT_BANDS);
+            bands = DEFAULT_BANDS;
+        }
+        this.storageManager = storageManager;
+        this.indexFile = indexFile;
+        this.bands = bands;
+        this.rowsPerBand = SimHash.BITS / bands;
+        this.bandMask = rowsPerBand == 64 ? -1L : (1L << rowsPerBand) - 1;
+        for (int band = 0; band < bands; band++) {
+            buckets.add(new HashMap<>());
+        }
+        build();
+        storageManager.addStorageListener(this);
+    }
+    
+    public List<IndexHit> candidates(ClothFeatures query) {
+        return candidates(SimHash.signature(query), MAX_DISTANCE);
+    }
+    
+    /**
+     * Cloths sharing a band bucket with the signature and at most
+     * {@code maxDistance} bits away, nearest first. The score of each hit is
+     * the Hamming distance.
+     */
+    public List<IndexHit> candidates(long signature, int maxDistance) {
+        List<IndexHit> hits = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            Set<String> seen = new HashSet<>();
+            for (int band = 0; band < bands; band++) {
+                Set<String> bucket = buckets.get(band).get(bandKey(signature, band));
+                if (bucket == null) {
+                    continue;
+                }
+                for (String clothId : bucket) {
+                    if (seen.add(clothId)) {
+                        int distance = SimHash.distance(signature, signatures.get(clothId));
+                        if (distance <= maxDistance) {
+                            hits.add(new IndexHit(clothId, distance));
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        hits.sort(Comparator.comparingDouble(IndexHit::getScore));
+        return hits;
+    }
+    
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return signatures.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    public int getBands() {
+        return bands;
+    }
+    
+    public void save() {
+        lock.readLock().lock();
+        try {
+            Path parent = indexFile.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(signatures.size());
+                for (Map.Entry<String, Long> entry : signatures.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue());
+                    out.writeLong(fingerprints.getOrDefault(entry.getKey(), 0L));
+                }
+            }
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Saved LSH index with {} signatures to {}", signatures.size(), indexFile);
+        } catch (IOException e) {
+            logger.error("Failed to save LSH index: {}", e.getMessage());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public void onIdentityStored(String clothId, ClothIdentity identity) {
+        Long signature = signatureOf(clothId, identity);
+        if (signature != null) {
+            lock.writeLock().lock();
+            try {
+                put(clothId, signature, 0);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+    
+    @Override
+    public void onClothDeleted(String clothId) {
+        lock.writeLock().lock();
+        try {
+            remove(clothId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    private void build() {
+        long start = System.nanoTime();
+        int loaded = 0;
+        int read = 0;
+        int computed = 0;
+        lock.writeLock().lock();
+        try {
+            loaded = load();
+            Set<String> stored = new HashSet<>(storageManager.getAllClothIds());
+            for (String clothId : new ArrayList<>(signatures.keySet())) {
+                if (!stored.contains(clothId)) {
+                    remove(clothId);
+                }
+            }
+            for (String clothId : stored) {
+                long fingerprint = storageManager.identityFingerprint(clothId);
+                if (signatures.containsKey(clothId) && fingerprint != 0
+                        && fingerprint == fingerprints.getOrDefault(clothId, 0L)) {
+                    continue;
+                }
+                ClothIdentity identity = storageManager.loadClothIdentity(clothId);
+                if (identity == null) {
+                    continue;
+                }
+                read++;
+                if (identity.getLshSignature() == null) {
+                    computed++;
+                }
+                Long signature = signatureOf(clothId, identity);
+                if (signature != null) {
+                    put(clothId, signature, fingerprint);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        logger.info("Built LSH index with {} signatures in {} bands ({} loaded, {} read, {} computed from features) in {} ms",
+            signatures.size(), bands, loaded, read, computed, (System.nanoTime() - start) / 1_000_000);
+    }
+    
+    /**
+     * Loads the saved signatures into the table and removes the file.
+     *
+     * @return the number of signatures loaded
+     */
+    private int load() {
+        if (!Files.exists(indexFile)) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an LSH index file: " + indexFile);
+            }
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported LSH index version " + version);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                put(in.readUTF(), in.readLong(), in.readLong());
+            }
+        } catch (IOException e) {
+            logger.warn("Could not load LSH index, rebuilding: {}", e.getMessage());
+            clear();
+        }
+        try {
+            // Only a clean shutdown writes it again; until then the stored identities are authoritative
+            Files.delete(indexFile);
+        } catch (IOException e) {
+            logger.warn("Could not remove LSH index, rebuilding: {}", e.getMessage());
+            clear();
+        }
+        return signatures.size();
+    }
+    
+    private void clear() {
+        signatures.clear();
+        fingerprints.clear();
+        for (Map<Long, Set<String>> table : buckets) {
+            table.clear();
+        }
+    }
+    
+    private Long signatureOf(String clothId, ClothIdentity identity) {
+        if (identity.getLshSignature() != null) {
+            try {
+                return SimHash.parseHex(identity.getLshSignature());
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid LSH signature on cloth {}, recomputing", clothId);
+            }
+        }
+        CompactClothFeatures features = storageManager.loadCompactFeatures(clothId);
+        return features != null ? SimHash.signature(features) : null;
+    }
+    
+    private void put(String clothId, long signature, long fingerprint) {
+        remove(clothId);
+        signatures.put(clothId, signature);
+        fingerprints.put(clothId, fingerprint);
+        for (int band = 0; band < bands; band++) {
+            buckets.get(band).computeIfAbsent(bandKey(signature, band), key -> new HashSet<>()).add(clothId);
+        }
+    }
+    
+    private void remove(String clothId) {
+        Long signature = signatures.remove(clothId);
+        fingerprints.remove(clothId);
+        if (signature == null) {
+            return;
+        }
+        for (int band = 0; band < bands; band++) {
+            Map<Long, Set<String>> table = buckets.get(band);
+            long key = bandKey(signature, band);
+            Set<String> bucket = table.get(key);
+            if (bucket != null) {
+                bucket.remove(clothId);
+                if (bucket.isEmpty()) {
+                    table.remove(key);
+                }
+            }
+        }
+    }
+    
+    private long bandKey(long signature, int band) {
+        return (signature >>> (band * rowsPerBand)) & bandMask;
+    }
+}
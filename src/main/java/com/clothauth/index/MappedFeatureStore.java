@@ -0,0 +1,383 @@
+package com.clothauth.index;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only feature file opened with {@code FileChannel.map}. Rows are
+ * stored as little-endian floats in FeatureLayout column order, followed by
+ * the storage fingerprint of every row as a little-endian long and a table
+ * with the cloth ID of every row.
+ *
+ * Values are read through {@link FeatureView} flyweights straight from the
+ * mapping, so walking the whole catalogue allocates nothing per cloth and is
+ * bounded by the page cache instead of the heap. Files larger than 2 GB are
+ * mapped in several chunks split on row boundaries.
+ *
+ * Each write creates a new generation {@code <name>.<n>} and then switches
+ * the pointer file {@code <name>.current} to it, so a file that is still
+ * mapped is never replaced or deleted in place, which Windows refuses.
+ * Older generations are removed once they can be; a plain {@code <name>}
+ * from before generations is still opened while there is no pointer.
+ */
+public final class MappedFeatureStore implements Closeable {
+    private static final int MAGIC = 0x434C464D; // "CLFM"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 32;
+    private static final int ROW_BYTES = FeatureLayout.COLUMNS * Float.BYTES;
+    private static final int CHUNK_ROWS = Integer.MAX_VALUE / ROW_BYTES;
+
+    private final Path file;
+    private final FloatBuffer[] chunks;
+    private final LongBuffer fingerprints;
+    private final String[] ids;
+    private final Map<String, Integer> rowsById;
+
+    private MappedFeatureStore(Path file, FloatBuffer[] chunks, LongBuffer fingerprints, String[] ids) {
+        this.file = file;
+        this.chunks = chunks;
+        this.fingerprints = fingerprints;
+        this.ids = ids;
+        this.rowsById = new HashMap<>(ids.length * 2);
+        for (int row = 0; row < ids.length; row++) {
+            rowsById.put(ids[row], row);
+        }
+    }
+
+    /**
+     * @return true if a feature file was written under this name
+     */
+    public static boolean exists(Path file) {
+        return Files.exists(pointerFile(file)) || Files.exists(file);
+    }
+
+    /**
+     * Opens the current generation of the feature file.
+     */
+    public static MappedFeatureStore open(Path file) throws IOException {
+        long generation = currentGeneration(file);
+        return openFile(generation > 0 ? generationFile(file, generation) : file);
+    }
+
+    private static MappedFeatureStore openFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Not a mapped feature file or unsupported version: " + file);
+            }
+            if (header.getInt(8) != FeatureLayout.COLUMNS) {
+                throw new IOException("Mapped feature file has " + header.getInt(8) + " columns, expected " + FeatureLayout.COLUMNS);
+            }
+            int rows = header.getInt(12);
+            long idTableOffset = header.getLong(16);
+            long fingerprintOffset = HEADER_BYTES + (long) rows * ROW_BYTES;
+            if (idTableOffset != fingerprintOffset + (long) rows * Long.BYTES || idTableOffset > channel.size()) {
+                throw new IOException("Mapped feature file is truncated: " + file);
+            }
+
+            FloatBuffer[] chunks = new FloatBuffer[(rows + CHUNK_ROWS - 1) / CHUNK_ROWS];
+            for (int i = 0; i < chunks.length; i++) {
+                int chunkRows = Math.min(CHUNK_ROWS, rows - i * CHUNK_ROWS);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+                    HEADER_BYTES + (long) i * CHUNK_ROWS * ROW_BYTES, (long) chunkRows * ROW_BYTES);
+                chunks[i] = mapped.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+
+            LongBuffer fingerprints = channel.map(FileChannel.MapMode.READ_ONLY, fingerprintOffset, (long) rows * Long.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            ByteBuffer idTable = channel.map(FileChannel.MapMode.READ_ONLY, idTableOffset, channel.size() - idTableOffset);
+            String[] ids = new String[rows];
+            byte[] scratch = new byte[256];
+            for (int row = 0; row < rows; row++) {
+                int length = idTable.getShort() & 0xFFFF;
+                if (scratch.length < length) {
+                    scratch = new byte[length];
+                }
+                idTable.get(scratch, 0, length);
+                ids[row] = new String(scratch, 0, length, StandardCharsets.UTF_8);
+            }
+            return new MappedFeatureStore(file, chunks, fingerprints, ids);
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public String clothId(int row) {
+        return ids[row];
+    }
+
+    /**
+     * @return the storage fingerprint the row was written with, 0 if unknown
+     */
+    public long fingerprint(int row) {
+        return fingerprints.get(row);
+    }
+
+    /**
+     * @return the row of a cloth, or -1 if it is not in the file
+     */
+    public int rowOf(String clothId) {
+        Integer row = rowsById.get(clothId);
+        return row != null ? row : -1;
+    }
+
+    /**
+     * Creates a flyweight positioned on the first row. Views are cheap but
+     * not thread safe; use one per thread.
+     */
+    public FeatureView view() {
+        return new FeatureView();
+    }
+
+    /**
+     * Bulk-copies a row into {@code dst} starting at {@code offset}.
+     */
+    public void copyRow(int row, float[] dst, int offset) {
+        FloatBuffer chunk = chunks[row / CHUNK_ROWS].duplicate();
+        chunk.position((row % CHUNK_ROWS) * FeatureLayout.COLUMNS);
+        chunk.get(dst, offset, FeatureLayout.COLUMNS);
+    }
+
+    @Override
+    public void close() {
+        // Mappings are released by the garbage collector once unreachable
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = null;
+        }
+    }
+
+    public static Writer writer(Path file) throws IOException {
+        return new Writer(file);
+    }
+
+    /**
+     * @return the generation the pointer file names, or 0 if there is none
+     */
+    private static long currentGeneration(Path file) throws IOException {
+        Path pointer = pointerFile(file);
+        if (!Files.exists(pointer)) {
+            return 0;
+        }
+        String generation = new String(Files.readAllBytes(pointer), StandardCharsets.US_ASCII).trim();
+        try {
+            return Long.parseLong(generation);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid mapped feature file pointer " + pointer + ": " + generation);
+        }
+    }
+
+    /**
+     * @return the generations present on disk, whether current or not
+     */
+    private static List<Long> generations(Path file) throws IOException {
+        List<Long> generations = new ArrayList<>();
+        Path dir = file.toAbsolutePath().getParent();
+        String prefix = file.getFileName() + ".";
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, prefix + "*")) {
+            for (Path entry : entries) {
+                try {
+                    generations.add(Long.parseLong(entry.getFileName().toString().substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // The pointer or a temporary file
+                }
+            }
+        }
+        return generations;
+    }
+
+    private static Path pointerFile(Path file) {
+        return file.resolveSibling(file.getFileName() + ".current");
+    }
+
+    private static Path generationFile(Path file, long generation) {
+        return file.resolveSibling(file.getFileName() + "." + generation);
+    }
+
+    /**
+     * Flyweight view of one row. Moving it to another row only changes two
+     * ints, so a single view can walk the whole file.
+     */
+    public final class FeatureView {
+        private FloatBuffer chunk = chunks.length > 0 ? chunks[0] : null;
+        private int row;
+        private int base;
+
+        public FeatureView moveTo(int row) {
+            if (row < 0 || row >= ids.length) {
+                throw new IndexOutOfBoundsException("Row " + row + " of " + ids.length);
+            }
+            this.row = row;
+            this.chunk = chunks[row / CHUNK_ROWS];
+            this.base = (row % CHUNK_ROWS) * FeatureLayout.COLUMNS;
+            return this;
+        }
+
+        public int row() {
+            return row;
+        }
+
+        public String clothId() {
+            return ids[row];
+        }
+
+        public float get(int column) {
+            return chunk.get(base + column);
+        }
+
+        public float histogram(int bin) {
+            return chunk.get(base + FeatureLayout.HISTOGRAM + bin);
+        }
+
+        public float contrast() {
+            return get(FeatureLayout.CONTRAST);
+        }
+
+        public float homogeneity() {
+            return get(FeatureLayout.HOMOGENEITY);
+        }
+
+        public float meanIntensity() {
+            return get(FeatureLayout.MEAN_INTENSITY);
+        }
+
+        public float stdDeviation() {
+            return get(FeatureLayout.STD_DEVIATION);
+        }
+    }
+
+    /**
+     * Streams rows to a new generation of the feature file. It is written
+     * under a temporary name, and on close renamed and made current, so
+     * readers never see a partial file.
+     */
+    public static final class Writer implements Closeable {
+        private final Path file;
+        private final long generation;
+        private final Path temp;
+        private final OutputStream out;
+        private final ByteBuffer rowBuffer = ByteBuffer.allocate(ROW_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private final ByteArrayOutputStream idBytes = new ByteArrayOutputStream();
+        private final DataOutputStream idTable = new DataOutputStream(idBytes);
+        private long[] fingerprints = new long[1024];
+        private int rows;
+
+        private Writer(Path file) throws IOException {
+            this.file = file;
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            long latest = currentGeneration(file);
+            for (long existing : generations(file)) {
+                latest = Math.max(latest, existing);
+            }
+            this.generation = latest + 1;
+            this.temp = file.resolveSibling(file.getFileName() + "." + generation + ".tmp");
+            this.out = new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16);
+            out.write(new byte[HEADER_BYTES]);
+        }
+
+        public void add(String clothId, long fingerprint, float[] src, int offset) throws IOException {
+            byte[] id = clothId.getBytes(StandardCharsets.UTF_8);
+            if (id.length > 0xFFFF) {
+                throw new IOException("Cloth ID too long: " + id.length + " bytes");
+            }
+            rowBuffer.clear();
+            rowBuffer.asFloatBuffer().put(src, offset, FeatureLayout.COLUMNS);
+            out.write(rowBuffer.array(), 0, ROW_BYTES);
+            idTable.writeShort(id.length);
+            idTable.write(id);
+            if (rows == fingerprints.length) {
+                fingerprints = Arrays.copyOf(fingerprints, rows * 2);
+            }
+            fingerprints[rows++] = fingerprint;
+        }
+
+        @Override
+        public void close() throws IOException {
+            ByteBuffer fingerprintTable = ByteBuffer.allocate(rows * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            fingerprintTable.asLongBuffer().put(fingerprints, 0, rows);
+            out.write(fingerprintTable.array());
+            idTable.flush();
+            idBytes.writeTo(out);
+            out.close();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(FeatureLayout.COLUMNS);
+            header.putInt(rows);
+            header.putLong(HEADER_BYTES + (long) rows * (ROW_BYTES + Long.BYTES));
+            header.flip();
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.write(header, 0);
+                channel.force(true);
+            }
+            Path target = generationFile(file, generation);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+
+            Path pointer = pointerFile(file);
+            Path pointerTemp = pointer.resolveSibling(pointer.getFileName() + ".tmp");
+            try {
+                try (FileChannel channel = FileChannel.open(pointerTemp,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    channel.write(ByteBuffer.wrap(Long.toString(generation).getBytes(StandardCharsets.US_ASCII)));
+                    channel.force(true);
+                }
+                Files.move(pointerTemp, pointer, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // The previous generation stays current
+                Files.deleteIfExists(pointerTemp);
+                Files.deleteIfExists(target);
+                throw e;
+            }
+            removeOldGenerations();
+        }
+
+        private void removeOldGenerations() throws IOException {
+            List<Path> old = new ArrayList<>();
+            old.add(file);
+            for (long existing : generations(file)) {
+                if (existing != generation) {
+                    old.add(generationFile(file, existing));
+                }
+            }
+            for (Path path : old) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    // Still mapped, which Windows does not allow deleting; the next write tries again
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.clothauth.index;
+
+/**
+ * Scores one row of a FeatureMatrixIndex; higher is better. The row starts
+ * at {@code offset} in {@code data} and is laid out as in FeatureLayout.
+ * Returning NaN excludes the row from the results.
+ */
+@FunctionalInterface
+public interface RowScorer {
+    double score(float[] data, int offset);
+}
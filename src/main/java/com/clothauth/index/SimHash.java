@@ -0,0 +1,136 @@
+package com.clothauth.index;
+
+import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.CompactClothFeatures;
+
+import java.util.Random;
+
+/**
+ * 64-bit random-hyperplane signature of cloth features. Each bit is the
+ * side of a fixed random hyperplane the feature vector falls on, so the
+ * Hamming distance between two signatures estimates the angle between the
+ * vectors: similar images differ in a few bits where their SHA-256 hashes
+ * differ completely.
+ *
+ * The vector is the colour histogram pooled into {@code COARSE_BINS} bins
+ * per channel, so a small brightness change moves mass within a bin rather
+ * than to a different dimension, with each channel summing to one, then
+ * centered and scaled to unit length. It is followed by the log-compressed
+ * texture and edge values scaled to {@code TEXTURE_WEIGHT}. The hyperplanes
+ * come from a fixed seed; changing the seed or the vector invalidates every
+ * stored signature.
+ */
+public final class SimHash {
+    public static final int BITS = 64;
+    
+    private static final long SEED = 0x5EED_C107_4A5BL;
+    private static final int CHANNELS = 3;
+    private static final int COARSE_BINS = 8;
+    private static final int POOL = FeatureLayout.HISTOGRAM_BINS / (CHANNELS * COARSE_BINS);
+    private static final int HISTOGRAM_DIMENSIONS = CHANNELS * COARSE_BINS;
+    private static final int TEXTURE_COLUMNS = FeatureLayout.EDGE_ORIENTATION - FeatureLayout.CONTRAST + 1;
+    private static final int DIMENSIONS = HISTOGRAM_DIMENSIONS + TEXTURE_COLUMNS;
+    private static final double TEXTURE_WEIGHT = 0.5;
+    private static final float[][] PLANES = planes();
+    
+    private SimHash() {
+    }
+    
+    public static long signature(ClothFeatures features) {
+        return signature(FeatureLayout.toRow(features), 0);
+    }
+    
+    public static long signature(CompactClothFeatures features) {
+        float[] row = new float[FeatureLayout.COLUMNS];
+        FeatureLayout.write(features, row, 0);
+        return signature(row, 0);
+    }
+    
+    /**
+     * Signature of a row in FeatureLayout order.
+     */
+    public static long signature(float[] row, int offset) {
+        double[] vector = new double[DIMENSIONS];
+        
+        for (int i = 0; i < FeatureLayout.HISTOGRAM_BINS; i++) {
+            vector[i / POOL] += finite(row[offset + FeatureLayout.HISTOGRAM + i]);
+        }
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            double sum = 0;
+            for (int i = channel * COARSE_BINS; i < (channel + 1) * COARSE_BINS; i++) {
+                sum += vector[i];
+            }
+            if (sum > 0) {
+                for (int i = channel * COARSE_BINS; i < (channel + 1) * COARSE_BINS; i++) {
+                    vector[i] /= sum;
+                }
+            }
+        }
+        double mean = 1.0 / COARSE_BINS;
+        for (int i = 0; i < HISTOGRAM_DIMENSIONS; i++) {
+            vector[i] -= mean;
+        }
+        normalize(vector, 0, HISTOGRAM_DIMENSIONS, 1.0);
+        
+        for (int i = 0; i < TEXTURE_COLUMNS; i++) {
+            double value = finite(row[offset + FeatureLayout.CONTRAST + i]);
+            vector[HISTOGRAM_DIMENSIONS + i] = Math.signum(value) * Math.log1p(Math.abs(value));
+        }
+        normalize(vector, HISTOGRAM_DIMENSIONS, DIMENSIONS, TEXTURE_WEIGHT);
+        
+        long signature = 0;
+        for (int bit = 0; bit < BITS; bit++) {
+            float[] plane = PLANES[bit];
+            double dot = 0;
+            for (int i = 0; i < DIMENSIONS; i++) {
+                dot += plane[i] * vector[i];
+            }
+            if (dot >= 0) {
+                signature |= 1L << bit;
+            }
+        }
+        return signature;
+    }
+    
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+    
+    public static String toHex(long signature) {
+        String hex = Long.toHexString(signature);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+    
+    public static long parseHex(String hex) {
+        return Long.parseUnsignedLong(hex, 16);
+    }
+    
+    private static double finite(float value) {
+        return Float.isNaN(value) || Float.isInfinite(value) ? 0.0 : value;
+    }
+    
+    private static void normalize(double[] vector, int from, int to, double length) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += vector[i] * vector[i];
+        }
+        if (sum > 0) {
+            double scale = length / Math.sqrt(sum);
+            for (int i = from; i < to; i++) {
+                vector[i] *= scale;
+            }
+        }
+    }
+    
+    private static float[][] planes() {
+        // java.util.Random is specified to give the same sequence on every JVM
+        Random random = new Random(SEED);
+        float[][] planes = new float[BITS][DIMENSIONS];
+        for (float[] plane : planes) {
+            for (int i = 0; i < DIMENSIONS; i++) {
+                plane[i] = (float) random.nextGaussian();
+            }
+        }
+        return planes;
+    }
+}
@@ -0,0 +1,99 @@
+package com.clothauth.matching;
+
+import com.clothauth.index.FeatureLayout;
+import com.clothauth.index.FeatureMatrixIndex;
+import com.clothauth.index.IndexHit;
+import com.clothauth.index.RowScorer;
+import com.clothauth.model.ClothFeatures;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 1:N identification: scores a query against every stored cloth and returns
+ * the best matches.
+ *
+ * Scoring is a parallel linear scan over the in-memory feature matrix, so a
+ * query never touches the feature files. Scores are computed from the float
+ * columns of the index and may differ from verifyCloth in the last digits.
+ */
+public class ClothIdentifier {
+    private final FeatureMatrixIndex index;
+    
+    public ClothIdentifier(FeatureMatrixIndex index) {
+        this.index = index;
+    }
+    
+    public List<MatchResult> identify(ClothFeatures query, int k) {
+        double[] queryVector = SimilarityScorer.toScoreVector(query);
+        
+        List<IndexHit> hits = index.topK(() -> new ScoreVectorScorer(queryVector), k);
+        
+        // Re-score the few winners to report the full similarity breakdown
+        List<MatchResult> results = new ArrayList<>(hits.size());
+        double[] stored = new double[SimilarityScorer.VECTOR_SIZE];
+        for (IndexHit hit : hits) {
+            float[] row = index.getRow(hit.getClothId());
+            if (row != null) {
+                toScoreVector(row, 0, stored);
+                results.add(SimilarityScorer.compare(hit.getClothId(), stored, 0, queryVector, 0));
+            }
+        }
+        return results;
+    }
+    
+    /**
+     * Scores only the given candidates, e.g. from an LSH lookup, instead of
+     * scanning every stored cloth.
+     */
+    public List<MatchResult> identify(ClothFeatures query, int k, Collection<String> candidateIds) {
+        double[] queryVector = SimilarityScorer.toScoreVector(query);
+        
+        List<MatchResult> results = new ArrayList<>(candidateIds.size());
+        double[] stored = new double[SimilarityScorer.VECTOR_SIZE];
+        for (String clothId : candidateIds) {
+            float[] row = index.getRow(clothId);
+            if (row != null) {
+                toScoreVector(row, 0, stored);
+                results.add(SimilarityScorer.compare(clothId, stored, 0, queryVector, 0));
+            }
+        }
+        results.sort(Comparator.comparingDouble(MatchResult::getTotalSimilarity).reversed());
+        return results.size() > k ? new ArrayList<>(results.subList(0, k)) : results;
+    }
+    
+    public int size() {
+        return index.size();
+    }
+    
+    private static void toScoreVector(float[] row, int offset, double[] dst) {
+        dst[SimilarityScorer.MEAN_INTENSITY] = row[offset + FeatureLayout.MEAN_INTENSITY];
+        dst[SimilarityScorer.CONTRAST] = row[offset + FeatureLayout.CONTRAST];
+        dst[SimilarityScorer.HOMOGENEITY] = row[offset + FeatureLayout.HOMOGENEITY];
+        dst[SimilarityScorer.COMPLEXITY] = row[offset + FeatureLayout.COMPLEXITY_SCORE];
+        dst[SimilarityScorer.SYMMETRY] = row[offset + FeatureLayout.SYMMETRY_SCORE];
+        dst[SimilarityScorer.ASPECT_RATIO] = row[offset + FeatureLayout.ASPECT_RATIO];
+        dst[SimilarityScorer.AREA] = row[offset + FeatureLayout.AREA];
+    }
+    
+    /**
+     * Weighted similarity of one matrix row against the query; keeps its own
+     * scratch vector, so one instance is used per scan task.
+     */
+    private static class ScoreVectorScorer implements RowScorer {
+        private final double[] query;
+        private final double[] stored = new double[SimilarityScorer.VECTOR_SIZE];
+        
+        ScoreVectorScorer(double[] query) {
+            this.query = query;
+        }
+        
+        @Override
+        public double score(float[] data, int offset) {
+            toScoreVector(data, offset, stored);
+            return SimilarityScorer.totalSimilarity(stored, 0, query, 0);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.clothauth.matching;
+
+public class MatchResult {
+    private final String clothId;
+    private final double textureSimilarity;
+    private final double patternSimilarity;
+    private final double dimensionSimilarity;
+    private final double totalSimilarity;
+    private final boolean textureScored;
+    
+    public MatchResult(String clothId, double textureSimilarity, double patternSimilarity,
+                       double dimensionSimilarity, double totalSimilarity) {
+        this(clothId, textureSimilarity, patternSimilarity, dimensionSimilarity, totalSimilarity, true);
+    }
+    
+    public MatchResult(String clothId, double textureSimilarity, double patternSimilarity,
+                       double dimensionSimilarity, double totalSimilarity, boolean textureScored) {
+        this.clothId = clothId;
+        this.textureSimilarity = textureSimilarity;
+        this.patternSimilarity = patternSimilarity;
+        this.dimensionSimilarity = dimensionSimilarity;
+        this.totalSimilarity = totalSimilarity;
+        this.textureScored = textureScored;
+    }
+    
+    public String getClothId() { return clothId; }
+    public double getTextureSimilarity() { return textureSimilarity; }
+    public double getPatternSimilarity() { return patternSimilarity; }
+    public double getDimensionSimilarity() { return dimensionSimilarity; }
+    public double getTotalSimilarity() { return totalSimilarity; }
+    
+    /**
+     * False when the stored cloth predates working texture extraction and
+     * was scored on symmetry and dimensions only.
+     */
+    public boolean isTextureScored() { return textureScored; }
+    
+    public boolean isAuthentic() {
+        return totalSimilarity >= SimilarityScorer.AUTHENTICATION_THRESHOLD;
+    }
+}
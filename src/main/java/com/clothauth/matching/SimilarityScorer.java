@@ -0,0 +1,159 @@
+package com.clothauth.matching;
+
+import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.CompactClothFeatures;
+
+import java.util.Map;
+
+/**
+ * Weighted texture/pattern/dimension similarity used for verification and
+ * identification.
+ *
+ * The scoring only needs seven values per cloth, so features are reduced to
+ * a fixed-order score vector first. Scans over many stored items can keep
+ * these vectors in flat arrays and score them without touching the maps.
+ * Missing values become NaN, which makes the whole score NaN.
+ *
+ * Cloths registered while the LBP stage always failed were stored with the
+ * all-zero texture fallback and a complexity score derived from it.
+ * Comparing real texture against those zeros fails every such cloth, so
+ * they are scored on symmetry and dimensions only, with the pattern and
+ * dimension weights rescaled to sum to one. Re-registering the cloth
+ * restores the full score.
+ */
+public final class SimilarityScorer {
+    // Weights for different feature types
+    public static final double TEXTURE_WEIGHT = 0.4;
+    public static final double PATTERN_WEIGHT = 0.4;
+    public static final double DIMENSION_WEIGHT = 0.2;
+    
+    // Threshold for authentication (80% similarity required)
+    public static final double AUTHENTICATION_THRESHOLD = 0.80;
+    
+    // Score vector layout
+    public static final int MEAN_INTENSITY = 0;
+    public static final int CONTRAST = 1;
+    public static final int HOMOGENEITY = 2;
+    public static final int COMPLEXITY = 3;
+    public static final int SYMMETRY = 4;
+    public static final int ASPECT_RATIO = 5;
+    public static final int AREA = 6;
+    public static final int VECTOR_SIZE = 7;
+    
+    private SimilarityScorer() {
+    }
+    
+    public static double[] toScoreVector(ClothFeatures features) {
+        double[] vector = new double[VECTOR_SIZE];
+        toScoreVector(features, vector, 0);
+        return vector;
+    }
+    
+    public static void toScoreVector(ClothFeatures features, double[] dst, int offset) {
+        Map<String, Double> texture = features.getFabricTexture();
+        Map<String, Object> pattern = features.getPatternFeatures();
+        Map<String, Double> dimensions = features.getDimensions();
+        
+        dst[offset + MEAN_INTENSITY] = value(texture.get("mean_intensity"));
+        dst[offset + CONTRAST] = value(texture.get("contrast"));
+        dst[offset + HOMOGENEITY] = value(texture.get("homogeneity"));
+        dst[offset + COMPLEXITY] = value(pattern.get("complexity_score"));
+        dst[offset + SYMMETRY] = value(pattern.get("symmetry_score"));
+        dst[offset + ASPECT_RATIO] = value(dimensions.get("aspect_ratio"));
+        dst[offset + AREA] = value(dimensions.get("area"));
+    }
+    
+    public static void toScoreVector(CompactClothFeatures features, double[] dst, int offset) {
+        dst[offset + MEAN_INTENSITY] = features.get(CompactClothFeatures.MEAN_INTENSITY);
+        dst[offset + CONTRAST] = features.get(CompactClothFeatures.CONTRAST);
+        dst[offset + HOMOGENEITY] = features.get(CompactClothFeatures.HOMOGENEITY);
+        dst[offset + COMPLEXITY] = features.get(CompactClothFeatures.COMPLEXITY_SCORE);
+        dst[offset + SYMMETRY] = features.get(CompactClothFeatures.SYMMETRY_SCORE);
+        dst[offset + ASPECT_RATIO] = features.get(CompactClothFeatures.ASPECT_RATIO);
+        dst[offset + AREA] = features.get(CompactClothFeatures.AREA);
+    }
+    
+    public static MatchResult compare(String clothId, CompactClothFeatures stored, CompactClothFeatures current) {
+        double[] vectors = new double[2 * VECTOR_SIZE];
+        toScoreVector(stored, vectors, 0);
+        toScoreVector(current, vectors, VECTOR_SIZE);
+        return compare(clothId, vectors, 0, vectors, VECTOR_SIZE);
+    }
+    
+    public static MatchResult compare(String clothId, ClothFeatures stored, ClothFeatures current) {
+        return compare(clothId, toScoreVector(stored), 0, toScoreVector(current), 0);
+    }
+    
+    public static MatchResult compare(String clothId, double[] stored, int storedOffset, double[] current, int currentOffset) {
+        double dimension = dimensionSimilarity(stored, storedOffset, current, currentOffset);
+        if (hasLegacyTexture(stored, storedOffset)) {
+            double pattern = symmetrySimilarity(stored, storedOffset, current, currentOffset);
+            return new MatchResult(clothId, Double.NaN, pattern, dimension, weightedLegacy(pattern, dimension), false);
+        }
+        double texture = textureSimilarity(stored, storedOffset, current, currentOffset);
+        double pattern = patternSimilarity(stored, storedOffset, current, currentOffset);
+        return new MatchResult(clothId, texture, pattern, dimension, weighted(texture, pattern, dimension));
+    }
+    
+    public static double totalSimilarity(double[] stored, int storedOffset, double[] current, int currentOffset) {
+        if (hasLegacyTexture(stored, storedOffset)) {
+            return weightedLegacy(
+                symmetrySimilarity(stored, storedOffset, current, currentOffset),
+                dimensionSimilarity(stored, storedOffset, current, currentOffset)
+            );
+        }
+        return weighted(
+            textureSimilarity(stored, storedOffset, current, currentOffset),
+            patternSimilarity(stored, storedOffset, current, currentOffset),
+            dimensionSimilarity(stored, storedOffset, current, currentOffset)
+        );
+    }
+    
+    public static double textureSimilarity(double[] stored, int s, double[] current, int c) {
+        double meanDiff = Math.abs(stored[s + MEAN_INTENSITY] - current[c + MEAN_INTENSITY]) / 255.0;
+        double contrastDiff = Math.abs(stored[s + CONTRAST] - current[c + CONTRAST]);
+        double homogeneityDiff = Math.abs(stored[s + HOMOGENEITY] - current[c + HOMOGENEITY]);
+        
+        return 1.0 - ((meanDiff + contrastDiff + homogeneityDiff) / 3.0);
+    }
+    
+    public static double patternSimilarity(double[] stored, int s, double[] current, int c) {
+        double complexityDiff = Math.abs(stored[s + COMPLEXITY] - current[c + COMPLEXITY]) / 100.0;
+        double symmetryDiff = Math.abs(stored[s + SYMMETRY] - current[c + SYMMETRY]) / 100.0;
+        
+        return 1.0 - ((complexityDiff + symmetryDiff) / 2.0);
+    }
+    
+    /**
+     * True for stored features with the all-zero texture fallback of
+     * extractions made before the texture stage worked.
+     */
+    public static boolean hasLegacyTexture(double[] stored, int s) {
+        return stored[s + MEAN_INTENSITY] == 0.0 && stored[s + CONTRAST] == 0.0 && stored[s + HOMOGENEITY] == 0.0;
+    }
+    
+    public static double symmetrySimilarity(double[] stored, int s, double[] current, int c) {
+        return 1.0 - Math.abs(stored[s + SYMMETRY] - current[c + SYMMETRY]) / 100.0;
+    }
+    
+    public static double dimensionSimilarity(double[] stored, int s, double[] current, int c) {
+        double aspectRatioDiff = Math.abs(stored[s + ASPECT_RATIO] - current[c + ASPECT_RATIO]);
+        double areaDiff = Math.abs(stored[s + AREA] - current[c + AREA]) / stored[s + AREA];
+        
+        return 1.0 - ((aspectRatioDiff + areaDiff) / 2.0);
+    }
+    
+    public static double weighted(double texture, double pattern, double dimension) {
+        return (texture * TEXTURE_WEIGHT) +
+               (pattern * PATTERN_WEIGHT) +
+               (dimension * DIMENSION_WEIGHT);
+    }
+    
+    public static double weightedLegacy(double pattern, double dimension) {
+        return (pattern * PATTERN_WEIGHT + dimension * DIMENSION_WEIGHT) / (PATTERN_WEIGHT + DIMENSION_WEIGHT);
+    }
+    
+    private static double value(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+    }
+}
@@ -21,6 +21,18 @@ public class ClothIdentity {
     @JsonProperty("image_path")
     private String imagePath;
     
+    // Identities written before hashes were versioned have no hash_version and use v1
+    @JsonProperty("hash_version")
+    private int hashVersion = 1;
+    
+    // Locality-sensitive SimHash of the features, 16 hex digits; similar cloths differ in few bits
+    @JsonProperty("lsh_signature")
+    private String lshSignature;
+    
+    // SHA-256 of the raw image file, used to recognise re-submitted images
+    @JsonProperty("image_digest")
+    private String imageDigest;
+    
     // Constructors
     public ClothIdentity() {
         this.creationTime = System.currentTimeMillis();
@@ -31,6 +43,18 @@ public class ClothIdentity {
         this.clothId = clothId;
     }
     
+    public ClothIdentity(ClothIdentity other) {
+        this.clothId = other.clothId;
+        this.featuresHash = other.featuresHash;
+        this.timestampHash = other.timestampHash;
+        this.combinedHash = other.combinedHash;
+        this.creationTime = other.creationTime;
+        this.imagePath = other.imagePath;
+        this.hashVersion = other.hashVersion;
+        this.lshSignature = other.lshSignature;
+        this.imageDigest = other.imageDigest;
+    }
+    
     // Getters and Setters
     public String getClothId() { return clothId; }
     public void setClothId(String clothId) { this.clothId = clothId; }
@@ -49,4 +73,13 @@ public class ClothIdentity {
     
     public String getImagePath() { return imagePath; }
     public void setImagePath(String imagePath) { this.imagePath = imagePath; }
+    
+    public int getHashVersion() { return hashVersion; }
+    public void setHashVersion(int hashVersion) { this.hashVersion = hashVersion; }
+    
+    public String getLshSignature() { return lshSignature; }
+    public void setLshSignature(String lshSignature) { this.lshSignature = lshSignature; }
+    
+    public String getImageDigest() { return imageDigest; }
+    public void setImageDigest(String imageDigest) { this.imageDigest = imageDigest; }
 }
\ No newline at end of file
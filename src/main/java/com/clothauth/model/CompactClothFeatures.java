@@ -0,0 +1,331 @@
+package com.clothauth.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Primitive representation of ClothFeatures: the histogram and edge values
+ * as float arrays and the known texture, dimension and pattern values in
+ * fixed double slots, about 3 KB per cloth instead of 20+ KB of boxed values
+ * and map entries.
+ *
+ * Extracted values are rounded to four decimals, and such values survive
+ * the trip through a float unchanged. Conversion back to ClothFeatures
+ * therefore yields the same doubles, and the same hash. Should a list value
+ * not be restorable from its float, the exact doubles are kept alongside.
+ * Map entries with unknown keys or non-double values are kept as they are.
+ */
+public final class CompactClothFeatures {
+    public static final int DECIMAL_PRECISION = 4;
+    private static final double SCALE = Math.pow(10, DECIMAL_PRECISION);
+    
+    // Texture slots
+    public static final int CONTRAST = 0;
+    public static final int HOMOGENEITY = 1;
+    public static final int MEAN_INTENSITY = 2;
+    public static final int STD_DEVIATION = 3;
+    // Dimension slots
+    public static final int AREA = 4;
+    public static final int ASPECT_RATIO = 5;
+    public static final int HEIGHT = 6;
+    public static final int WIDTH = 7;
+    // Pattern slots
+    public static final int COMPLEXITY_SCORE = 8;
+    public static final int SYMMETRY_SCORE = 9;
+    
+    public static final int SLOTS = 10;
+    
+    private static final String[] SLOT_KEYS = {
+        "contrast", "homogeneity", "mean_intensity", "std_deviation",
+        "area", "aspect_ratio", "height", "width",
+        "complexity_score", "symmetry_score"
+    };
+    private static final int FIRST_TEXTURE_SLOT = CONTRAST;
+    private static final int FIRST_DIMENSION_SLOT = AREA;
+    private static final int FIRST_PATTERN_SLOT = COMPLEXITY_SCORE;
+    
+    private final float[] histogram;
+    private final double[] exactHistogram;
+    private final float[] edges;
+    private final double[] exactEdges;
+    private final double[] slots;
+    private final int presentSlots;
+    private final Map<String, Double> extraTexture;
+    private final Map<String, Double> extraDimensions;
+    private final Map<String, Object> extraPattern;
+    private final long timestamp;
+    
+    private CompactClothFeatures(Builder builder) {
+        this.histogram = builder.histogram;
+        this.exactHistogram = builder.exactHistogram;
+        this.edges = builder.edges;
+        this.exactEdges = builder.exactEdges;
+        this.slots = builder.slots;
+        this.presentSlots = builder.presentSlots;
+        this.extraTexture = builder.extraTexture;
+        this.extraDimensions = builder.extraDimensions;
+        this.extraPattern = builder.extraPattern;
+        this.timestamp = builder.timestamp;
+    }
+    
+    public static Builder builder() {
+        return new Builder();
+    }
+    
+    public static CompactClothFeatures from(ClothFeatures features) {
+        Builder builder = builder()
+            .histogram(features.getColorHistogram())
+            .edges(features.getEdgeFeatures())
+            .timestamp(features.getTimestamp());
+        for (Map.Entry<String, Double> entry : features.getFabricTexture().entrySet()) {
+            builder.texture(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Double> entry : features.getDimensions().entrySet()) {
+            builder.dimension(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Object> entry : features.getPatternFeatures().entrySet()) {
+            builder.pattern(entry.getKey(), entry.getValue());
+        }
+        return builder.build();
+    }
+    
+    public ClothFeatures toClothFeatures() {
+        ClothFeatures features = new ClothFeatures();
+        features.setTimestamp(timestamp);
+        
+        List<Double> histogramValues = new ArrayList<>(histogram.length);
+        for (int i = 0; i < histogram.length; i++) {
+            histogramValues.add(getHistogram(i));
+        }
+        features.setColorHistogram(histogramValues);
+        
+        List<Double> edgeValues = new ArrayList<>(edges.length);
+        for (int i = 0; i < edges.length; i++) {
+            edgeValues.add(getEdge(i));
+        }
+        features.setEdgeFeatures(edgeValues);
+        
+        Map<String, Double> texture = new TreeMap<>();
+        Map<String, Double> dimensions = new TreeMap<>();
+        Map<String, Object> pattern = new TreeMap<>();
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (has(slot)) {
+                if (slot >= FIRST_PATTERN_SLOT) {
+                    pattern.put(SLOT_KEYS[slot], slots[slot]);
+                } else if (slot >= FIRST_DIMENSION_SLOT) {
+                    dimensions.put(SLOT_KEYS[slot], slots[slot]);
+                } else {
+                    texture.put(SLOT_KEYS[slot], slots[slot]);
+                }
+            }
+        }
+        if (extraTexture != null) {
+            texture.putAll(extraTexture);
+        }
+        if (extraDimensions != null) {
+            dimensions.putAll(extraDimensions);
+        }
+        if (extraPattern != null) {
+            pattern.putAll(extraPattern);
+        }
+        features.setFabricTexture(texture);
+        features.setDimensions(dimensions);
+        features.setPatternFeatures(pattern);
+        return features;
+    }
+    
+    public int getHistogramBins() {
+        return histogram.length;
+    }
+    
+    public double getHistogram(int bin) {
+        return exactHistogram != null ? exactHistogram[bin] : restore(histogram[bin]);
+    }
+    
+    /**
+     * The histogram as floats. The array is shared, not copied.
+     */
+    public float[] getHistogramFloats() {
+        return histogram;
+    }
+    
+    public int getEdgeCount() {
+        return edges.length;
+    }
+    
+    public double getEdge(int index) {
+        return exactEdges != null ? exactEdges[index] : restore(edges[index]);
+    }
+    
+    public boolean has(int slot) {
+        return (presentSlots & (1 << slot)) != 0;
+    }
+    
+    /**
+     * @return the value in a slot, or NaN if the key was not present
+     */
+    public double get(int slot) {
+        return has(slot) ? slots[slot] : Double.NaN;
+    }
+    
+    public static String slotKey(int slot) {
+        return SLOT_KEYS[slot];
+    }
+    
+    public Map<String, Double> getExtraTexture() {
+        return extraTexture;
+    }
+    
+    public Map<String, Double> getExtraDimensions() {
+        return extraDimensions;
+    }
+    
+    public Map<String, Object> getExtraPattern() {
+        return extraPattern;
+    }
+    
+    public long getTimestamp() {
+        return timestamp;
+    }
+    
+    /**
+     * Rough heap footprint, for diagnostics.
+     */
+    public long estimatedBytes() {
+        long bytes = 96 + 16 + 4L * histogram.length + 16 + 4L * edges.length + 16 + 8L * SLOTS;
+        if (exactHistogram != null) {
+            bytes += 16 + 8L * exactHistogram.length;
+        }
+        if (exactEdges != null) {
+            bytes += 16 + 8L * exactEdges.length;
+        }
+        return bytes;
+    }
+    
+    static double restore(float value) {
+        // Same rounding as the extractor applies
+        return Math.round(value * SCALE) / SCALE;
+    }
+    
+    private static boolean restorable(double value) {
+        return Double.doubleToLongBits(restore((float) value)) == Double.doubleToLongBits(value);
+    }
+    
+    private static int slotOf(String key, int first, int last) {
+        for (int slot = first; slot < last; slot++) {
+            if (SLOT_KEYS[slot].equals(key)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+    
+    public static final class Builder {
+        private float[] histogram = new float[0];
+        private double[] exactHistogram;
+        private float[] edges = new float[0];
+        private double[] exactEdges;
+        private final double[] slots = new double[SLOTS];
+        private int presentSlots;
+        private Map<String, Double> extraTexture;
+        private Map<String, Double> extraDimensions;
+        private Map<String, Object> extraPattern;
+        private long timestamp = System.currentTimeMillis();
+        
+        private Builder() {
+        }
+        
+        public Builder histogram(List<Double> values) {
+            double[] exact = new double[values.size()];
+            for (int i = 0; i < exact.length; i++) {
+                exact[i] = values.get(i);
+            }
+            return histogram(exact);
+        }
+        
+        public Builder histogram(double[] values) {
+            histogram = new float[values.length];
+            exactHistogram = toFloats(values, histogram) ? null : values.clone();
+            return this;
+        }
+        
+        public Builder edges(List<Double> values) {
+            double[] exact = new double[values.size()];
+            for (int i = 0; i < exact.length; i++) {
+                exact[i] = values.get(i);
+            }
+            return edges(exact);
+        }
+        
+        public Builder edges(double[] values) {
+            edges = new float[values.length];
+            exactEdges = toFloats(values, edges) ? null : values.clone();
+            return this;
+        }
+        
+        public Builder texture(String key, Double value) {
+            if (!put(key, value, FIRST_TEXTURE_SLOT, FIRST_DIMENSION_SLOT)) {
+                if (extraTexture == null) {
+                    extraTexture = new TreeMap<>();
+                }
+                extraTexture.put(key, value);
+            }
+            return this;
+        }
+        
+        public Builder dimension(String key, Double value) {
+            if (!put(key, value, FIRST_DIMENSION_SLOT, FIRST_PATTERN_SLOT)) {
+                if (extraDimensions == null) {
+                    extraDimensions = new TreeMap<>();
+                }
+                extraDimensions.put(key, value);
+            }
+            return this;
+        }
+        
+        public Builder pattern(String key, Object value) {
+            if (!(value instanceof Double) || !put(key, (Double) value, FIRST_PATTERN_SLOT, SLOTS)) {
+                if (extraPattern == null) {
+                    extraPattern = new TreeMap<>();
+                }
+                extraPattern.put(key, value);
+            }
+            return this;
+        }
+        
+        public Builder slot(int slot, double value) {
+            slots[slot] = value;
+            presentSlots |= 1 << slot;
+            return this;
+        }
+        
+        public Builder timestamp(long timestamp) {
+            this.timestamp = timestamp;
+            return this;
+        }
+        
+        public CompactClothFeatures build() {
+            return new CompactClothFeatures(this);
+        }
+        
+        private boolean put(String key, Double value, int first, int last) {
+            int slot = slotOf(key, first, last);
+            if (slot < 0 || value == null) {
+                return false;
+            }
+            slot(slot, value);
+            return true;
+        }
+        
+        private static boolean toFloats(double[] values, float[] dst) {
+            boolean restorable = true;
+            for (int i = 0; i < values.length; i++) {
+                dst[i] = (float) values[i];
+                restorable &= restorable(values[i]);
+            }
+            return restorable;
+        }
+    }
+}
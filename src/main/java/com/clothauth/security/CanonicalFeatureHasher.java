@@ -0,0 +1,812 @@
+package com.clothauth.security;
+
+import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.CompactClothFeatures;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Streams the canonical JSON of cloth features straight into a per-thread
+ * SHA-256 digest, without building the JSON String, its UTF-8 bytes or any
+ * normalised copies of the collections.
+ *
+ * The bytes fed to the digest are exactly what HashGenerator's ObjectMapper
+ * would produce, so the digests match the existing JSON based hashes. Doubles
+ * with at most four decimals, which is everything the extractor produces,
+ * are formatted without allocation; any other value falls back to
+ * Double.toString or to the ObjectMapper itself.
+ *
+ * It also produces the version 2 binary canonical form, which does not
+ * depend on any number formatting or map implementation. Integers are
+ * zigzag LEB128 varints and every number is written as the fixed-point
+ * integer {@code Math.round(value * 10^4)}, with NaN, infinities and null
+ * list values written as 0:
+ * <pre>
+ * byte     2                          encoding version
+ * varint   n, n x fixed               colour histogram
+ * varint   n, n x fixed               edge features
+ * varint   slot mask                  bit i set if slot i is present, slots in
+ *                                     CompactClothFeatures order (contrast,
+ *                                     homogeneity, mean_intensity, std_deviation,
+ *                                     area, aspect_ratio, height, width,
+ *                                     complexity_score, symmetry_score)
+ * fixed    value of each present slot, in slot order
+ * varint   n, n x extra entry         other map entries (unknown keys, or
+ *                                     values that are not doubles), ordered by
+ *                                     group then key
+ * extra:   byte group (1 texture, 2 dimensions, 3 pattern), string key,
+ *          byte tag and value: 0 null, 1 fixed (Double, Float),
+ *          2 varint (Integer, Long, Short, Byte), 3 string, 4 false,
+ *          5 true, 6 length-prefixed canonical JSON of anything else
+ * string:  varint byte length, UTF-8 bytes
+ * </pre>
+ */
+final class CanonicalFeatureHasher {
+    private static final ObjectMapper objectMapper = new ObjectMapper()
+        .enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS)
+        .disable(SerializationFeature.INDENT_OUTPUT);
+
+    private static final ThreadLocal<CanonicalFeatureHasher> INSTANCES =
+        ThreadLocal.withInitial(CanonicalFeatureHasher::new);
+
+    private static final double SCALE = 10000.0;
+    private static final int BINARY_VERSION = 2;
+    private static final int GROUP_TEXTURE = 1;
+    private static final int GROUP_DIMENSIONS = 2;
+    private static final int GROUP_PATTERN = 3;
+    private static final int TAG_NULL = 0;
+    private static final int TAG_FIXED = 1;
+    private static final int TAG_INTEGER = 2;
+    private static final int TAG_STRING = 3;
+    private static final int TAG_FALSE = 4;
+    private static final int TAG_TRUE = 5;
+    private static final int TAG_JSON = 6;
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000};
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] FABRIC_TEXTURE = ascii("{\"fabric_texture\":");
+    private static final byte[] COLOR_HISTOGRAM = ascii(",\"color_histogram\":");
+    private static final byte[] DIMENSIONS = ascii(",\"dimensions\":");
+    private static final byte[] PATTERN_FEATURES = ascii(",\"pattern_features\":");
+    private static final byte[] EDGE_FEATURES = ascii(",\"edge_features\":");
+
+    private static final byte[] NORMALIZED_COLOR_HISTOGRAM = ascii("{\"color_histogram\":");
+    private static final byte[] NORMALIZED_DIMENSIONS = ascii(",\"dimensions\":");
+    private static final byte[] NORMALIZED_EDGE_FEATURES = ascii(",\"edge_features\":");
+    private static final byte[] NORMALIZED_FABRIC_TEXTURE = ascii(",\"fabric_texture\":");
+    private static final byte[] NORMALIZED_PATTERN_FEATURES = ascii(",\"pattern_features\":");
+
+    private static final byte[] NULL = ascii("null");
+    private static final byte[] TRUE = ascii("true");
+    private static final byte[] FALSE = ascii("false");
+    private static final byte[] ZERO = ascii("0.0");
+    private static final byte[] NEGATIVE_ZERO = ascii("-0.0");
+
+    private final MessageDigest digest;
+    private final byte[] buffer = new byte[8192];
+    private final byte[] digits = new byte[20];
+    private final byte[] hash = new byte[32];
+    private int count;
+
+    private CanonicalFeatureHasher() {
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * SHA-256 of the JSON HashGenerator produces for a ClothFeatures object.
+     */
+    static String sha256Hex(ClothFeatures features) {
+        CanonicalFeatureHasher hasher = INSTANCES.get();
+        hasher.writeFeatures(features);
+        return hasher.finishHex();
+    }
+
+    /**
+     * The same digest computed from the primitive representation.
+     */
+    static String sha256Hex(CompactClothFeatures features) {
+        CanonicalFeatureHasher hasher = INSTANCES.get();
+        hasher.writeFeatures(features);
+        return hasher.finishHex();
+    }
+
+    /**
+     * SHA-256 of the normalised map generateFeaturesOnlyHash serialises:
+     * keys sorted, doubles rounded and only the known pattern features.
+     */
+    static String normalizedSha256Hex(ClothFeatures features, List<String> patternKeys, int decimals) {
+        CanonicalFeatureHasher hasher = INSTANCES.get();
+        hasher.writeNormalizedFeatures(features, patternKeys, Math.pow(10, decimals));
+        return hasher.finishHex();
+    }
+
+    /**
+     * SHA-256 of the version 2 binary canonical form.
+     */
+    static String binarySha256Hex(ClothFeatures features) {
+        CanonicalFeatureHasher hasher = INSTANCES.get();
+        hasher.writeBinaryFeatures(features);
+        return hasher.finishHex();
+    }
+
+    static String binarySha256Hex(CompactClothFeatures features) {
+        CanonicalFeatureHasher hasher = INSTANCES.get();
+        hasher.writeBinaryFeatures(features);
+        return hasher.finishHex();
+    }
+
+    static String sha256Hex(String data) {
+        CanonicalFeatureHasher hasher = INSTANCES.get();
+        hasher.writeUtf8(data);
+        return hasher.finishHex();
+    }
+
+    static String toHex(byte[] bytes, int length) {
+        byte[] hex = new byte[length * 2];
+        for (int i = 0; i < length; i++) {
+            hex[2 * i] = HEX[(bytes[i] >> 4) & 0x0F];
+            hex[2 * i + 1] = HEX[bytes[i] & 0x0F];
+        }
+        return new String(hex, StandardCharsets.US_ASCII);
+    }
+
+    private void writeFeatures(ClothFeatures features) {
+        reset();
+        write(FABRIC_TEXTURE);
+        writeMap(features.getFabricTexture());
+        write(COLOR_HISTOGRAM);
+        writeList(features.getColorHistogram());
+        write(DIMENSIONS);
+        writeMap(features.getDimensions());
+        write(PATTERN_FEATURES);
+        writeMap(features.getPatternFeatures());
+        write(EDGE_FEATURES);
+        writeList(features.getEdgeFeatures());
+        write('}');
+    }
+
+    private void writeFeatures(CompactClothFeatures features) {
+        reset();
+        write(FABRIC_TEXTURE);
+        writeSlots(features, CompactClothFeatures.CONTRAST, CompactClothFeatures.AREA, features.getExtraTexture());
+        write(COLOR_HISTOGRAM);
+        write('[');
+        for (int i = 0; i < features.getHistogramBins(); i++) {
+            if (i > 0) {
+                write(',');
+            }
+            writeDouble(features.getHistogram(i));
+        }
+        write(']');
+        write(DIMENSIONS);
+        writeSlots(features, CompactClothFeatures.AREA, CompactClothFeatures.COMPLEXITY_SCORE, features.getExtraDimensions());
+        write(PATTERN_FEATURES);
+        writeSlots(features, CompactClothFeatures.COMPLEXITY_SCORE, CompactClothFeatures.SLOTS, features.getExtraPattern());
+        write(EDGE_FEATURES);
+        write('[');
+        for (int i = 0; i < features.getEdgeCount(); i++) {
+            if (i > 0) {
+                write(',');
+            }
+            writeDouble(features.getEdge(i));
+        }
+        write(']');
+        write('}');
+    }
+
+    private void writeNormalizedFeatures(ClothFeatures features, List<String> patternKeys, double scale) {
+        reset();
+        write(NORMALIZED_COLOR_HISTOGRAM);
+        writeRoundedList(features.getColorHistogram(), scale);
+        write(NORMALIZED_DIMENSIONS);
+        writeRoundedMap(features.getDimensions(), scale);
+        write(NORMALIZED_EDGE_FEATURES);
+        writeRoundedList(features.getEdgeFeatures(), scale);
+        write(NORMALIZED_FABRIC_TEXTURE);
+        writeRoundedMap(features.getFabricTexture(), scale);
+        write(NORMALIZED_PATTERN_FEATURES);
+
+        // The pattern keys are written in sorted order, as the TreeMap did
+        Map<String, Object> pattern = features.getPatternFeatures();
+        write('{');
+        boolean first = true;
+        for (String key : pattern != null ? patternKeys : List.<String>of()) {
+            Object value = pattern.getOrDefault(key, 0.0);
+            if (!first) {
+                write(',');
+            }
+            first = false;
+            writeString(key);
+            write(':');
+            if (value instanceof Double) {
+                writeDouble(round((Double) value, scale));
+            } else {
+                writeValue(value);
+            }
+        }
+        write('}');
+        write('}');
+    }
+
+    private void writeBinaryFeatures(ClothFeatures features) {
+        reset();
+        write((byte) BINARY_VERSION);
+        writeFixedList(features.getColorHistogram());
+        writeFixedList(features.getEdgeFeatures());
+
+        Map<String, Double> texture = features.getFabricTexture();
+        Map<String, Double> dimensions = features.getDimensions();
+        Map<String, Object> pattern = features.getPatternFeatures();
+        int mask = 0;
+        for (int slot = 0; slot < CompactClothFeatures.SLOTS; slot++) {
+            if (groupMap(slot, texture, dimensions, pattern).get(CompactClothFeatures.slotKey(slot)) instanceof Double) {
+                mask |= 1 << slot;
+            }
+        }
+        writeVarLong(mask);
+        for (int slot = 0; slot < CompactClothFeatures.SLOTS; slot++) {
+            if ((mask & (1 << slot)) != 0) {
+                Object value = groupMap(slot, texture, dimensions, pattern).get(CompactClothFeatures.slotKey(slot));
+                writeVarLong(fixed((Double) value));
+            }
+        }
+
+        writeVarLong(countExtras(texture, CompactClothFeatures.CONTRAST, CompactClothFeatures.AREA)
+            + countExtras(dimensions, CompactClothFeatures.AREA, CompactClothFeatures.COMPLEXITY_SCORE)
+            + countExtras(pattern, CompactClothFeatures.COMPLEXITY_SCORE, CompactClothFeatures.SLOTS));
+        writeExtras(GROUP_TEXTURE, texture, CompactClothFeatures.CONTRAST, CompactClothFeatures.AREA);
+        writeExtras(GROUP_DIMENSIONS, dimensions, CompactClothFeatures.AREA, CompactClothFeatures.COMPLEXITY_SCORE);
+        writeExtras(GROUP_PATTERN, pattern, CompactClothFeatures.COMPLEXITY_SCORE, CompactClothFeatures.SLOTS);
+    }
+
+    private void writeBinaryFeatures(CompactClothFeatures features) {
+        reset();
+        write((byte) BINARY_VERSION);
+        writeVarLong(features.getHistogramBins());
+        for (int i = 0; i < features.getHistogramBins(); i++) {
+            writeVarLong(fixed(features.getHistogram(i)));
+        }
+        writeVarLong(features.getEdgeCount());
+        for (int i = 0; i < features.getEdgeCount(); i++) {
+            writeVarLong(fixed(features.getEdge(i)));
+        }
+
+        int mask = 0;
+        for (int slot = 0; slot < CompactClothFeatures.SLOTS; slot++) {
+            if (features.has(slot)) {
+                mask |= 1 << slot;
+            }
+        }
+        writeVarLong(mask);
+        for (int slot = 0; slot < CompactClothFeatures.SLOTS; slot++) {
+            if (features.has(slot)) {
+                writeVarLong(fixed(features.get(slot)));
+            }
+        }
+
+        // The extras of the compact form are exactly the entries that are not slots
+        Map<String, Double> texture = features.getExtraTexture();
+        Map<String, Double> dimensions = features.getExtraDimensions();
+        Map<String, Object> pattern = features.getExtraPattern();
+        writeVarLong(size(texture) + size(dimensions) + size(pattern));
+        writeExtras(GROUP_TEXTURE, texture, 0, 0);
+        writeExtras(GROUP_DIMENSIONS, dimensions, 0, 0);
+        writeExtras(GROUP_PATTERN, pattern, 0, 0);
+    }
+
+    private static Map<String, ?> groupMap(int slot, Map<String, ?> texture, Map<String, ?> dimensions, Map<String, ?> pattern) {
+        if (slot >= CompactClothFeatures.COMPLEXITY_SCORE) {
+            return pattern;
+        }
+        return slot >= CompactClothFeatures.AREA ? dimensions : texture;
+    }
+
+    private static boolean isSlot(String key, Object value, int first, int last) {
+        if (!(value instanceof Double)) {
+            return false;
+        }
+        for (int slot = first; slot < last; slot++) {
+            if (CompactClothFeatures.slotKey(slot).equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int countExtras(Map<String, ?> map, int firstSlot, int lastSlot) {
+        int extras = 0;
+        for (Map.Entry<String, ?> entry : map.entrySet()) {
+            if (!isSlot(entry.getKey(), entry.getValue(), firstSlot, lastSlot)) {
+                extras++;
+            }
+        }
+        return extras;
+    }
+
+    private static int size(Map<String, ?> map) {
+        return map != null ? map.size() : 0;
+    }
+
+    private void writeExtras(int group, Map<String, ?> map, int firstSlot, int lastSlot) {
+        if (map == null || map.isEmpty()) {
+            return;
+        }
+        Map<String, ?> ordered = map instanceof SortedMap && ((SortedMap<String, ?>) map).comparator() == null
+            ? map
+            : new TreeMap<>(map);
+        for (Map.Entry<String, ?> entry : ordered.entrySet()) {
+            if (isSlot(entry.getKey(), entry.getValue(), firstSlot, lastSlot)) {
+                continue;
+            }
+            write((byte) group);
+            writeBinaryString(entry.getKey());
+            writeTaggedValue(entry.getValue());
+        }
+    }
+
+    private void writeTaggedValue(Object value) {
+        if (value == null) {
+            write((byte) TAG_NULL);
+        } else if (value instanceof Double || value instanceof Float) {
+            write((byte) TAG_FIXED);
+            writeVarLong(fixed(((Number) value).doubleValue()));
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            write((byte) TAG_INTEGER);
+            writeVarLong(((Number) value).longValue());
+        } else if (value instanceof String) {
+            write((byte) TAG_STRING);
+            writeBinaryString((String) value);
+        } else if (value instanceof Boolean) {
+            write((byte) ((Boolean) value ? TAG_TRUE : TAG_FALSE));
+        } else {
+            try {
+                byte[] json = objectMapper.writeValueAsBytes(value);
+                write((byte) TAG_JSON);
+                writeVarLong(json.length);
+                write(json);
+            } catch (JsonProcessingException e) {
+                throw new IllegalArgumentException("Cannot serialise feature value: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void writeFixedList(List<Double> values) {
+        writeVarLong(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            Double value = values.get(i);
+            writeVarLong(value != null ? fixed(value) : 0L);
+        }
+    }
+
+    private static long fixed(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return 0L;
+        }
+        return Math.round(value * SCALE);
+    }
+
+    /**
+     * Zigzag LEB128: small magnitudes of either sign take few bytes.
+     */
+    private void writeVarLong(long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            write((byte) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        write((byte) zigzag);
+    }
+
+    private void writeBinaryString(String value) {
+        writeVarLong(utf8Length(value));
+        for (int i = 0; i < value.length(); i++) {
+            i = writeChar(value, i);
+        }
+    }
+
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes the slots {@code [first, last)} merged with the extra entries
+     * in key order. Slot keys of one group are already sorted.
+     */
+    private void writeSlots(CompactClothFeatures features, int first, int last, Map<String, ?> extras) {
+        write('{');
+        Iterator<? extends Map.Entry<String, ?>> extra = extras != null ? extras.entrySet().iterator() : null;
+        Map.Entry<String, ?> pending = extra != null && extra.hasNext() ? extra.next() : null;
+        boolean firstEntry = true;
+        int slot = nextSlot(features, first, last);
+
+        while (slot < last || pending != null) {
+            if (!firstEntry) {
+                write(',');
+            }
+            firstEntry = false;
+            if (pending == null || (slot < last && CompactClothFeatures.slotKey(slot).compareTo(pending.getKey()) < 0)) {
+                writeString(CompactClothFeatures.slotKey(slot));
+                write(':');
+                writeDouble(features.get(slot));
+                slot = nextSlot(features, slot + 1, last);
+            } else {
+                writeString(pending.getKey());
+                write(':');
+                writeValue(pending.getValue());
+                pending = extra.hasNext() ? extra.next() : null;
+            }
+        }
+        write('}');
+    }
+
+    private static int nextSlot(CompactClothFeatures features, int from, int last) {
+        int slot = from;
+        while (slot < last && !features.has(slot)) {
+            slot++;
+        }
+        return slot;
+    }
+
+    private void writeMap(Map<String, ?> map) {
+        // ORDER_MAP_ENTRIES_BY_KEYS leaves sorted maps in their own order
+        Map<String, ?> ordered = map instanceof SortedMap ? map : new TreeMap<>(map);
+        write('{');
+        boolean first = true;
+        for (Map.Entry<String, ?> entry : ordered.entrySet()) {
+            if (!first) {
+                write(',');
+            }
+            first = false;
+            writeString(entry.getKey());
+            write(':');
+            writeValue(entry.getValue());
+        }
+        write('}');
+    }
+
+    private void writeList(List<?> list) {
+        write('[');
+        for (int i = 0; i < list.size(); i++) {
+            if (i > 0) {
+                write(',');
+            }
+            writeValue(list.get(i));
+        }
+        write(']');
+    }
+
+    private void writeRoundedMap(Map<String, Double> map, double scale) {
+        write('{');
+        if (map != null) {
+            Map<String, Double> ordered = map instanceof SortedMap && ((SortedMap<String, Double>) map).comparator() == null
+                ? map
+                : new TreeMap<>(map);
+            boolean first = true;
+            for (Map.Entry<String, Double> entry : ordered.entrySet()) {
+                if (!first) {
+                    write(',');
+                }
+                first = false;
+                writeString(entry.getKey());
+                write(':');
+                writeDouble(round(entry.getValue(), scale));
+            }
+        }
+        write('}');
+    }
+
+    private void writeRoundedList(List<Double> list, double scale) {
+        write('[');
+        if (list != null) {
+            for (int i = 0; i < list.size(); i++) {
+                if (i > 0) {
+                    write(',');
+                }
+                writeDouble(round(list.get(i), scale));
+            }
+        }
+        write(']');
+    }
+
+    private static double round(double value, double scale) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return 0.0;
+        }
+        return Math.round(value * scale) / scale;
+    }
+
+    private void writeValue(Object value) {
+        if (value == null) {
+            write(NULL);
+        } else if (value instanceof Double) {
+            writeDouble((Double) value);
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            writeLong(((Number) value).longValue());
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Boolean) {
+            write((Boolean) value ? TRUE : FALSE);
+        } else {
+            try {
+                write(objectMapper.writeValueAsBytes(value));
+            } catch (JsonProcessingException e) {
+                throw new IllegalArgumentException("Cannot serialise feature value: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Writes a double exactly as Double.toString would.
+     */
+    private void writeDouble(double value) {
+        if (value == 0.0) {
+            write(Double.doubleToRawLongBits(value) == 0L ? ZERO : NEGATIVE_ZERO);
+            return;
+        }
+        double abs = Math.abs(value);
+        if (abs >= 1e-4 && abs < 1e11) {
+            long scaled = Math.round(value * SCALE);
+            if (scaled / SCALE == value) {
+                writeScaled(scaled);
+                return;
+            }
+        }
+        String text = Double.toString(value);
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            // Jackson writes non-finite numbers as strings
+            write('"');
+            writeAscii(text);
+            write('"');
+        } else {
+            writeAscii(text);
+        }
+    }
+
+    /**
+     * Formats {@code scaled / 10^4}. Such a double's shortest representation
+     * is the decimal itself, so only Double.toString's choice between plain
+     * and E notation has to be mirrored.
+     */
+    private void writeScaled(long scaled) {
+        if (scaled < 0) {
+            write('-');
+            scaled = -scaled;
+        }
+        long integer = scaled / 10000;
+        int fraction = (int) (scaled % 10000);
+
+        if (scaled < 10) {
+            // 1.0E-4 .. 9.0E-4
+            write((byte) ('0' + fraction));
+            writeAscii(".0E-4");
+        } else if (integer < 10_000_000L) {
+            writeLong(integer);
+            write('.');
+            if (fraction == 0) {
+                write('0');
+            } else {
+                int width = 4;
+                while (fraction % 10 == 0) {
+                    fraction /= 10;
+                    width--;
+                }
+                for (int i = width - 1; i >= 0; i--) {
+                    write((byte) ('0' + (fraction / POWERS_OF_TEN[i]) % 10));
+                }
+            }
+        } else {
+            // At least 1.0E7: all digits of the scaled value with the point after the first
+            int length = 0;
+            for (long rest = scaled; rest > 0; rest /= 10) {
+                digits[length++] = (byte) ('0' + rest % 10);
+            }
+            int exponent = length - 1 - 4;
+            int last = 0;
+            while (last < length - 1 && digits[last] == '0') {
+                last++;
+            }
+            write(digits[length - 1]);
+            write('.');
+            if (last == length - 1) {
+                write('0');
+            } else {
+                for (int i = length - 2; i >= last; i--) {
+                    write(digits[i]);
+                }
+            }
+            write('E');
+            writeLong(exponent);
+        }
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        int length = 0;
+        do {
+            digits[length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        for (int i = length - 1; i >= 0; i--) {
+            write(digits[i]);
+        }
+    }
+
+    /**
+     * Writes a quoted JSON string with Jackson's escaping: quote, backslash
+     * and control characters escaped, everything else as UTF-8.
+     */
+    private void writeString(String value) {
+        write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                write('\\');
+                write((byte) c);
+            } else if (c < 0x20) {
+                writeControl(c);
+            } else {
+                i = writeChar(value, i);
+            }
+        }
+        write('"');
+    }
+
+    private void writeControl(char c) {
+        write('\\');
+        switch (c) {
+            case '\b':
+                write('b');
+                break;
+            case '\t':
+                write('t');
+                break;
+            case '\n':
+                write('n');
+                break;
+            case '\f':
+                write('f');
+                break;
+            case '\r':
+                write('r');
+                break;
+            default:
+                write('u');
+                write('0');
+                write('0');
+                write(HEX[c >> 4]);
+                write(HEX[c & 0x0F]);
+        }
+    }
+
+    private void writeUtf8(String value) {
+        reset();
+        for (int i = 0; i < value.length(); i++) {
+            i = writeChar(value, i);
+        }
+    }
+
+    /**
+     * Writes the character at {@code index} as UTF-8, the way
+     * String.getBytes(UTF_8) does, and returns the index of the last char
+     * consumed.
+     */
+    private int writeChar(String value, int index) {
+        char c = value.charAt(index);
+        if (c < 0x80) {
+            write((byte) c);
+        } else if (c < 0x800) {
+            write((byte) (0xC0 | (c >> 6)));
+            write((byte) (0x80 | (c & 0x3F)));
+        } else if (Character.isHighSurrogate(c) && index + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(index + 1))) {
+            int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+            write((byte) (0xF0 | (codePoint >> 18)));
+            write((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+            write((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+            write((byte) (0x80 | (codePoint & 0x3F)));
+            return index + 1;
+        } else if (Character.isSurrogate(c)) {
+            // Unpaired surrogates become '?', as in String.getBytes
+            write('?');
+        } else {
+            write((byte) (0xE0 | (c >> 12)));
+            write((byte) (0x80 | ((c >> 6) & 0x3F)));
+            write((byte) (0x80 | (c & 0x3F)));
+        }
+        return index;
+    }
+
+    private void writeAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            write((byte) text.charAt(i));
+        }
+    }
+
+    private void write(char c) {
+        write((byte) c);
+    }
+
+    private void write(byte b) {
+        if (count == buffer.length) {
+            flush();
+        }
+        buffer[count++] = b;
+    }
+
+    private void write(byte[] bytes) {
+        if (bytes.length > buffer.length - count) {
+            flush();
+            if (bytes.length > buffer.length) {
+                digest.update(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void flush() {
+        digest.update(buffer, 0, count);
+        count = 0;
+    }
+
+    private void reset() {
+        digest.reset();
+        count = 0;
+    }
+
+    private String finishHex() {
+        flush();
+        try {
+            int length = digest.digest(hash, 0, hash.length);
+            return toHex(hash, length);
+        } catch (DigestException e) {
+            throw new IllegalStateException("SHA-256 digest failed", e);
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -1,6 +1,8 @@
 package com.clothauth.security;
 
 import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.ClothIdentity;
+import com.clothauth.model.CompactClothFeatures;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import org.slf4j.Logger;
@@ -23,8 +25,26 @@ public class HashGenerator {
         "complexity_score",
         "symmetry_score"
     ); // Include all pattern features in a fixed order
+    private static final List<String> SORTED_PATTERN_FEATURES =
+        PATTERN_FEATURE_ORDER.stream().sorted().collect(Collectors.toList());
+    private static final String SHA_256 = "SHA-256";
+
+    // Features hash versions: 1 hashes the canonical JSON, 2 the binary form
+    // described in CanonicalFeatureHasher
+    public static final int HASH_VERSION_JSON = 1;
+    public static final int HASH_VERSION_BINARY = 2;
+    public static final int CURRENT_HASH_VERSION = Integer.getInteger("clothauth.hash.version", HASH_VERSION_BINARY);
 
     public static String generateHash(Object data, String algorithm) {
+        // Features are streamed into the digest; the bytes are the same as the JSON below
+        if (data instanceof ClothFeatures && SHA_256.equals(algorithm)) {
+            try {
+                return CanonicalFeatureHasher.sha256Hex((ClothFeatures) data);
+            } catch (Exception e) {
+                logger.error("Error generating hash from features: {}", e.getMessage());
+                throw new RuntimeException("Hash generation failed", e);
+            }
+        }
         try {
             Object normalized = normalizeDataStructure(data);
             String jsonData = objectMapper.writeValueAsString(normalized);
@@ -36,6 +56,9 @@ public class HashGenerator {
     }
 
     public static String generateHash(String data, String algorithm) {
+        if (SHA_256.equals(algorithm)) {
+            return CanonicalFeatureHasher.sha256Hex(data);
+        }
         try {
             MessageDigest digest = MessageDigest.getInstance(algorithm);
             byte[] hashBytes = digest.digest(data.getBytes(StandardCharsets.UTF_8));
@@ -47,27 +70,79 @@ public class HashGenerator {
     }
 
     public static String generateSHA256Hash(Object data) {
-        return generateHash(data, "SHA-256");
+        return generateHash(data, SHA_256);
     }
 
     public static String generateSHA256Hash(String data) {
-        return generateHash(data, "SHA-256");
+        return generateHash(data, SHA_256);
+    }
+
+    /**
+     * Same digest as {@code generateSHA256Hash(features.toClothFeatures())},
+     * computed from the primitive representation without boxing.
+     */
+    public static String generateSHA256Hash(CompactClothFeatures features) {
+        try {
+            return CanonicalFeatureHasher.sha256Hex(features);
+        } catch (Exception e) {
+            logger.error("Error generating hash from features: {}", e.getMessage());
+            throw new RuntimeException("Hash generation failed", e);
+        }
+    }
+
+    /**
+     * Hashes features with the given hash version. The timestamp is never
+     * part of the hash.
+     */
+    public static String generateFeaturesHash(ClothFeatures features, int version) {
+        try {
+            switch (version) {
+                case HASH_VERSION_JSON:
+                    return CanonicalFeatureHasher.sha256Hex(features);
+                case HASH_VERSION_BINARY:
+                    return CanonicalFeatureHasher.binarySha256Hex(features);
+                default:
+                    throw new IllegalArgumentException("Unsupported hash version: " + version);
+            }
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.error("Error generating hash from features: {}", e.getMessage());
+            throw new RuntimeException("Hash generation failed", e);
+        }
+    }
+
+    public static String generateFeaturesHash(CompactClothFeatures features, int version) {
+        try {
+            switch (version) {
+                case HASH_VERSION_JSON:
+                    return CanonicalFeatureHasher.sha256Hex(features);
+                case HASH_VERSION_BINARY:
+                    return CanonicalFeatureHasher.binarySha256Hex(features);
+                default:
+                    throw new IllegalArgumentException("Unsupported hash version: " + version);
+            }
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.error("Error generating hash from features: {}", e.getMessage());
+            throw new RuntimeException("Hash generation failed", e);
+        }
+    }
+
+    /**
+     * Checks stored features against the hash of an identity, using the hash
+     * version the identity was registered with.
+     */
+    public static boolean verifyFeaturesHash(ClothIdentity identity, CompactClothFeatures features) {
+        return identity.getFeaturesHash() != null
+            && identity.getFeaturesHash().equals(generateFeaturesHash(features, identity.getHashVersion()));
     }
 
     public static String generateFeaturesOnlyHash(ClothFeatures features) {
         try {
-            // Create a copy with normalized collections
-            Map<String, Object> normalizedFeatures = new TreeMap<>();
-            
-            // Process all features in fixed order
-            normalizedFeatures.put("fabric_texture", normalizeMap(features.getFabricTexture()));
-            normalizedFeatures.put("color_histogram", normalizeList(features.getColorHistogram()));
-            normalizedFeatures.put("dimensions", normalizeMap(features.getDimensions()));
-            normalizedFeatures.put("edge_features", normalizeList(features.getEdgeFeatures()));
-            normalizedFeatures.put("pattern_features", normalizePatternFeatures(features.getPatternFeatures()));
-
-            String json = objectMapper.writeValueAsString(normalizedFeatures);
-            return generateSHA256Hash(json);
+            // Streams the normalized features (sorted keys, rounded values) into the digest
+            return CanonicalFeatureHasher.normalizedSha256Hex(features, SORTED_PATTERN_FEATURES, DECIMAL_PRECISION);
             
         } catch (Exception e) {
             logger.error("Error generating features-only hash: {}", e.getMessage());
@@ -121,24 +196,6 @@ public class HashGenerator {
             .collect(Collectors.toList());
     }
 
-    private static Map<String, Object> normalizePatternFeatures(Map<String, Object> patternFeatures) {
-        if (patternFeatures == null) return new TreeMap<>();
-        
-        Map<String, Object> normalized = new TreeMap<>();
-        
-        // Process in predefined order
-        PATTERN_FEATURE_ORDER.forEach(key -> {
-            Object value = patternFeatures.getOrDefault(key, 0.0);
-            if (value instanceof Double) {
-                normalized.put(key, roundDecimal((Double) value));
-            } else {
-                normalized.put(key, value);
-            }
-        });
-        
-        return normalized;
-    }
-
     private static double roundDecimal(double value) {
         if (Double.isNaN(value) || Double.isInfinite(value)) {
             return 0.0;
@@ -148,10 +205,6 @@ public class HashGenerator {
     }
 
     private static String bytesToHex(byte[] bytes) {
-        StringBuilder result = new StringBuilder();
-        for (byte b : bytes) {
-            result.append(String.format("%02x", b));
-        }
-        return result.toString();
+        return CanonicalFeatureHasher.toHex(bytes, bytes.length);
     }
 }
\ No newline at end of file
@@ -0,0 +1,48 @@
+package com.clothauth.security;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 of the raw bytes of an image file, read in fixed-size chunks so
+ * large images are never held in memory. Identical files have identical
+ * digests regardless of their name or location.
+ */
+public final class ImageDigest {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    // One digest and buffer per thread; both are reset after every file
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+    });
+    private static final ThreadLocal<ByteBuffer> BUFFERS =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+    
+    private ImageDigest() {
+    }
+    
+    public static String sha256Hex(Path file) throws IOException {
+        MessageDigest digest = DIGESTS.get();
+        ByteBuffer buffer = BUFFERS.get();
+        digest.reset();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        byte[] hash = digest.digest();
+        return CanonicalFeatureHasher.toHex(hash, hash.length);
+    }
+}
@@ -0,0 +1,176 @@
+package com.clothauth.service;
+
+import com.clothauth.extractor.ClothFeatureExtractor;
+import com.clothauth.index.ImageDigestIndex;
+import com.clothauth.index.SimHash;
+import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.ClothIdentity;
+import com.clothauth.security.HashGenerator;
+import com.clothauth.security.ImageDigest;
+import com.clothauth.storage.LocalStorageManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registers new cloth items: extracts their features, creates the digital
+ * identity and stores both. Shared by the interactive menu and batch ingest,
+ * and safe to call from several threads.
+ *
+ * When an ImageDigestIndex is given, the SHA-256 of the image file is
+ * checked first and an image that was registered before returns the
+ * existing identity without extracting anything. Concurrent registrations
+ * of the same image are serialised, so a batch cannot create duplicates
+ * either.
+ */
+public class ClothRegistrationService {
+    private static final Logger logger = LoggerFactory.getLogger(ClothRegistrationService.class);
+    private static final boolean DEDUPLICATE =
+        Boolean.parseBoolean(System.getProperty("clothauth.registration.deduplicate", "true"));
+    
+    private final ClothFeatureExtractor featureExtractor;
+    private final LocalStorageManager storageManager;
+    private final ImageDigestIndex digestIndex;
+    private final Map<String, Object> registrationsInFlight = new ConcurrentHashMap<>();
+    
+    public ClothRegistrationService(ClothFeatureExtractor featureExtractor, LocalStorageManager storageManager) {
+        this(featureExtractor, storageManager, null);
+    }
+    
+    public ClothRegistrationService(ClothFeatureExtractor featureExtractor, LocalStorageManager storageManager,
+                                    ImageDigestIndex digestIndex) {
+        this.featureExtractor = featureExtractor;
+        this.storageManager = storageManager;
+        this.digestIndex = digestIndex;
+    }
+    
+    public RegistrationResult register(String imagePath) {
+        // Step 0: Digest the raw image bytes and look them up before doing any work
+        String imageDigest = digest(imagePath);
+        if (digestIndex == null || !DEDUPLICATE) {
+            return new RegistrationResult(register(imagePath, imageDigest), false);
+        }
+        
+        RegistrationResult existing = findExisting(imageDigest, imagePath);
+        if (existing != null) {
+            return existing;
+        }
+        
+        Object lock = registrationsInFlight.computeIfAbsent(imageDigest, key -> new Object());
+        try {
+            synchronized (lock) {
+                // Another thread may have registered the same image meanwhile
+                existing = findExisting(imageDigest, imagePath);
+                if (existing != null) {
+                    return existing;
+                }
+                return new RegistrationResult(register(imagePath, imageDigest), false);
+            }
+        } finally {
+            registrationsInFlight.remove(imageDigest, lock);
+        }
+    }
+    
+    private ClothIdentity register(String imagePath, String imageDigest) {
+        // Generate unique cloth ID
+        String clothId = generateClothId();
+        logger.info("Registering cloth {} from image: {}", clothId, imagePath);
+        
+        // Step 1: Extract deep cloth features
+        ClothFeatures features = featureExtractor.extractFeatures(imagePath, imageDigest);
+        
+        // Step 2: Generate hashes
+        ClothIdentity identity = generateClothIdentity(clothId, features, imagePath);
+        identity.setImageDigest(imageDigest);
+        
+        // Step 3: Store features and identity together
+        storageManager.storeCloth(clothId, features, identity);
+        
+        return identity;
+    }
+    
+    /**
+     * Extracts the features of a registered cloth again from the given image
+     * and replaces its stored features and identity, keeping the cloth ID
+     * and creation time. Used to bring cloths registered before the texture
+     * stage worked up to full scoring.
+     *
+     * @return the new identity, or null if the cloth is not registered
+     */
+    public ClothIdentity reextract(String clothId, String imagePath) {
+        ClothIdentity previous = storageManager.loadClothIdentity(clothId);
+        if (previous == null) {
+            return null;
+        }
+        String imageDigest = digest(imagePath);
+        logger.info("Re-extracting cloth {} from image: {}", clothId, imagePath);
+        
+        ClothFeatures features = featureExtractor.extractFeatures(imagePath, imageDigest);
+        ClothIdentity identity = generateClothIdentity(clothId, features, imagePath);
+        identity.setImageDigest(imageDigest);
+        identity.setCreationTime(previous.getCreationTime());
+        
+        storageManager.storeCloth(clothId, features, identity);
+        return identity;
+    }
+    
+    private RegistrationResult findExisting(String imageDigest, String imagePath) {
+        String clothId = digestIndex.find(imageDigest);
+        if (clothId == null) {
+            return null;
+        }
+        ClothIdentity identity = storageManager.loadClothIdentity(clothId);
+        if (identity == null || !imageDigest.equals(identity.getImageDigest())) {
+            return null;
+        }
+        logger.info("Image {} is already registered as cloth {}", imagePath, clothId);
+        return new RegistrationResult(identity, true);
+    }
+    
+    private static String digest(String imagePath) {
+        try {
+            return ImageDigest.sha256Hex(Paths.get(imagePath));
+        } catch (IOException e) {
+            logger.error("Error reading image {}: {}", imagePath, e.getMessage());
+            throw new RuntimeException("Failed to read image: " + imagePath, e);
+        }
+    }
+    
+    public String generateClothId() {
+        String clothId;
+        do {
+            clothId = UUID.randomUUID().toString().substring(0, 8).toUpperCase();
+        } while (storageManager.clothExists(clothId));
+        return clothId;
+    }
+    
+    public ClothIdentity generateClothIdentity(String clothId, ClothFeatures features, String imagePath) {
+        ClothIdentity identity = new ClothIdentity(clothId);
+        identity.setImagePath(imagePath);
+        
+        // Generate features hash without timestamp to ensure consistency
+        features.setTimestamp(0); // Reset timestamp to ensure consistent hashing
+        String featuresHash = HashGenerator.generateFeaturesHash(features, HashGenerator.CURRENT_HASH_VERSION);
+        identity.setFeaturesHash(featuresHash);
+        identity.setHashVersion(HashGenerator.CURRENT_HASH_VERSION);
+        
+        // Tolerant signature for near-duplicate lookups
+        identity.setLshSignature(SimHash.toHex(SimHash.signature(features)));
+        
+        // Generate timestamp hash
+        long timestamp = System.currentTimeMillis();
+        String timestampHash = HashGenerator.generateSHA256Hash(String.valueOf(timestamp));
+        identity.setTimestampHash(timestampHash);
+        features.setTimestamp(timestamp); // Set the actual timestamp after hashing
+        
+        // Generate combined hash - using only features hash to ensure consistency
+        identity.setCombinedHash(featuresHash); // Use features hash as the combined hash
+        
+        return identity;
+    }
+}
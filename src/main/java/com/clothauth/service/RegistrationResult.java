@@ -0,0 +1,20 @@
+package com.clothauth.service;
+
+import com.clothauth.model.ClothIdentity;
+
+public class RegistrationResult {
+    private final ClothIdentity identity;
+    private final boolean duplicate;
+    
+    public RegistrationResult(ClothIdentity identity, boolean duplicate) {
+        this.identity = identity;
+        this.duplicate = duplicate;
+    }
+    
+    public ClothIdentity getIdentity() { return identity; }
+    
+    /**
+     * True if the image was already registered and no new cloth was created.
+     */
+    public boolean isDuplicate() { return duplicate; }
+}
@@ -0,0 +1,37 @@
+package com.clothauth.storage;
+
+import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.ClothIdentity;
+
+/**
+ * The features and identity of one cloth, committed together by
+ * {@link ClothStore#storeBatch}. Either part may be null. The group
+ * committer and write-ahead log also carry deletions as records;
+ * {@code storeBatch} is never given one.
+ */
+public final class ClothRecord {
+    private final String clothId;
+    private final ClothFeatures features;
+    private final ClothIdentity identity;
+    private final boolean deletion;
+    
+    public ClothRecord(String clothId, ClothFeatures features, ClothIdentity identity) {
+        this(clothId, features, identity, false);
+    }
+    
+    private ClothRecord(String clothId, ClothFeatures features, ClothIdentity identity, boolean deletion) {
+        this.clothId = clothId;
+        this.features = features;
+        this.identity = identity;
+        this.deletion = deletion;
+    }
+    
+    public static ClothRecord deletion(String clothId) {
+        return new ClothRecord(clothId, null, null, true);
+    }
+    
+    public String getClothId() { return clothId; }
+    public ClothFeatures getFeatures() { return features; }
+    public ClothIdentity getIdentity() { return identity; }
+    public boolean isDeletion() { return deletion; }
+}
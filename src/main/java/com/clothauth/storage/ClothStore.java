@@ -0,0 +1,161 @@
+package com.clothauth.storage;
+
+import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.CompactClothFeatures;
+import com.clothauth.model.ClothIdentity;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Storage backend behind {@link LocalStorageManager}. Implementations only
+ * persist and look up records; logging, listener notification and error
+ * policy stay in the manager.
+ */
+public interface ClothStore extends Closeable {
+    
+    String getName();
+    
+    void storeFeatures(String clothId, ClothFeatures features) throws IOException;
+    
+    void storeIdentity(String clothId, ClothIdentity identity) throws IOException;
+    
+    /**
+     * Writes the features and identity of several cloths as one commit,
+     * forcing them to disk as the policy says. The default writes them one
+     * after another without forcing.
+     *
+     * @throws PartialBatchException if it failed after part of the batch
+     *     was stored; any other exception means nothing was
+     */
+    default void storeBatch(List<ClothRecord> records, FsyncPolicy fsync) throws IOException {
+        List<String> stored = new ArrayList<>();
+        try {
+            for (ClothRecord record : records) {
+                if (record.getFeatures() != null) {
+                    storeFeatures(record.getClothId(), record.getFeatures());
+                    stored.add(record.getClothId());
+                }
+                if (record.getIdentity() != null) {
+                    storeIdentity(record.getClothId(), record.getIdentity());
+                    if (record.getFeatures() == null) {
+                        stored.add(record.getClothId());
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (stored.isEmpty()) {
+                throw e;
+            }
+            throw new PartialBatchException(stored, e);
+        }
+    }
+    
+    /**
+     * @return the stored features, or {@code null} if there are none
+     */
+    ClothFeatures loadFeatures(String clothId) throws IOException;
+    
+    /**
+     * Loads features in their primitive form. Backends that can decode
+     * straight into it override this to skip the boxed model.
+     *
+     * @return the stored features, or {@code null} if there are none
+     */
+    default CompactClothFeatures loadCompactFeatures(String clothId) throws IOException {
+        ClothFeatures features = loadFeatures(clothId);
+        return features != null ? CompactClothFeatures.from(features) : null;
+    }
+    
+    /**
+     * @return the stored identity, or {@code null} if there is none
+     */
+    ClothIdentity loadIdentity(String clothId) throws IOException;
+    
+    /**
+     * A value that changes whenever the stored features of a cloth change,
+     * looked up without reading the record. Indexes that keep their own copy
+     * of the features save it to recognise copies that went stale.
+     *
+     * @return the fingerprint, or 0 if the backend cannot tell without reading the record
+     */
+    default long featuresFingerprint(String clothId) {
+        return 0;
+    }
+    
+    /**
+     * Like {@link #featuresFingerprint}, for the stored identity.
+     *
+     * @return the fingerprint, or 0 if the backend cannot tell without reading the record
+     */
+    default long identityFingerprint(String clothId) {
+        return 0;
+    }
+    
+    boolean exists(String clothId);
+    
+    /**
+     * @return the IDs of all cloths that have stored features
+     */
+    List<String> listClothIds() throws IOException;
+    
+    /**
+     * IDs of cloths that have a stored identity but no features, which the
+     * other listings leave out. The default assumes there are none.
+     */
+    default List<String> listIdentityOnlyClothIds() throws IOException {
+        return Collections.emptyList();
+    }
+    
+    /**
+     * One page of IDs in sorted order: at most {@code limit} IDs after
+     * {@code afterId}, or from the first one if it is null.
+     */
+    default List<String> listClothIds(String afterId, int limit) throws IOException {
+        List<String> page = new ArrayList<>();
+        for (String clothId : sortedClothIds()) {
+            if (page.size() >= limit) {
+                break;
+            }
+            if (afterId == null || clothId.compareTo(afterId) > 0) {
+                page.add(clothId);
+            }
+        }
+        return page;
+    }
+    
+    /**
+     * IDs from {@code fromId} (inclusive) to {@code toId} (exclusive), sorted.
+     */
+    default List<String> listClothIds(String fromId, String toId) throws IOException {
+        List<String> range = new ArrayList<>();
+        for (String clothId : sortedClothIds()) {
+            if (clothId.compareTo(fromId) >= 0 && clothId.compareTo(toId) < 0) {
+                range.add(clothId);
+            }
+        }
+        return range;
+    }
+    
+    private List<String> sortedClothIds() throws IOException {
+        List<String> clothIds = new ArrayList<>(listClothIds());
+        Collections.sort(clothIds);
+        return clothIds;
+    }
+    
+    void delete(String clothId) throws IOException;
+    
+    /**
+     * Forces everything written so far, including batches stored with
+     * {@link FsyncPolicy#DEFERRED}, to disk.
+     */
+    default void sync() throws IOException {
+    }
+    
+    @Override
+    default void close() throws IOException {
+    }
+}
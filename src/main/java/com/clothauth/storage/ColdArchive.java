@@ -0,0 +1,491 @@
+package com.clothauth.storage;
+
+import com.clothauth.cache.CacheStats;
+import com.clothauth.cache.LruCache;
+import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.ClothIdentity;
+import com.clothauth.model.CompactClothFeatures;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Read-mostly tier of block-compressed archive files for cloths that are no
+ * longer expected to change.
+ *
+ * An archive file is {@code [magic][version]}, then Deflate-compressed
+ * blocks of about {@code blockBytes} of records, then an index of the
+ * blocks (offset, lengths, CRC32 of the uncompressed data) and of the
+ * records (ID, block, offset and lengths of the features and identity in
+ * the block), and a fixed trailer {@code [index offset][index length][magic]}.
+ * Records use the binary encoding of {@link RecordCodec}.
+ *
+ * Files are written once, under a temporary name, and never modified. Only
+ * their indexes are loaded at startup; a read decompresses one block, and
+ * recently used blocks are kept in a small LRU cache. Deleting an archived
+ * cloth appends a tombstone naming the newest archive it hides, so a cloth
+ * archived again later is not hidden.
+ */
+public class ColdArchive implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ColdArchive.class);
+    private static final int MAGIC = 0x434C4152; // "CLAR"
+    private static final int VERSION = 1;
+    private static final int TRAILER_BYTES = 16;
+    private static final Pattern ARCHIVE_FILE = Pattern.compile("archive-(\\d+)\\.arc");
+    private static final String TOMBSTONE_FILE = "tombstones.log";
+    
+    private final Path directory;
+    private final int blockBytes;
+    private final Map<Integer, Archive> archives = new ConcurrentSkipListMap<>();
+    // Sorted, so the tiered store can page the archive without copying it
+    private final ConcurrentSkipListMap<String, Location> locations = new ConcurrentSkipListMap<>();
+    private final LruCache<Long, byte[]> blockCache;
+    private int nextArchiveId = 1;
+    
+    private static final class Archive {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        final long[] blockOffsets;
+        final int[] compressedLengths;
+        final int[] uncompressedLengths;
+        final int[] checksums;
+        
+        Archive(int id, Path path, FileChannel channel, int blocks) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.blockOffsets = new long[blocks];
+            this.compressedLengths = new int[blocks];
+            this.uncompressedLengths = new int[blocks];
+            this.checksums = new int[blocks];
+        }
+    }
+    
+    private static final class Location {
+        final Archive archive;
+        final int block;
+        final int offset;
+        final int featuresLength;
+        final int identityLength;
+        
+        Location(Archive archive, int block, int offset, int featuresLength, int identityLength) {
+            this.archive = archive;
+            this.block = block;
+            this.offset = offset;
+            this.featuresLength = featuresLength;
+            this.identityLength = identityLength;
+        }
+    }
+    
+    public ColdArchive(Path directory, int blockBytes, long blockCacheBytes) throws IOException {
+        this.directory = directory;
+        this.blockBytes = blockBytes;
+        this.blockCache = new LruCache<>(blockCacheBytes, block -> block.length);
+        if (Files.isDirectory(directory)) {
+            open();
+        }
+    }
+    
+    public boolean contains(String clothId) {
+        return locations.containsKey(clothId);
+    }
+    
+    public int size() {
+        return locations.size();
+    }
+    
+    public boolean hasFeatures(String clothId) {
+        Location location = locations.get(clothId);
+        return location != null && location.featuresLength >= 0;
+    }
+    
+    public List<String> listClothIds() {
+        return new ArrayList<>(locations.keySet());
+    }
+    
+    /**
+     * @return the archived IDs that have an identity but no features
+     */
+    public List<String> listIdentityOnlyClothIds() {
+        List<String> clothIds = new ArrayList<>();
+        for (Map.Entry<String, Location> entry : locations.entrySet()) {
+            if (entry.getValue().featuresLength < 0 && entry.getValue().identityLength >= 0) {
+                clothIds.add(entry.getKey());
+            }
+        }
+        return clothIds;
+    }
+    
+    /**
+     * @return up to {@code limit} archived IDs after {@code afterId} (exclusive), in sorted order
+     */
+    public List<String> listClothIds(String afterId, int limit) {
+        Map<String, Location> tail = afterId == null ? locations : locations.tailMap(afterId, false);
+        List<String> page = new ArrayList<>(Math.min(limit, 1024));
+        for (String clothId : tail.keySet()) {
+            if (page.size() >= limit) {
+                break;
+            }
+            page.add(clothId);
+        }
+        return page;
+    }
+    
+    /**
+     * @return the archived IDs in [fromId, toId), in sorted order
+     */
+    public List<String> listClothIds(String fromId, String toId) {
+        return new ArrayList<>(locations.subMap(fromId, true, toId, false).keySet());
+    }
+    
+    /**
+     * @return the archived features, or null if the cloth is not archived
+     */
+    public ClothFeatures loadFeatures(String clothId) throws IOException {
+        Location location = locations.get(clothId);
+        if (location == null || location.featuresLength < 0) {
+            return null;
+        }
+        return RecordCodec.decodeFeatures(block(location), location.offset, location.featuresLength);
+    }
+    
+    /**
+     * @return a value identifying the archived features of the cloth, or 0 if it is not archived
+     */
+    public long featuresFingerprint(String clothId) {
+        Location location = locations.get(clothId);
+        return location != null && location.featuresLength >= 0 ? fingerprint(location) : 0;
+    }
+    
+    /**
+     * @return a value identifying the archived identity of the cloth, or 0 if it is not archived
+     */
+    public long identityFingerprint(String clothId) {
+        Location location = locations.get(clothId);
+        return location != null && location.identityLength >= 0 ? fingerprint(location) : 0;
+    }
+    
+    private static long fingerprint(Location location) {
+        // Archive files are written once, so a location always holds the same bytes
+        return Long.MIN_VALUE | (long) location.archive.id << 40 ^ (long) location.block << 20 ^ location.offset;
+    }
+    
+    public CompactClothFeatures loadCompactFeatures(String clothId) throws IOException {
+        Location location = locations.get(clothId);
+        if (location == null || location.featuresLength < 0) {
+            return null;
+        }
+        return RecordCodec.decodeCompactFeatures(block(location), location.offset, location.featuresLength);
+    }
+    
+    public ClothIdentity loadIdentity(String clothId) throws IOException {
+        Location location = locations.get(clothId);
+        if (location == null || location.identityLength < 0) {
+            return null;
+        }
+        int offset = location.offset + Math.max(0, location.featuresLength);
+        return RecordCodec.decodeIdentity(block(location), offset, location.identityLength);
+    }
+    
+    /**
+     * Hides an archived cloth. The tombstone is synced before this returns.
+     */
+    public synchronized void delete(String clothId) throws IOException {
+        Location location = locations.remove(clothId);
+        if (location == null) {
+            return;
+        }
+        byte[] line = (clothId + " " + location.archive.id + "\n").getBytes(StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(directory.resolve(TOMBSTONE_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            writeFully(channel, ByteBuffer.wrap(line));
+            channel.force(false);
+        }
+    }
+    
+    /**
+     * Writes the records to a new archive file and makes them readable. The
+     * file is synced and renamed into place before any record is indexed,
+     * so a crash leaves either the whole file or none of it.
+     */
+    public synchronized void append(List<ClothRecord> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        Files.createDirectories(directory);
+        int id = nextArchiveId++;
+        Path path = archivePath(id);
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        
+        List<long[]> blocks = new ArrayList<>();
+        ByteArrayOutputStream index = new ByteArrayOutputStream(64 * records.size());
+        DataOutputStream recordIndex = new DataOutputStream(index);
+        recordIndex.writeInt(records.size());
+        long rawBytes = 0;
+        try (FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(8).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            writeFully(channel, header);
+            
+            ByteArrayOutputStream block = new ByteArrayOutputStream(blockBytes + 16 * 1024);
+            for (ClothRecord record : records) {
+                byte[] features = record.getFeatures() != null ? RecordCodec.encodeFeatures(record.getFeatures()) : null;
+                byte[] identity = record.getIdentity() != null ? RecordCodec.encodeIdentity(record.getIdentity()) : null;
+                RecordCodec.writeString(recordIndex, record.getClothId());
+                recordIndex.writeInt(blocks.size());
+                recordIndex.writeInt(block.size());
+                recordIndex.writeInt(features != null ? features.length : -1);
+                recordIndex.writeInt(identity != null ? identity.length : -1);
+                if (features != null) {
+                    block.write(features);
+                }
+                if (identity != null) {
+                    block.write(identity);
+                }
+                if (block.size() >= blockBytes) {
+                    rawBytes += block.size();
+                    blocks.add(writeBlock(channel, block.toByteArray()));
+                    block.reset();
+                }
+            }
+            if (block.size() > 0) {
+                rawBytes += block.size();
+                blocks.add(writeBlock(channel, block.toByteArray()));
+            }
+            
+            recordIndex.flush();
+            ByteArrayOutputStream footer = new ByteArrayOutputStream(24 * blocks.size() + index.size() + 8);
+            DataOutputStream out = new DataOutputStream(footer);
+            out.writeInt(blocks.size());
+            for (long[] entry : blocks) {
+                out.writeLong(entry[0]);
+                out.writeInt((int) entry[1]);
+                out.writeInt((int) entry[2]);
+                out.writeInt((int) entry[3]);
+            }
+            index.writeTo(out);
+            out.flush();
+            long indexOffset = channel.position();
+            writeFully(channel, ByteBuffer.wrap(footer.toByteArray()));
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES).putLong(indexOffset).putInt(footer.size()).putInt(MAGIC);
+            trailer.flip();
+            writeFully(channel, trailer);
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // Directories cannot be opened for syncing on every platform
+            logger.debug("Could not sync directory {}: {}", directory, e.getMessage());
+        }
+        load(id, path);
+        logger.info("Archived {} cloths into {} ({} blocks, {} KB raw, {} KB on disk)", records.size(), path,
+            blocks.size(), rawBytes / 1024, Files.size(path) / 1024);
+    }
+    
+    public int getArchiveCount() {
+        return archives.size();
+    }
+    
+    public long getDiskBytes() {
+        long bytes = 0;
+        for (Archive archive : archives.values()) {
+            try {
+                bytes += archive.channel.size();
+            } catch (IOException e) {
+                // Closed meanwhile
+            }
+        }
+        return bytes;
+    }
+    
+    public CacheStats getBlockCacheStats() {
+        return blockCache.stats();
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        for (Archive archive : archives.values()) {
+            archive.channel.close();
+        }
+        archives.clear();
+        locations.clear();
+    }
+    
+    private void open() throws IOException {
+        long start = System.nanoTime();
+        List<Integer> ids = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> {
+                Matcher matcher = ARCHIVE_FILE.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    ids.add(Integer.parseInt(matcher.group(1)));
+                }
+            });
+        }
+        ids.sort(null);
+        for (int id : ids) {
+            load(id, archivePath(id));
+            nextArchiveId = id + 1;
+        }
+        Path tombstones = directory.resolve(TOMBSTONE_FILE);
+        int hidden = 0;
+        if (Files.exists(tombstones)) {
+            try (BufferedReader reader = Files.newBufferedReader(tombstones, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int space = line.lastIndexOf(' ');
+                    if (space < 0) {
+                        continue;
+                    }
+                    String clothId = line.substring(0, space);
+                    int archiveId = Integer.parseInt(line.substring(space + 1).trim());
+                    Location location = locations.get(clothId);
+                    if (location != null && location.archive.id <= archiveId) {
+                        locations.remove(clothId);
+                        hidden++;
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // Only the last line can be torn
+                logger.warn("Ignoring a torn line in {}", tombstones);
+            }
+        }
+        logger.info("Opened cold archive with {} cloths in {} files ({} deleted) in {} ms",
+            locations.size(), archives.size(), hidden, (System.nanoTime() - start) / 1_000_000);
+    }
+    
+    private void load(int id, Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+            readFully(channel, trailer, size - TRAILER_BYTES);
+            trailer.flip();
+            long indexOffset = trailer.getLong();
+            int indexLength = trailer.getInt();
+            if (trailer.getInt() != MAGIC || indexOffset < 8 || indexOffset + indexLength + TRAILER_BYTES != size) {
+                throw new IOException("Not a complete archive file: " + path);
+            }
+            ByteBuffer indexBuffer = ByteBuffer.allocate(indexLength);
+            readFully(channel, indexBuffer, indexOffset);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(indexBuffer.array()));
+            Archive archive = new Archive(id, path, channel, in.readInt());
+            for (int block = 0; block < archive.blockOffsets.length; block++) {
+                archive.blockOffsets[block] = in.readLong();
+                archive.compressedLengths[block] = in.readInt();
+                archive.uncompressedLengths[block] = in.readInt();
+                archive.checksums[block] = in.readInt();
+            }
+            int records = in.readInt();
+            for (int i = 0; i < records; i++) {
+                String clothId = RecordCodec.readString(in);
+                // Later archives hold newer copies
+                locations.put(clothId, new Location(archive, in.readInt(), in.readInt(), in.readInt(), in.readInt()));
+            }
+            archives.put(id, archive);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    private byte[] block(Location location) throws IOException {
+        Archive archive = location.archive;
+        long key = ((long) archive.id << 32) | location.block;
+        byte[] data = blockCache.get(key);
+        if (data != null) {
+            return data;
+        }
+        ByteBuffer compressed = ByteBuffer.allocate(archive.compressedLengths[location.block]);
+        readFully(archive.channel, compressed, archive.blockOffsets[location.block]);
+        data = new byte[archive.uncompressedLengths[location.block]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array());
+            int length = inflater.inflate(data);
+            if (length != data.length) {
+                throw new IOException("Short block " + location.block + " in " + archive.path);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt block " + location.block + " in " + archive.path, e);
+        } finally {
+            inflater.end();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if ((int) crc.getValue() != archive.checksums[location.block]) {
+            throw new IOException("Checksum mismatch in block " + location.block + " of " + archive.path);
+        }
+        blockCache.put(key, data);
+        return data;
+    }
+    
+    private static long[] writeBlock(FileChannel channel, byte[] data) throws IOException {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[16 * 1024];
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.end();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        long offset = channel.position();
+        writeFully(channel, ByteBuffer.wrap(compressed.toByteArray()));
+        return new long[] {offset, compressed.size(), data.length, (int) crc.getValue()};
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+    
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of archive file");
+            }
+            position += read;
+        }
+    }
+    
+    private Path archivePath(int id) {
+        return directory.resolve(String.format("archive-%06d.arc", id));
+    }
+}
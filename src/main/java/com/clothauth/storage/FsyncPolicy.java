@@ -0,0 +1,38 @@
+package com.clothauth.storage;
+
+/**
+ * When committed writes are forced to disk, set with
+ * {@code clothauth.storage.fsync}.
+ */
+public enum FsyncPolicy {
+    /**
+     * Never force; the operating system flushes in its own time. A crash
+     * can lose recent commits, but never leaves a torn file.
+     */
+    NONE,
+    
+    /**
+     * Force the written data and the renamed directory entries once per
+     * group commit, before any of its callers return.
+     */
+    BATCH,
+    
+    /**
+     * Do not force now; the next {@link ClothStore#sync()} forces everything
+     * written since. Used behind the write-ahead log, which is forced
+     * instead, and not configurable.
+     */
+    DEFERRED;
+    
+    public static FsyncPolicy fromSystemProperties() {
+        String value = System.getProperty("clothauth.storage.fsync", "batch");
+        switch (value.trim().toLowerCase()) {
+            case "none":
+                return NONE;
+            case "batch":
+                return BATCH;
+            default:
+                throw new IllegalArgumentException("Unknown fsync policy: " + value);
+        }
+    }
+}
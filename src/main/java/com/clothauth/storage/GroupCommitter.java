@@ -0,0 +1,336 @@
+package com.clothauth.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the writes of concurrent callers into group commits, so one
+ * round of file syncs covers many registrations.
+ *
+ * A single writer thread takes the first waiting record, keeps collecting
+ * until the batch is full or the record has waited {@code maxLatencyMillis},
+ * and hands the batch to {@link ClothStore#storeBatch}. Each caller blocks
+ * until the commit holding its record is done, so a record is durable under
+ * the fsync policy by the time {@link #commit} returns.
+ *
+ * With a write-ahead log, the batch is appended to the log and only the log
+ * is forced; the store is written with {@link FsyncPolicy#DEFERRED} and
+ * synced at each checkpoint, after {@code checkpointRecords} operations
+ * and on close. Deletes go through the same queue so the log replays
+ * operations in the order they were applied. A batch that fails before any
+ * of it reached the store is rolled back out of the log before its callers
+ * see the failure, so it is not replayed later. One that was partly applied
+ * is applied once more; if that fails too, it stays in the log as the
+ * record to repair the store from, no further checkpoint is taken and the
+ * next start replays it.
+ */
+public class GroupCommitter implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(GroupCommitter.class);
+    
+    private final ClothStore store;
+    private final FsyncPolicy fsync;
+    private final int maxBatch;
+    private final long maxLatencyNanos;
+    private final WriteAheadLog wal;
+    private final int checkpointRecords;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private volatile boolean closed;
+    // A partly applied batch is in the log and must be replayed at the next start
+    private volatile boolean replayPending;
+    
+    private static final class Pending {
+        final ClothRecord record;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        
+        Pending(ClothRecord record) {
+            this.record = record;
+        }
+    }
+    
+    public GroupCommitter(ClothStore store, FsyncPolicy fsync, int maxBatch, long maxLatencyMillis) {
+        this(store, fsync, maxBatch, maxLatencyMillis, null, 0);
+    }
+    
+    /**
+     * @param wal the write-ahead log to append every batch to, or null
+     */
+    public GroupCommitter(ClothStore store, FsyncPolicy fsync, int maxBatch, long maxLatencyMillis,
+                          WriteAheadLog wal, int checkpointRecords) {
+        this.store = store;
+        this.fsync = fsync;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxLatencyMillis));
+        this.wal = wal;
+        this.checkpointRecords = Math.max(1, checkpointRecords);
+        this.writer = new Thread(this::run, "group-commit");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    /**
+     * Commits a record with the next group and waits for it.
+     */
+    public void commit(ClothRecord record) throws IOException {
+        submit(record);
+    }
+    
+    /**
+     * Deletes a cloth in the next group and waits for it.
+     */
+    public void delete(String clothId) throws IOException {
+        submit(ClothRecord.deletion(clothId));
+    }
+    
+    private void submit(ClothRecord record) throws IOException {
+        if (closed) {
+            throw new IOException("Storage is closed");
+        }
+        Pending pending = new Pending(record);
+        queue.add(pending);
+        if (closed && !writer.isAlive()) {
+            failRemaining();
+        }
+        try {
+            pending.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the commit of cloth " + record.getClothId());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Commit failed", e.getCause());
+        }
+    }
+    
+    public long getCommits() {
+        return commits.get();
+    }
+    
+    public long getRecords() {
+        return records.get();
+    }
+    
+    @Override
+    public String toString() {
+        long count = commits.get();
+        return String.format("%d records in %d commits (%.1f per commit, fsync %s)",
+            records.get(), count, count > 0 ? (double) records.get() / count : 0.0, fsync.name().toLowerCase());
+    }
+    
+    /**
+     * Commits what is already queued and stops the writer.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failRemaining();
+        if (wal != null) {
+            try {
+                if (replayPending) {
+                    logger.warn("Keeping {} logged operations for the next start to replay", wal.getRecords());
+                } else {
+                    checkpoint();
+                }
+                wal.close();
+            } catch (IOException e) {
+                // The log is replayed at the next start
+                logger.error("Failed to checkpoint the write-ahead log: {}", e.getMessage());
+            }
+        }
+    }
+    
+    private void run() {
+        List<Pending> batch = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxLatencyNanos;
+                while (batch.size() < maxBatch) {
+                    long remaining = deadline - System.nanoTime();
+                    Pending next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Only close() stops the writer; commit what was collected
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+                batch.clear();
+            }
+        }
+    }
+    
+    private void write(List<Pending> batch) {
+        List<ClothRecord> batchRecords = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            batchRecords.add(pending.record);
+        }
+        try {
+            if (wal != null) {
+                long logPosition = wal.append(batchRecords, fsync == FsyncPolicy.BATCH);
+                try {
+                    apply(batchRecords, FsyncPolicy.DEFERRED);
+                } catch (PartialBatchException e) {
+                    rollForward(batchRecords, e);
+                } catch (IOException | RuntimeException e) {
+                    // Nothing was applied and callers are told so; the next start must not replay it
+                    rollback(logPosition, batchRecords.size(), e);
+                    throw e;
+                }
+                if (wal.getRecords() >= checkpointRecords) {
+                    tryCheckpoint();
+                }
+            } else {
+                apply(batchRecords, fsync);
+            }
+            commits.incrementAndGet();
+            records.addAndGet(batch.size());
+            logger.debug("Committed {} cloths", batch.size());
+            for (Pending pending : batch) {
+                pending.done.complete(null);
+            }
+        } catch (Throwable e) {
+            logger.error("Group commit of {} cloths failed: {}", batch.size(), e.getMessage());
+            for (Pending pending : batch) {
+                pending.done.completeExceptionally(e);
+            }
+        }
+    }
+    
+    /**
+     * Stores runs of records as batches and applies deletions between them.
+     *
+     * @throws PartialBatchException if it failed after part of the
+     *     operations reached the store
+     */
+    private void apply(List<ClothRecord> operations, FsyncPolicy storeFsync) throws IOException {
+        List<String> applied = new ArrayList<>();
+        List<ClothRecord> run = new ArrayList<>(operations.size());
+        try {
+            for (ClothRecord operation : operations) {
+                if (operation.isDeletion()) {
+                    if (!run.isEmpty()) {
+                        store.storeBatch(run, storeFsync);
+                        addClothIds(applied, run);
+                        run = new ArrayList<>();
+                    }
+                    // A failed delete may have removed part of the cloth
+                    applied.add(operation.getClothId());
+                    store.delete(operation.getClothId());
+                } else {
+                    run.add(operation);
+                }
+            }
+            if (!run.isEmpty()) {
+                store.storeBatch(run, storeFsync);
+            }
+        } catch (PartialBatchException e) {
+            if (applied.isEmpty()) {
+                throw e;
+            }
+            applied.addAll(e.getInstalledClothIds());
+            throw new PartialBatchException(applied, e.getCause());
+        } catch (IOException | RuntimeException e) {
+            if (applied.isEmpty()) {
+                throw e;
+            }
+            throw new PartialBatchException(applied, e);
+        }
+    }
+    
+    private static void addClothIds(List<String> clothIds, List<ClothRecord> records) {
+        for (ClothRecord record : records) {
+            clothIds.add(record.getClothId());
+        }
+    }
+    
+    /**
+     * Repairs a partly applied batch by applying all of it again, which
+     * leaves each cloth as if the batch had succeeded. If that fails too,
+     * the batch is kept in the log and no longer checkpointed away, so the
+     * next start replays it; its callers are told so.
+     */
+    private void rollForward(List<ClothRecord> operations, PartialBatchException failure) throws IOException {
+        logger.warn("Batch was partly applied ({} cloths), applying it again: {}",
+            failure.getInstalledClothIds().size(), failure.getMessage());
+        try {
+            apply(operations, FsyncPolicy.DEFERRED);
+        } catch (IOException | RuntimeException e) {
+            replayPending = true;
+            logger.error("Batch is still partly applied, keeping it in the write-ahead log for the next start: {}", e.getMessage());
+            IOException pending = new IOException("Batch was partly applied and will be applied again at the next start", e);
+            pending.addSuppressed(failure);
+            throw pending;
+        }
+    }
+    
+    private void rollback(long logPosition, int operations, Exception cause) {
+        try {
+            wal.rollback(logPosition, operations);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+            logger.error("Failed to roll back the write-ahead log, the failed batch will be replayed: {}", e.getMessage());
+        }
+    }
+    
+    /**
+     * Checkpoints after a batch has been applied. A failure does not undo
+     * the batch: its operations stay in the log, and the next checkpoint
+     * or start takes care of them.
+     */
+    private void tryCheckpoint() {
+        if (replayPending) {
+            return;
+        }
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            logger.error("Failed to checkpoint the write-ahead log, keeping {} operations: {}", wal.getRecords(), e.getMessage());
+        }
+    }
+    
+    private void checkpoint() throws IOException {
+        long start = System.nanoTime();
+        int logged = wal.getRecords();
+        if (fsync != FsyncPolicy.NONE) {
+            store.sync();
+        }
+        wal.checkpoint();
+        logger.debug("Checkpointed {} logged operations in {} ms", logged, (System.nanoTime() - start) / 1_000_000);
+    }
+    
+    private void failRemaining() {
+        Pending pending;
+        while ((pending = queue.poll()) != null) {
+            pending.done.completeExceptionally(new IOException("Storage is closed"));
+        }
+    }
+}
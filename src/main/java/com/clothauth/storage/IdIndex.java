@@ -0,0 +1,411 @@
+package com.clothauth.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Persistent sorted index of the stored cloth IDs with their creation time
+ * and hash, so listing and existence checks never scan the data
+ * directories.
+ *
+ * The index is kept in memory and every change is appended to a journal
+ * file. On a clean close the journal is rewritten as a sorted snapshot
+ * ending in a CLEAN record. When the file is missing, damaged or was not
+ * closed cleanly, whatever could be replayed is reconciled with a scan of
+ * the data directories, which only reads records the journal did not know.
+ *
+ * One process at a time owns the index, holding a lock on {@code <index>.lock}
+ * while it is open. Another process opening the same store gets no index
+ * and works on the directories directly, calling {@link #markStale(Path)}
+ * before each write. The owner then no longer trusts a missing entry, and
+ * the next open reconciles with the directories even after a clean close.
+ */
+public class IdIndex implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(IdIndex.class);
+    private static final int MAGIC = 0x434C4944; // "CLID"
+    private static final int VERSION = 1;
+    
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_DELETE = 2;
+    private static final byte RECORD_CLEAN = 3;
+    private static final byte RECORD_OPEN = 4;
+    
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+    
+    /**
+     * Lists what is actually stored. {@code known} holds the replayed
+     * entries; entries with an identity need not be read again.
+     */
+    public interface Source {
+        Map<String, Entry> scan(Map<String, Entry> known) throws IOException;
+    }
+    
+    public static final class Entry {
+        public static final int FEATURES = 1;
+        public static final int IDENTITY = 2;
+        
+        private final int flags;
+        private final long creationTime;
+        private final String hash;
+        
+        public Entry(int flags, long creationTime, String hash) {
+            this.flags = flags;
+            this.creationTime = creationTime;
+            this.hash = hash;
+        }
+        
+        public boolean hasFeatures() { return (flags & FEATURES) != 0; }
+        public boolean hasIdentity() { return (flags & IDENTITY) != 0; }
+        public int getFlags() { return flags; }
+        public long getCreationTime() { return creationTime; }
+        public String getHash() { return hash; }
+        
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Entry)) {
+                return false;
+            }
+            Entry entry = (Entry) other;
+            return flags == entry.flags && creationTime == entry.creationTime
+                && (hash == null ? entry.hash == null : hash.equals(entry.hash));
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * (31 * flags + Long.hashCode(creationTime)) + (hash != null ? hash.hashCode() : 0);
+        }
+    }
+    
+    private final Path file;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final NavigableMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+    private DataOutputStream journal;
+    private int journalRecords;
+    
+    private IdIndex(Path file, FileChannel lockChannel, FileLock lock) {
+        this.file = file;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+    }
+    
+    /**
+     * @return the index, or null if another process has it open
+     */
+    public static IdIndex open(Path file, Source source) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        FileChannel lockChannel = FileChannel.open(lockFile(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        } catch (IOException | RuntimeException e) {
+            lockChannel.close();
+            throw e;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            logger.warn("ID index {} is in use by another process, working on the directories without it", file);
+            return null;
+        }
+        
+        IdIndex index = new IdIndex(file, lockChannel, lock);
+        try {
+            index.load(source);
+        } catch (IOException | RuntimeException e) {
+            lock.release();
+            lockChannel.close();
+            throw e;
+        }
+        return index;
+    }
+    
+    private void load(Source source) throws IOException {
+        long start = System.nanoTime();
+        // Cleared before the scan, so writes by another process during it mark the index again
+        boolean stale = Files.deleteIfExists(staleFile(file));
+        boolean clean = !stale && Files.exists(file) && replay();
+        if (!clean) {
+            int replayed = entries.size();
+            Map<String, Entry> stored = source.scan(entries);
+            entries.clear();
+            entries.putAll(stored);
+            logger.info("Rebuilt ID index {} with {} entries ({} from the journal) in {} ms",
+                file, stored.size(), replayed, (System.nanoTime() - start) / 1_000_000);
+            writeSnapshot(false);
+        } else {
+            logger.info("Loaded ID index {} with {} entries in {} ms",
+                file, entries.size(), (System.nanoTime() - start) / 1_000_000);
+            // Until the next clean close, a crash makes the next open reconcile with the directories
+            journalRecords = entries.size();
+            openJournal();
+            journal.writeByte(RECORD_OPEN);
+            journal.flush();
+        }
+    }
+    
+    /**
+     * Records that a process without the index is writing to the store.
+     */
+    public static void markStale(Path file) throws IOException {
+        Path stale = staleFile(file);
+        if (!Files.exists(stale)) {
+            try {
+                Files.createFile(stale);
+            } catch (FileAlreadyExistsException e) {
+                // Marked concurrently
+            }
+        }
+    }
+    
+    /**
+     * @return true if another process wrote to the store since this index
+     *     was opened, so entries it lacks may still be on disk
+     */
+    public boolean isStale() {
+        return Files.exists(staleFile(file));
+    }
+    
+    public boolean exists(String clothId) {
+        return entries.containsKey(clothId);
+    }
+    
+    public boolean hasFeatures(String clothId) {
+        Entry entry = entries.get(clothId);
+        return entry != null && entry.hasFeatures();
+    }
+    
+    public boolean hasIdentity(String clothId) {
+        Entry entry = entries.get(clothId);
+        return entry != null && entry.hasIdentity();
+    }
+    
+    /**
+     * @return the entry of a cloth, or null if nothing is stored for it
+     */
+    public Entry get(String clothId) {
+        return entries.get(clothId);
+    }
+    
+    public int size() {
+        return entries.size();
+    }
+    
+    /**
+     * IDs with stored features, in sorted order.
+     */
+    public List<String> listClothIds() {
+        return listClothIds(null, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * One page of IDs with stored features: at most {@code limit} IDs after
+     * {@code afterId}, or from the start if it is null.
+     */
+    public List<String> listClothIds(String afterId, int limit) {
+        NavigableMap<String, Entry> tail = afterId == null ? entries : entries.tailMap(afterId, false);
+        return collect(tail, limit);
+    }
+    
+    /**
+     * IDs with a stored identity but no features, in sorted order.
+     */
+    public List<String> listIdentityOnlyClothIds() {
+        List<String> clothIds = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entry.getValue().hasIdentity() && !entry.getValue().hasFeatures()) {
+                clothIds.add(entry.getKey());
+            }
+        }
+        return clothIds;
+    }
+    
+    /**
+     * IDs with stored features from {@code fromId} (inclusive) to
+     * {@code toId} (exclusive).
+     */
+    public List<String> listClothIds(String fromId, String toId) {
+        return collect(entries.subMap(fromId, true, toId, false), Integer.MAX_VALUE);
+    }
+    
+    public synchronized void featuresStored(String clothId) throws IOException {
+        Entry entry = entries.get(clothId);
+        if (entry == null) {
+            put(clothId, new Entry(Entry.FEATURES, 0, null));
+        } else if (!entry.hasFeatures()) {
+            put(clothId, new Entry(entry.getFlags() | Entry.FEATURES, entry.getCreationTime(), entry.getHash()));
+        }
+    }
+    
+    public synchronized void identityStored(String clothId, long creationTime, String hash) throws IOException {
+        Entry entry = entries.get(clothId);
+        int flags = (entry != null ? entry.getFlags() : 0) | Entry.IDENTITY;
+        Entry updated = new Entry(flags, creationTime, hash);
+        if (!updated.equals(entry)) {
+            put(clothId, updated);
+        }
+    }
+    
+    public synchronized void deleted(String clothId) throws IOException {
+        if (entries.remove(clothId) != null) {
+            journal.writeByte(RECORD_DELETE);
+            RecordCodec.writeString(journal, clothId);
+            appended();
+        }
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (journal != null) {
+                writeSnapshot(true);
+            }
+        } finally {
+            lock.release();
+            lockChannel.close();
+        }
+    }
+    
+    private static Path lockFile(Path file) {
+        return file.resolveSibling(file.getFileName() + ".lock");
+    }
+    
+    private static Path staleFile(Path file) {
+        return file.resolveSibling(file.getFileName() + ".stale");
+    }
+    
+    private static List<String> collect(NavigableMap<String, Entry> range, int limit) {
+        List<String> clothIds = new ArrayList<>(Math.min(limit, 1024));
+        for (Map.Entry<String, Entry> entry : range.entrySet()) {
+            if (clothIds.size() >= limit) {
+                break;
+            }
+            if (entry.getValue().hasFeatures()) {
+                clothIds.add(entry.getKey());
+            }
+        }
+        return clothIds;
+    }
+    
+    private void put(String clothId, Entry entry) throws IOException {
+        entries.put(clothId, entry);
+        writePut(journal, clothId, entry);
+        appended();
+    }
+    
+    private void appended() throws IOException {
+        journal.flush();
+        if (++journalRecords > Math.max(MIN_COMPACTION_RECORDS, 2 * entries.size())) {
+            writeSnapshot(false);
+        }
+    }
+    
+    private static void writePut(DataOutputStream out, String clothId, Entry entry) throws IOException {
+        out.writeByte(RECORD_PUT);
+        RecordCodec.writeString(out, clothId);
+        out.writeByte(entry.getFlags());
+        out.writeLong(entry.getCreationTime());
+        RecordCodec.writeNullableString(out, entry.getHash());
+    }
+    
+    /**
+     * Replays the journal into memory.
+     *
+     * @return true if it ended with a CLEAN record
+     */
+    private boolean replay() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.warn("Ignoring ID index {} with unknown format", file);
+                return false;
+            }
+            boolean clean = false;
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    return clean;
+                }
+                clean = false;
+                switch (type) {
+                    case RECORD_PUT:
+                        String clothId = RecordCodec.readString(in);
+                        int flags = in.readUnsignedByte();
+                        long creationTime = in.readLong();
+                        entries.put(clothId, new Entry(flags, creationTime, RecordCodec.readNullableString(in)));
+                        break;
+                    case RECORD_DELETE:
+                        entries.remove(RecordCodec.readString(in));
+                        break;
+                    case RECORD_CLEAN:
+                        clean = true;
+                        break;
+                    case RECORD_OPEN:
+                        break;
+                    default:
+                        logger.warn("Unknown record type {} in ID index {}", type, file);
+                        return false;
+                }
+            }
+        } catch (EOFException e) {
+            logger.warn("ID index {} ends in a torn record", file);
+            return false;
+        } catch (IOException e) {
+            logger.warn("Could not read ID index {}: {}", file, e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Rewrites the journal as a sorted snapshot. A closing snapshot ends in a
+     * CLEAN record; otherwise an OPEN record marks the index as in use and
+     * the journal stays open for appends.
+     */
+    private void writeSnapshot(boolean closing) throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writePut(out, entry.getKey(), entry.getValue());
+            }
+            out.writeByte(closing ? RECORD_CLEAN : RECORD_OPEN);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journalRecords = entries.size();
+        if (!closing) {
+            openJournal();
+        }
+    }
+    
+    private void openJournal() throws IOException {
+        journal = new DataOutputStream(new BufferedOutputStream(
+            Files.newOutputStream(file, StandardOpenOption.APPEND), 8192));
+    }
+}
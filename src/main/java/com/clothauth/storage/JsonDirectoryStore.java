@@ -0,0 +1,590 @@
+package com.clothauth.storage;
+
+import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.ClothIdentity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Legacy backend: one JSON file per cloth for the features and one for the
+ * identity, compact by default or in another {@link StorageFormat}. Files
+ * are written to a temporary name and renamed into place, so readers and
+ * crashes never see a partly written file.
+ *
+ * Files are written in a two-level fan-out by the SHA-256 of the cloth ID,
+ * e.g. {@code features/3a/7f/<id>.json}, so no directory grows past a few
+ * thousand entries. The original flat layout ({@code features/<id>_features.json})
+ * is still read, and {@link #migrateToSharded()} moves it over while the
+ * store is in use. With {@code clothauth.storage.json.layout=flat} new
+ * files are written flat instead.
+ *
+ * With an ID index, listing and existence checks are answered from the
+ * index and loads read the file without checking for it first; without
+ * one, every call goes to the file system. When another process holds the
+ * index, this store runs without it and marks it stale before every
+ * write; the holder then checks the files for IDs it does not know, and
+ * lists them after its next start.
+ */
+public class JsonDirectoryStore implements ClothStore {
+    public static final String NAME = "json";
+    private static final Logger logger = LoggerFactory.getLogger(JsonDirectoryStore.class);
+    private static final String FEATURES_SUFFIX = "_features.json";
+    private static final String IDENTITY_SUFFIX = "_identity.json";
+    private static final String SHARDED_EXTENSION = ".json";
+    private static final boolean SHARDED_WRITES =
+        !"flat".equalsIgnoreCase(System.getProperty("clothauth.storage.json.layout", "sharded"));
+    private static final String[] SHARD_NAMES = shardNames();
+    private static final AtomicLong TEMP_SEQUENCE = new AtomicLong();
+    
+    private final Path featuresDir;
+    private final Path identitiesDir;
+    private final JsonRecordCodec codec;
+    private final IdIndex idIndex;
+    // Set when another process holds the ID index, which must learn about our writes
+    private final Path foreignIdIndexFile;
+    private final Set<Path> unsynced = new HashSet<>();
+    private final Set<Path> unsyncedDirectories = new HashSet<>();
+    
+    public JsonDirectoryStore(Path featuresDir, Path identitiesDir) throws IOException {
+        this(featuresDir, identitiesDir, null);
+    }
+    
+    /**
+     * @param idIndexFile the persistent ID index, or null to scan the directories
+     */
+    public JsonDirectoryStore(Path featuresDir, Path identitiesDir, Path idIndexFile) throws IOException {
+        this.featuresDir = featuresDir;
+        this.identitiesDir = identitiesDir;
+        this.codec = new JsonRecordCodec(StorageFormat.fromSystemProperties());
+        Files.createDirectories(featuresDir);
+        Files.createDirectories(identitiesDir);
+        this.idIndex = idIndexFile != null ? IdIndex.open(idIndexFile, this::scan) : null;
+        this.foreignIdIndexFile = idIndexFile != null && idIndex == null ? idIndexFile : null;
+    }
+    
+    @Override
+    public String getName() {
+        return NAME;
+    }
+    
+    @Override
+    public void storeFeatures(String clothId, ClothFeatures features) throws IOException {
+        markForeignIndexStale();
+        write(featuresDir, clothId, FEATURES_SUFFIX, codec.encodeFeatures(features));
+        if (idIndex != null) {
+            idIndex.featuresStored(clothId);
+        }
+    }
+    
+    @Override
+    public void storeIdentity(String clothId, ClothIdentity identity) throws IOException {
+        markForeignIndexStale();
+        write(identitiesDir, clothId, IDENTITY_SUFFIX, codec.encodeIdentity(identity));
+        if (idIndex != null) {
+            idIndex.identityStored(clothId, identity.getCreationTime(), identity.getCombinedHash());
+        }
+    }
+    
+    /**
+     * Writes every file of the batch to a temporary file first and only then
+     * renames them into place, all features before any identity, so a
+     * crash leaves each file either old or new and never an identity
+     * without its features. With {@link FsyncPolicy#BATCH} the temporary
+     * files are forced before the renames and each touched directory once
+     * after them. If a rename fails, the files already in place stay there
+     * and are indexed, and a {@link PartialBatchException} names their
+     * cloths.
+     */
+    @Override
+    public void storeBatch(List<ClothRecord> records, FsyncPolicy fsync) throws IOException {
+        markForeignIndexStale();
+        boolean sync = fsync == FsyncPolicy.BATCH;
+        List<Staged> staged = new ArrayList<>(2 * records.size());
+        // The record each staged file belongs to; the first featureFiles are features
+        List<ClothRecord> owners = new ArrayList<>(2 * records.size());
+        int featureFiles = 0;
+        int installed = 0;
+        try {
+            for (ClothRecord record : records) {
+                if (record.getFeatures() != null) {
+                    staged.add(stage(featuresDir, record.getClothId(), FEATURES_SUFFIX,
+                        codec.encodeFeatures(record.getFeatures()), sync));
+                    owners.add(record);
+                }
+            }
+            featureFiles = staged.size();
+            for (ClothRecord record : records) {
+                if (record.getIdentity() != null) {
+                    staged.add(stage(identitiesDir, record.getClothId(), IDENTITY_SUFFIX,
+                        codec.encodeIdentity(record.getIdentity()), sync));
+                    owners.add(record);
+                }
+            }
+            for (Staged file : staged) {
+                file.install();
+                installed++;
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Staged file : staged.subList(installed, staged.size())) {
+                try {
+                    Files.deleteIfExists(file.temp);
+                } catch (IOException cleanup) {
+                    e.addSuppressed(cleanup);
+                }
+            }
+            if (installed == 0) {
+                throw e;
+            }
+            indexInstalled(owners, featureFiles, installed);
+            Set<String> clothIds = new LinkedHashSet<>();
+            for (ClothRecord record : owners.subList(0, installed)) {
+                clothIds.add(record.getClothId());
+            }
+            throw new PartialBatchException(new ArrayList<>(clothIds), e);
+        }
+        if (sync) {
+            Set<Path> directories = new LinkedHashSet<>();
+            for (Staged file : staged) {
+                directories.add(file.target.getParent());
+            }
+            for (Path directory : directories) {
+                syncDirectory(directory);
+            }
+        } else if (fsync == FsyncPolicy.DEFERRED) {
+            synchronized (unsynced) {
+                for (Staged file : staged) {
+                    unsynced.add(file.target);
+                    unsyncedDirectories.add(file.target.getParent());
+                }
+            }
+        }
+        indexInstalled(owners, featureFiles, installed);
+    }
+    
+    /**
+     * Records the first {@code installed} files of a batch in the ID index.
+     */
+    private void indexInstalled(List<ClothRecord> owners, int featureFiles, int installed) throws IOException {
+        if (idIndex == null) {
+            return;
+        }
+        for (int i = 0; i < installed; i++) {
+            ClothRecord record = owners.get(i);
+            if (i < featureFiles) {
+                idIndex.featuresStored(record.getClothId());
+            } else {
+                ClothIdentity identity = record.getIdentity();
+                idIndex.identityStored(record.getClothId(), identity.getCreationTime(), identity.getCombinedHash());
+            }
+        }
+    }
+    
+    @Override
+    public ClothFeatures loadFeatures(String clothId) throws IOException {
+        if (idIndex != null && !idIndex.hasFeatures(clothId) && !idIndex.isStale()) {
+            return null;
+        }
+        byte[] data = read(featuresDir, clothId, FEATURES_SUFFIX);
+        return data != null ? JsonRecordCodec.decodeFeatures(data) : null;
+    }
+    
+    @Override
+    public ClothIdentity loadIdentity(String clothId) throws IOException {
+        if (idIndex != null && !idIndex.hasIdentity(clothId) && !idIndex.isStale()) {
+            return null;
+        }
+        byte[] data = read(identitiesDir, clothId, IDENTITY_SUFFIX);
+        return data != null ? JsonRecordCodec.decodeIdentity(data) : null;
+    }
+    
+    @Override
+    public long featuresFingerprint(String clothId) {
+        IdIndex.Entry entry = idIndex != null ? idIndex.get(clothId) : null;
+        if (entry == null || !entry.hasFeatures() || entry.getHash() == null) {
+            return 0;
+        }
+        // The combined hash on the identity is the hash of the features written with it
+        return fingerprint(1125899906842597L, entry.getHash());
+    }
+    
+    @Override
+    public long identityFingerprint(String clothId) {
+        IdIndex.Entry entry = idIndex != null ? idIndex.get(clothId) : null;
+        if (entry == null || !entry.hasIdentity() || entry.getHash() == null) {
+            return 0;
+        }
+        // An identity is rewritten by re-extraction, which changes its combined hash
+        return fingerprint(entry.getCreationTime(), entry.getHash());
+    }
+    
+    private static long fingerprint(long seed, String hash) {
+        long fingerprint = seed;
+        for (int i = 0; i < hash.length(); i++) {
+            fingerprint = 31 * fingerprint + hash.charAt(i);
+        }
+        return fingerprint != 0 ? fingerprint : 1;
+    }
+    
+    @Override
+    public boolean exists(String clothId) {
+        if (idIndex != null && (idIndex.exists(clothId) || !idIndex.isStale())) {
+            return idIndex.exists(clothId);
+        }
+        return Files.exists(shardedPath(identitiesDir, clothId)) || Files.exists(shardedPath(featuresDir, clothId))
+            || Files.exists(flatPath(identitiesDir, clothId, IDENTITY_SUFFIX))
+            || Files.exists(flatPath(featuresDir, clothId, FEATURES_SUFFIX));
+    }
+    
+    @Override
+    public List<String> listClothIds() {
+        if (idIndex != null) {
+            return idIndex.listClothIds();
+        }
+        return new ArrayList<>(scanFiles(featuresDir, FEATURES_SUFFIX).keySet());
+    }
+    
+    @Override
+    public List<String> listIdentityOnlyClothIds() {
+        if (idIndex != null) {
+            return idIndex.listIdentityOnlyClothIds();
+        }
+        Set<String> withFeatures = scanFiles(featuresDir, FEATURES_SUFFIX).keySet();
+        List<String> clothIds = new ArrayList<>();
+        for (String clothId : scanFiles(identitiesDir, IDENTITY_SUFFIX).keySet()) {
+            if (!withFeatures.contains(clothId)) {
+                clothIds.add(clothId);
+            }
+        }
+        return clothIds;
+    }
+    
+    @Override
+    public List<String> listClothIds(String afterId, int limit) throws IOException {
+        if (idIndex != null) {
+            return idIndex.listClothIds(afterId, limit);
+        }
+        return ClothStore.super.listClothIds(afterId, limit);
+    }
+    
+    @Override
+    public List<String> listClothIds(String fromId, String toId) throws IOException {
+        if (idIndex != null) {
+            return idIndex.listClothIds(fromId, toId);
+        }
+        return ClothStore.super.listClothIds(fromId, toId);
+    }
+    
+    public IdIndex getIdIndex() {
+        return idIndex;
+    }
+    
+    @Override
+    public void delete(String clothId) throws IOException {
+        markForeignIndexStale();
+        Path[] paths = {
+            shardedPath(featuresDir, clothId), flatPath(featuresDir, clothId, FEATURES_SUFFIX),
+            shardedPath(identitiesDir, clothId), flatPath(identitiesDir, clothId, IDENTITY_SUFFIX)
+        };
+        for (Path path : paths) {
+            if (Files.deleteIfExists(path)) {
+                synchronized (unsynced) {
+                    unsyncedDirectories.add(path.getParent());
+                }
+            }
+        }
+        if (idIndex != null) {
+            idIndex.deleted(clothId);
+        }
+    }
+    
+    /**
+     * Forces the files written with {@link FsyncPolicy#DEFERRED} and the
+     * directories changed since the last sync.
+     */
+    @Override
+    public void sync() throws IOException {
+        List<Path> files;
+        List<Path> directories;
+        synchronized (unsynced) {
+            files = new ArrayList<>(unsynced);
+            directories = new ArrayList<>(unsyncedDirectories);
+            unsynced.clear();
+            unsyncedDirectories.clear();
+        }
+        for (Path file : files) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            } catch (NoSuchFileException e) {
+                // Deleted since; its directory is synced below
+            }
+        }
+        for (Path directory : directories) {
+            syncDirectory(directory);
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (idIndex != null) {
+            idIndex.close();
+        }
+    }
+    
+    /**
+     * Moves every file of the flat layout into the sharded one. Each file
+     * is hard-linked into place, which fails rather than replaces if a newer
+     * copy was written there meanwhile, and then unlinked from the flat
+     * directory, so readers always find one of the two. Cloth IDs do not
+     * change, so an ID index stays valid.
+     *
+     * @return the number of files moved
+     */
+    public int migrateToSharded() throws IOException {
+        return migrate(featuresDir, FEATURES_SUFFIX) + migrate(identitiesDir, IDENTITY_SUFFIX);
+    }
+    
+    private int migrate(Path dir, String flatSuffix) throws IOException {
+        File[] files = dir.toFile().listFiles((parent, name) -> name.endsWith(flatSuffix));
+        if (files == null) {
+            return 0;
+        }
+        int moved = 0;
+        for (File file : files) {
+            String fileName = file.getName();
+            String clothId = fileName.substring(0, fileName.lastIndexOf(flatSuffix));
+            Path flat = file.toPath();
+            Path sharded = shardedPath(dir, clothId);
+            Files.createDirectories(sharded.getParent());
+            try {
+                Files.createLink(sharded, flat);
+                moved++;
+            } catch (FileAlreadyExistsException e) {
+                // Rewritten in the sharded layout since the listing; that copy is newer
+            } catch (NoSuchFileException e) {
+                // Deleted or rewritten since the listing
+                continue;
+            } catch (UnsupportedOperationException | IOException e) {
+                if (Files.exists(sharded)) {
+                    throw e;
+                }
+                // No hard links on this file system; fall back to a rename
+                Files.move(flat, sharded);
+                moved++;
+                continue;
+            }
+            Files.deleteIfExists(flat);
+            if (moved % 10_000 == 0 && moved > 0) {
+                logger.info("Migrated {} files to the sharded layout", moved);
+            }
+        }
+        logger.info("Migrated {} files in {} to the sharded layout", moved, dir);
+        return moved;
+    }
+    
+    private void markForeignIndexStale() throws IOException {
+        if (foreignIdIndexFile != null) {
+            IdIndex.markStale(foreignIdIndexFile);
+        }
+    }
+    
+    private void write(Path dir, String clothId, String flatSuffix, byte[] data) throws IOException {
+        Staged staged = stage(dir, clothId, flatSuffix, data, false);
+        try {
+            staged.install();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(staged.temp);
+            throw e;
+        }
+    }
+    
+    /**
+     * Writes encoded data to a temporary file next to its final path, forced
+     * to disk if {@code sync} is set. {@link Staged#install()} renames it
+     * into place.
+     */
+    private Staged stage(Path dir, String clothId, String flatSuffix, byte[] data, boolean sync) throws IOException {
+        Path target;
+        Path other;
+        if (SHARDED_WRITES) {
+            target = shardedPath(dir, clothId);
+            other = flatPath(dir, clothId, flatSuffix);
+            Files.createDirectories(target.getParent());
+        } else {
+            target = flatPath(dir, clothId, flatSuffix);
+            other = shardedPath(dir, clothId);
+        }
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp" + TEMP_SEQUENCE.incrementAndGet());
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        try (FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (sync) {
+                channel.force(true);
+            }
+        }
+        return new Staged(temp, target, other);
+    }
+    
+    private static final class Staged {
+        final Path temp;
+        final Path target;
+        final Path other;
+        
+        Staged(Path temp, Path target, Path other) {
+            this.temp = temp;
+            this.target = target;
+            this.other = other;
+        }
+        
+        void install() throws IOException {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // A copy left in the other layout would be stale
+            Files.deleteIfExists(other);
+        }
+    }
+    
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories cannot be opened for syncing on every platform, e.g. Windows
+            logger.debug("Could not sync directory {}: {}", dir, e.getMessage());
+        }
+    }
+    
+    /**
+     * Reads a file from whichever layout holds it. The preferred layout is
+     * tried again last, in case a migration moved the file in between.
+     */
+    private byte[] read(Path dir, String clothId, String flatSuffix) throws IOException {
+        Path sharded = shardedPath(dir, clothId);
+        Path flat = flatPath(dir, clothId, flatSuffix);
+        Path first = SHARDED_WRITES ? sharded : flat;
+        Path second = SHARDED_WRITES ? flat : sharded;
+        for (Path path : new Path[] {first, second, first}) {
+            try {
+                return Files.readAllBytes(path);
+            } catch (NoSuchFileException e) {
+                // Try the other layout
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Lists the files of both layouts by cloth ID; the sharded file wins if
+     * a cloth is in both.
+     */
+    private Map<String, Path> scanFiles(Path dir, String flatSuffix) {
+        Map<String, Path> files = new LinkedHashMap<>();
+        File[] flatFiles = dir.toFile().listFiles((parent, name) -> name.endsWith(flatSuffix));
+        if (flatFiles != null) {
+            for (File file : flatFiles) {
+                String fileName = file.getName();
+                files.put(fileName.substring(0, fileName.lastIndexOf(flatSuffix)), file.toPath());
+            }
+        }
+        File[] outer = dir.toFile().listFiles(File::isDirectory);
+        if (outer != null) {
+            for (File first : outer) {
+                File[] inner = first.listFiles(File::isDirectory);
+                if (inner == null) {
+                    continue;
+                }
+                for (File second : inner) {
+                    File[] shardFiles = second.listFiles((parent, name) -> name.endsWith(SHARDED_EXTENSION));
+                    if (shardFiles == null) {
+                        continue;
+                    }
+                    for (File file : shardFiles) {
+                        String fileName = file.getName();
+                        files.put(fileName.substring(0, fileName.length() - SHARDED_EXTENSION.length()), file.toPath());
+                    }
+                }
+            }
+        }
+        return files;
+    }
+    
+    /**
+     * Lists the directories for the ID index. Identities are only parsed if
+     * the index did not know them yet.
+     */
+    private Map<String, IdIndex.Entry> scan(Map<String, IdIndex.Entry> known) {
+        Map<String, IdIndex.Entry> entries = new HashMap<>();
+        for (String clothId : scanFiles(featuresDir, FEATURES_SUFFIX).keySet()) {
+            entries.put(clothId, new IdIndex.Entry(IdIndex.Entry.FEATURES, 0, null));
+        }
+        for (Map.Entry<String, Path> file : scanFiles(identitiesDir, IDENTITY_SUFFIX).entrySet()) {
+            String clothId = file.getKey();
+            IdIndex.Entry previous = known.get(clothId);
+            long creationTime = 0;
+            String hash = null;
+            if (previous != null && previous.hasIdentity()) {
+                creationTime = previous.getCreationTime();
+                hash = previous.getHash();
+            } else {
+                try {
+                    ClothIdentity identity = JsonRecordCodec.decodeIdentity(Files.readAllBytes(file.getValue()));
+                    creationTime = identity.getCreationTime();
+                    hash = identity.getCombinedHash();
+                } catch (IOException e) {
+                    logger.warn("Could not read identity {} for the ID index: {}", file.getValue(), e.getMessage());
+                }
+            }
+            int flags = entries.containsKey(clothId) ? IdIndex.Entry.FEATURES : 0;
+            entries.put(clothId, new IdIndex.Entry(flags | IdIndex.Entry.IDENTITY, creationTime, hash));
+        }
+        return entries;
+    }
+    
+    private static Path flatPath(Path dir, String clothId, String flatSuffix) {
+        return dir.resolve(clothId + flatSuffix);
+    }
+    
+    private static Path shardedPath(Path dir, String clothId) {
+        byte[] digest = sha256(clothId);
+        return dir.resolve(SHARD_NAMES[digest[0] & 0xFF]).resolve(SHARD_NAMES[digest[1] & 0xFF]).resolve(clothId + SHARDED_EXTENSION);
+    }
+    
+    private static byte[] sha256(String clothId) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(clothId.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 algorithm not available", e);
+        }
+    }
+    
+    private static String[] shardNames() {
+        String[] names = new String[256];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = String.format("%02x", i);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,161 @@
+package com.clothauth.storage;
+
+import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.ClothIdentity;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Encodes the files of the JSON directory store in a {@link StorageFormat}
+ * and decodes them in whichever format they were written.
+ *
+ * Features are written and read field by field through the streaming
+ * generator and parser, so the 800-odd histogram doubles never go through
+ * data binding. The field names and values are the ones data binding uses,
+ * so both paths read each other's files. Identities are small and change
+ * shape more often; they are bound by the format's ObjectMapper.
+ */
+public final class JsonRecordCodec {
+    private static final TypeReference<Map<String, Object>> OBJECT_MAP = new TypeReference<Map<String, Object>>() {};
+    
+    private final StorageFormat format;
+    
+    public JsonRecordCodec(StorageFormat format) {
+        this.format = format;
+    }
+    
+    public StorageFormat getFormat() {
+        return format;
+    }
+    
+    public byte[] encodeFeatures(ClothFeatures features) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        try (JsonGenerator generator = format.factory().createGenerator(bytes)) {
+            generator.setCodec(format.mapper());
+            if (format == StorageFormat.JSON_INDENTED) {
+                generator.useDefaultPrettyPrinter();
+            }
+            generator.writeStartObject();
+            generator.writeFieldName("fabric_texture");
+            writeDoubleMap(generator, features.getFabricTexture());
+            generator.writeFieldName("color_histogram");
+            writeDoubles(generator, features.getColorHistogram());
+            generator.writeFieldName("dimensions");
+            writeDoubleMap(generator, features.getDimensions());
+            generator.writeFieldName("pattern_features");
+            generator.writeObject(features.getPatternFeatures());
+            generator.writeFieldName("edge_features");
+            writeDoubles(generator, features.getEdgeFeatures());
+            generator.writeEndObject();
+        }
+        return bytes.toByteArray();
+    }
+    
+    public byte[] encodeIdentity(ClothIdentity identity) throws IOException {
+        return format.mapper().writeValueAsBytes(identity);
+    }
+    
+    public static ClothFeatures decodeFeatures(byte[] data) throws IOException {
+        StorageFormat format = StorageFormat.detect(data, 0, data.length);
+        try (JsonParser parser = format.factory().createParser(data)) {
+            parser.setCodec(format.mapper());
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Features record is not an object");
+            }
+            ClothFeatures features = new ClothFeatures();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.VALUE_NULL) {
+                    continue;
+                }
+                switch (field) {
+                    case "fabric_texture":
+                        features.setFabricTexture(readDoubleMap(parser));
+                        break;
+                    case "color_histogram":
+                        features.setColorHistogram(readDoubles(parser));
+                        break;
+                    case "dimensions":
+                        features.setDimensions(readDoubleMap(parser));
+                        break;
+                    case "pattern_features":
+                        features.setPatternFeatures(parser.readValueAs(OBJECT_MAP));
+                        break;
+                    case "edge_features":
+                        features.setEdgeFeatures(readDoubles(parser));
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            return features;
+        }
+    }
+    
+    public static ClothIdentity decodeIdentity(byte[] data) throws IOException {
+        return StorageFormat.detect(data, 0, data.length).mapper().readValue(data, ClothIdentity.class);
+    }
+    
+    private static void writeDoubles(JsonGenerator generator, List<Double> values) throws IOException {
+        generator.writeStartArray(values, values.size());
+        for (Double value : values) {
+            if (value == null) {
+                generator.writeNull();
+            } else {
+                generator.writeNumber(value);
+            }
+        }
+        generator.writeEndArray();
+    }
+    
+    private static void writeDoubleMap(JsonGenerator generator, Map<String, Double> values) throws IOException {
+        generator.writeStartObject();
+        for (Map.Entry<String, Double> entry : values.entrySet()) {
+            generator.writeFieldName(entry.getKey());
+            if (entry.getValue() == null) {
+                generator.writeNull();
+            } else {
+                generator.writeNumber(entry.getValue());
+            }
+        }
+        generator.writeEndObject();
+    }
+    
+    private static List<Double> readDoubles(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_ARRAY);
+        List<Double> values = new ArrayList<>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            values.add(token == JsonToken.VALUE_NULL ? null : parser.getValueAsDouble());
+        }
+        return values;
+    }
+    
+    private static Map<String, Double> readDoubleMap(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+        Map<String, Double> values = new TreeMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            values.put(key, token == JsonToken.VALUE_NULL ? null : parser.getValueAsDouble());
+        }
+        return values;
+    }
+    
+    private static void expect(JsonParser parser, JsonToken expected) throws IOException {
+        if (parser.currentToken() != expected) {
+            throw new IOException("Expected " + expected + " but found " + parser.currentToken()
+                + " at " + parser.getCurrentLocation());
+        }
+    }
+}
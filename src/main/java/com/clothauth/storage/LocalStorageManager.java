@@ -1,52 +1,187 @@
 package com.clothauth.storage;
 
+import com.clothauth.cache.CacheStats;
+import com.clothauth.cache.LruCache;
 import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.CompactClothFeatures;
 import com.clothauth.model.ClothIdentity;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
+/**
+ * Facade over the configured ClothStore. Loaded identities and features are
+ * kept in size-bounded LRU caches, so hot items are not parsed again on
+ * every request; a store or delete invalidates the cloth's entries before
+ * listeners are notified.
+ */
 public class LocalStorageManager {
     private static final Logger logger = LoggerFactory.getLogger(LocalStorageManager.class);
     private static final String FEATURES_DIR = "data/features";
     private static final String IDENTITIES_DIR = "data/identities";
+    private static final String SEGMENTS_DIR = "data/segments";
+    private static final String ID_INDEX_FILE = "data/index/ids.idx";
+    private static final String WAL_DIR = "data/wal";
+    private static final String ARCHIVE_DIR = "data/archive";
+    private static final String BACKEND_PROPERTY = "clothauth.storage.backend";
     
-    private final ObjectMapper objectMapper;
+    // Cache bounds in estimated bytes; 0 disables a cache
+    private static final long FEATURE_CACHE_BYTES = Long.getLong("clothauth.storage.cache.featureBytes", 32L * 1024 * 1024);
+    private static final long IDENTITY_CACHE_BYTES = Long.getLong("clothauth.storage.cache.identityBytes", 4L * 1024 * 1024);
+    
+    private static final int GROUP_COMMIT_MAX_BATCH = Integer.getInteger("clothauth.storage.groupCommit.maxBatch", 256);
+    private static final long GROUP_COMMIT_MAX_LATENCY_MS = Long.getLong("clothauth.storage.groupCommit.maxLatencyMs", 2);
+    private static final boolean WAL_ENABLED = Boolean.parseBoolean(System.getProperty("clothauth.storage.wal.enabled", "true"));
+    private static final int WAL_CHECKPOINT_RECORDS = Integer.getInteger("clothauth.storage.wal.checkpointRecords", 1024);
+    private static final boolean ARCHIVE_ENABLED = Boolean.parseBoolean(System.getProperty("clothauth.archive.enabled", "true"));
+    // Cloths older than this move to the cold archive; 0 only archives on request
+    private static final long ARCHIVE_MAX_AGE_DAYS = Long.getLong("clothauth.archive.maxAgeDays", 0);
+    private static final long ARCHIVE_INTERVAL_MINUTES = Long.getLong("clothauth.archive.intervalMinutes", 60);
+    private static final int ARCHIVE_BLOCK_BYTES = Integer.getInteger("clothauth.archive.blockBytes", 64 * 1024);
+    private static final long ARCHIVE_BLOCK_CACHE_BYTES = Long.getLong("clothauth.archive.blockCacheBytes", 8L * 1024 * 1024);
+    private static final int ARCHIVE_MAX_RECORDS = Integer.getInteger("clothauth.archive.maxRecordsPerFile", 10000);
+    
+    private final ClothStore store;
+    private final GroupCommitter committer;
+    private final ScheduledExecutorService archiver;
+    private final List<StorageListener> listeners = new CopyOnWriteArrayList<>();
+    private final LruCache<String, CompactClothFeatures> featureCache =
+        new LruCache<>(FEATURE_CACHE_BYTES, CompactClothFeatures::estimatedBytes);
+    private final LruCache<String, ClothIdentity> identityCache =
+        new LruCache<>(IDENTITY_CACHE_BYTES, LocalStorageManager::estimatedBytes);
+    
+    // Bumped on every write, so a load that raced with a write is not cached
+    private final Object cacheLock = new Object();
+    private long writeGeneration;
     
     public LocalStorageManager() {
-        this.objectMapper = new ObjectMapper();
-        this.objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
-        initializeDirectories();
+        this(System.getProperty(BACKEND_PROPERTY, JsonDirectoryStore.NAME));
+    }
+    
+    public LocalStorageManager(String backend) {
+        this(openStore(backend));
     }
     
-    private void initializeDirectories() {
+    public LocalStorageManager(ClothStore store) {
+        this.store = store;
+        this.committer = new GroupCommitter(store, FsyncPolicy.fromSystemProperties(),
+            GROUP_COMMIT_MAX_BATCH, GROUP_COMMIT_MAX_LATENCY_MS, openWriteAheadLog(store), WAL_CHECKPOINT_RECORDS);
+        this.archiver = scheduleArchiving(store);
+        logger.info("Storage initialized with {} backend", store.getName());
+    }
+    
+    private ScheduledExecutorService scheduleArchiving(ClothStore store) {
+        if (!(store instanceof TieredStore) || ARCHIVE_MAX_AGE_DAYS <= 0 || ARCHIVE_INTERVAL_MINUTES <= 0) {
+            return null;
+        }
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "cold-archive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> archiveColdCloths(TimeUnit.DAYS.toMillis(ARCHIVE_MAX_AGE_DAYS)),
+            ARCHIVE_INTERVAL_MINUTES, ARCHIVE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        logger.info("Archiving cloths older than {} days every {} minutes", ARCHIVE_MAX_AGE_DAYS, ARCHIVE_INTERVAL_MINUTES);
+        return executor;
+    }
+    
+    /**
+     * Opens the store's write-ahead log, replaying what was logged after the
+     * last checkpoint, or returns null if the log is disabled.
+     */
+    private static WriteAheadLog openWriteAheadLog(ClothStore store) {
+        if (!WAL_ENABLED) {
+            return null;
+        }
         try {
-            Files.createDirectories(Paths.get(FEATURES_DIR));
-            Files.createDirectories(Paths.get(IDENTITIES_DIR));
-            logger.info("Storage directories initialized");
+            return WriteAheadLog.open(Paths.get(WAL_DIR, store.getName() + ".wal"), store);
         } catch (IOException e) {
-            logger.error("Failed to initialize storage directories: {}", e.getMessage());
+            throw new RuntimeException("Failed to open the write-ahead log", e);
+        }
+    }
+    
+    /**
+     * Moves the JSON store from the flat to the sharded directory layout.
+     * The store is opened without the ID index, which belongs to the
+     * application, so this can run while the application serves requests.
+     *
+     * @return the number of files moved
+     */
+    public static int migrateJsonLayout() throws IOException {
+        return new JsonDirectoryStore(Paths.get(FEATURES_DIR), Paths.get(IDENTITIES_DIR)).migrateToSharded();
+    }
+    
+    public static ClothStore openStore(String backend) {
+        try {
+            ClothStore store;
+            switch (backend) {
+                case JsonDirectoryStore.NAME:
+                    store = new JsonDirectoryStore(Paths.get(FEATURES_DIR), Paths.get(IDENTITIES_DIR), Paths.get(ID_INDEX_FILE));
+                    break;
+                case SegmentStore.NAME:
+                    store = new SegmentStore(Paths.get(SEGMENTS_DIR));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown storage backend: " + backend);
+            }
+            if (!ARCHIVE_ENABLED) {
+                return store;
+            }
+            ColdArchive archive = new ColdArchive(Paths.get(ARCHIVE_DIR, backend), ARCHIVE_BLOCK_BYTES, ARCHIVE_BLOCK_CACHE_BYTES);
+            return new TieredStore(store, archive, ARCHIVE_MAX_RECORDS);
+        } catch (IOException e) {
+            logger.error("Failed to initialize {} storage: {}", backend, e.getMessage());
             throw new RuntimeException("Storage initialization failed", e);
         }
     }
     
+    public ClothStore getStore() {
+        return store;
+    }
+    
+    public void addStorageListener(StorageListener listener) {
+        listeners.add(listener);
+    }
+    
+    public void removeStorageListener(StorageListener listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Stores the features and identity of a cloth together in the next group
+     * commit and returns once the commit is done, so concurrent
+     * registrations share file syncs.
+     */
+    public void storeCloth(String clothId, ClothFeatures features, ClothIdentity identity) {
+        try {
+            committer.commit(new ClothRecord(clothId, features, identity));
+            invalidate(clothId);
+            logger.info("Stored cloth features and identity for ID: {}", clothId);
+            notifyListeners(listener -> listener.onFeaturesStored(clothId, features));
+            notifyListeners(listener -> listener.onIdentityStored(clothId, identity));
+        
+        } catch (IOException e) {
+            logger.error("Failed to store cloth {}: {}", clothId, e.getMessage());
+            throw new RuntimeException("Failed to store cloth", e);
+        }
+    }
+    
     public void storeClothFeatures(String clothId, ClothFeatures features) {
         try {
-            String fileName = clothId + "_features.json";
-            Path filePath = Paths.get(FEATURES_DIR, fileName);
-            
-            objectMapper.writeValue(filePath.toFile(), features);
-            logger.info("Stored cloth features for ID: {} at {}", clothId, filePath);
-            
+            committer.commit(new ClothRecord(clothId, features, null));
+            invalidate(clothId);
+            logger.info("Stored cloth features for ID: {}", clothId);
+            notifyListeners(listener -> listener.onFeaturesStored(clothId, features));
+        
         } catch (IOException e) {
             logger.error("Failed to store cloth features for ID {}: {}", clothId, e.getMessage());
             throw new RuntimeException("Failed to store cloth features", e);
@@ -55,12 +190,11 @@ public class LocalStorageManager {
     
     public void storeClothIdentity(String clothId, ClothIdentity identity) {
         try {
-            String fileName = clothId + "_identity.json";
-            Path filePath = Paths.get(IDENTITIES_DIR, fileName);
-            
-            objectMapper.writeValue(filePath.toFile(), identity);
-            logger.info("Stored cloth identity for ID: {} at {}", clothId, filePath);
-            
+            committer.commit(new ClothRecord(clothId, null, identity));
+            invalidate(clothId);
+            logger.info("Stored cloth identity for ID: {}", clothId);
+            notifyListeners(listener -> listener.onIdentityStored(clothId, identity));
+        
         } catch (IOException e) {
             logger.error("Failed to store cloth identity for ID {}: {}", clothId, e.getMessage());
             throw new RuntimeException("Failed to store cloth identity", e);
@@ -68,19 +202,46 @@ public class LocalStorageManager {
     }
     
     public ClothFeatures loadClothFeatures(String clothId) {
+        CompactClothFeatures cached = featureCache.get(clothId);
+        if (cached != null) {
+            logger.debug("Cache hit for cloth features of ID: {}", clothId);
+            return cached.toClothFeatures();
+        }
         try {
-            String fileName = clothId + "_features.json";
-            Path filePath = Paths.get(FEATURES_DIR, fileName);
-            
-            if (!Files.exists(filePath)) {
-                logger.warn("Features file not found for cloth ID: {}", clothId);
+            long generation = writeGeneration();
+            ClothFeatures features = store.loadFeatures(clothId);
+            if (features == null) {
+                logger.warn("Features not found for cloth ID: {}", clothId);
                 return null;
             }
             
-            ClothFeatures features = objectMapper.readValue(filePath.toFile(), ClothFeatures.class);
+            cache(featureCache, clothId, CompactClothFeatures.from(features), generation);
             logger.info("Loaded cloth features for ID: {}", clothId);
             return features;
+        
+        } catch (IOException e) {
+            logger.error("Failed to load cloth features for ID {}: {}", clothId, e.getMessage());
+            return null;
+        }
+    }
+    
+    public CompactClothFeatures loadCompactFeatures(String clothId) {
+        CompactClothFeatures cached = featureCache.get(clothId);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            long generation = writeGeneration();
+            CompactClothFeatures features = store.loadCompactFeatures(clothId);
+            if (features == null) {
+                logger.warn("Features not found for cloth ID: {}", clothId);
+                return null;
+            }
             
+            cache(featureCache, clothId, features, generation);
+            logger.debug("Loaded compact cloth features for ID: {}", clothId);
+            return features;
+        
         } catch (IOException e) {
             logger.error("Failed to load cloth features for ID {}: {}", clothId, e.getMessage());
             return null;
@@ -88,43 +249,55 @@ public class LocalStorageManager {
     }
     
     public ClothIdentity loadClothIdentity(String clothId) {
+        // Callers may modify the identity, so only copies leave the cache
+        ClothIdentity cached = identityCache.get(clothId);
+        if (cached != null) {
+            logger.debug("Cache hit for cloth identity of ID: {}", clothId);
+            return new ClothIdentity(cached);
+        }
         try {
-            String fileName = clothId + "_identity.json";
-            Path filePath = Paths.get(IDENTITIES_DIR, fileName);
-            
-            if (!Files.exists(filePath)) {
-                logger.warn("Identity file not found for cloth ID: {}", clothId);
+            long generation = writeGeneration();
+            ClothIdentity identity = store.loadIdentity(clothId);
+            if (identity == null) {
+                logger.warn("Identity not found for cloth ID: {}", clothId);
                 return null;
             }
             
-            ClothIdentity identity = objectMapper.readValue(filePath.toFile(), ClothIdentity.class);
+            cache(identityCache, clothId, new ClothIdentity(identity), generation);
             logger.info("Loaded cloth identity for ID: {}", clothId);
             return identity;
-            
+        
         } catch (IOException e) {
             logger.error("Failed to load cloth identity for ID {}: {}", clothId, e.getMessage());
             return null;
         }
     }
     
+    public boolean clothExists(String clothId) {
+        return store.exists(clothId);
+    }
+    
+    /**
+     * Fingerprint of the stored features, see {@link ClothStore#featuresFingerprint}.
+     */
+    public long featuresFingerprint(String clothId) {
+        return store.featuresFingerprint(clothId);
+    }
+    
+    /**
+     * Fingerprint of the stored identity, see {@link ClothStore#identityFingerprint}.
+     */
+    public long identityFingerprint(String clothId) {
+        return store.identityFingerprint(clothId);
+    }
+    
     public List<String> getAllClothIds() {
         List<String> clothIds = new ArrayList<>();
         
         try {
-            File featuresDir = new File(FEATURES_DIR);
-            if (featuresDir.exists() && featuresDir.isDirectory()) {
-                File[] files = featuresDir.listFiles((dir, name) -> name.endsWith("_features.json"));
-                if (files != null) {
-                    for (File file : files) {
-                        String fileName = file.getName();
-                        String clothId = fileName.substring(0, fileName.lastIndexOf("_features.json"));
-                        clothIds.add(clothId);
-                    }
-                }
-            }
-            
+            clothIds.addAll(store.listClothIds());
             logger.info("Found {} cloth IDs in storage", clothIds.size());
-            
+        
         } catch (Exception e) {
             logger.error("Failed to get cloth IDs: {}", e.getMessage());
         }
@@ -132,29 +305,162 @@ public class LocalStorageManager {
         return clothIds;
     }
     
+    /**
+     * One page of cloth IDs in sorted order, after {@code afterId} or from
+     * the first one if it is null.
+     */
+    public List<String> listClothIds(String afterId, int limit) {
+        try {
+            return store.listClothIds(afterId, limit);
+        } catch (IOException e) {
+            logger.error("Failed to list cloth IDs: {}", e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+    
+    /**
+     * IDs of cloths stored with an identity but without features; the
+     * other listings leave them out.
+     */
+    public List<String> listIdentityOnlyClothIds() {
+        try {
+            return store.listIdentityOnlyClothIds();
+        } catch (IOException e) {
+            logger.error("Failed to list identity-only cloth IDs: {}", e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+    
+    /**
+     * Cloth IDs from {@code fromId} (inclusive) to {@code toId} (exclusive).
+     */
+    public List<String> listClothIdsInRange(String fromId, String toId) {
+        try {
+            return store.listClothIds(fromId, toId);
+        } catch (IOException e) {
+            logger.error("Failed to list cloth IDs: {}", e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+    
     public boolean deleteClothData(String clothId) {
         boolean success = true;
         
         try {
-            // Delete features file
-            Path featuresPath = Paths.get(FEATURES_DIR, clothId + "_features.json");
-            if (Files.exists(featuresPath)) {
-                Files.delete(featuresPath);
-                logger.info("Deleted features file for cloth ID: {}", clothId);
-            }
-            
-            // Delete identity file
-            Path identityPath = Paths.get(IDENTITIES_DIR, clothId + "_identity.json");
-            if (Files.exists(identityPath)) {
-                Files.delete(identityPath);
-                logger.info("Deleted identity file for cloth ID: {}", clothId);
-            }
-            
+            committer.delete(clothId);
+            invalidate(clothId);
+            logger.info("Deleted stored data for cloth ID: {}", clothId);
+        
         } catch (IOException e) {
             logger.error("Failed to delete cloth data for ID {}: {}", clothId, e.getMessage());
             success = false;
         }
         
+        if (success) {
+            notifyListeners(listener -> listener.onClothDeleted(clothId));
+        }
+        
         return success;
     }
+    
+    public CacheStats getFeatureCacheStats() {
+        return featureCache.stats();
+    }
+    
+    public CacheStats getIdentityCacheStats() {
+        return identityCache.stats();
+    }
+    
+    public String getGroupCommitStats() {
+        return committer.toString();
+    }
+    
+    /**
+     * Moves the cloths registered more than {@code maxAgeMillis} ago into
+     * the cold archive. Their content does not change, so caches and
+     * listeners are left alone.
+     *
+     * @return the number of cloths moved
+     */
+    public int archiveColdCloths(long maxAgeMillis) {
+        if (!(store instanceof TieredStore)) {
+            logger.warn("Archiving is disabled for the {} storage", store.getName());
+            return 0;
+        }
+        try {
+            return ((TieredStore) store).archiveOlderThan(System.currentTimeMillis() - maxAgeMillis);
+        } catch (IOException e) {
+            logger.error("Failed to archive cold cloths: {}", e.getMessage());
+            return 0;
+        }
+    }
+    
+    /**
+     * @return a summary of the cold archive, or null if archiving is disabled
+     */
+    public String getArchiveStats() {
+        if (!(store instanceof TieredStore)) {
+            return null;
+        }
+        ColdArchive archive = ((TieredStore) store).getArchive();
+        return String.format("%d cloths in %d files, %d KB on disk; block cache: %s",
+            archive.size(), archive.getArchiveCount(), archive.getDiskBytes() / 1024, archive.getBlockCacheStats());
+    }
+    
+    public void close() {
+        if (archiver != null) {
+            archiver.shutdownNow();
+        }
+        committer.close();
+        try {
+            store.close();
+        } catch (IOException e) {
+            logger.error("Failed to close {} storage: {}", store.getName(), e.getMessage());
+        }
+    }
+    
+    private long writeGeneration() {
+        synchronized (cacheLock) {
+            return writeGeneration;
+        }
+    }
+    
+    private <V> void cache(LruCache<String, V> cache, String clothId, V value, long generation) {
+        synchronized (cacheLock) {
+            if (writeGeneration == generation) {
+                cache.put(clothId, value);
+            }
+        }
+    }
+    
+    private void invalidate(String clothId) {
+        synchronized (cacheLock) {
+            writeGeneration++;
+            featureCache.invalidate(clothId);
+            identityCache.invalidate(clothId);
+        }
+    }
+    
+    private static long estimatedBytes(ClothIdentity identity) {
+        long bytes = 64;
+        for (String value : new String[] {
+                identity.getClothId(), identity.getFeaturesHash(), identity.getTimestampHash(),
+                identity.getCombinedHash(), identity.getImagePath(), identity.getLshSignature(),
+                identity.getImageDigest()}) {
+            if (value != null) {
+                bytes += 40 + value.length();
+            }
+        }
+        return bytes;
+    }
+    
+    private void notifyListeners(Consumer<StorageListener> event) {
+        for (StorageListener listener : listeners) {
+            try {
+                event.accept(listener);
+            } catch (Exception e) {
+                logger.error("Storage listener {} failed: {}", listener.getClass().getSimpleName(), e.getMessage(), e);
+            }
+        }
+    }
 }
\ No newline at end of file
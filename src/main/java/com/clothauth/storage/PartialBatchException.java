@@ -0,0 +1,26 @@
+package com.clothauth.storage;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Thrown by {@link ClothStore#storeBatch} when it failed after some of the
+ * batch was already in place. The batch has to be applied again; until
+ * then the listed cloths may have new features but an old identity.
+ */
+public class PartialBatchException extends IOException {
+    private final List<String> installedClothIds;
+    
+    public PartialBatchException(List<String> installedClothIds, Throwable cause) {
+        super("Batch failed after " + installedClothIds.size() + " cloths were partly written: "
+            + cause.getMessage(), cause);
+        this.installedClothIds = List.copyOf(installedClothIds);
+    }
+    
+    /**
+     * @return the cloths with at least one file of the batch in place
+     */
+    public List<String> getInstalledClothIds() {
+        return installedClothIds;
+    }
+}
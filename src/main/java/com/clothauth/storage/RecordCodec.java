@@ -0,0 +1,271 @@
+package com.clothauth.storage;
+
+import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.CompactClothFeatures;
+import com.clothauth.model.ClothIdentity;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Binary encoding of features and identities used by the segment store.
+ *
+ * Numbers are written as raw IEEE doubles so a decoded ClothFeatures
+ * serialises to exactly the same JSON, and therefore the same hash, as the
+ * one that was stored. Pattern feature values keep their Java type; values
+ * that are not plain scalars fall back to embedded JSON.
+ */
+public final class RecordCodec {
+    private static final int FEATURES_VERSION = 1;
+    private static final int IDENTITY_VERSION = 4;
+    
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_DOUBLE = 1;
+    private static final int TYPE_INT = 2;
+    private static final int TYPE_LONG = 3;
+    private static final int TYPE_STRING = 4;
+    private static final int TYPE_BOOLEAN = 5;
+    private static final int TYPE_JSON = 6;
+    
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    
+    private RecordCodec() {
+    }
+    
+    public static byte[] encodeFeatures(ClothFeatures features) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 * (features.getColorHistogram().size() + 32));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(FEATURES_VERSION);
+        out.writeLong(features.getTimestamp());
+        writeDoubles(out, features.getColorHistogram());
+        writeDoubles(out, features.getEdgeFeatures());
+        writeDoubleMap(out, features.getFabricTexture());
+        writeDoubleMap(out, features.getDimensions());
+        
+        Map<String, Object> patternFeatures = features.getPatternFeatures();
+        out.writeInt(patternFeatures.size());
+        for (Map.Entry<String, Object> entry : patternFeatures.entrySet()) {
+            writeString(out, entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+    
+    public static ClothFeatures decodeFeatures(byte[] data, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        int version = in.readUnsignedByte();
+        if (version != FEATURES_VERSION) {
+            throw new IOException("Unsupported features record version: " + version);
+        }
+        ClothFeatures features = new ClothFeatures();
+        features.setTimestamp(in.readLong());
+        features.setColorHistogram(readDoubles(in));
+        features.setEdgeFeatures(readDoubles(in));
+        features.setFabricTexture(readDoubleMap(in));
+        features.setDimensions(readDoubleMap(in));
+        
+        int count = in.readInt();
+        Map<String, Object> patternFeatures = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            String key = readString(in);
+            patternFeatures.put(key, readValue(in));
+        }
+        features.setPatternFeatures(patternFeatures);
+        return features;
+    }
+    
+    /**
+     * Decodes a features record straight into the primitive representation,
+     * without boxing the histogram.
+     */
+    public static CompactClothFeatures decodeCompactFeatures(byte[] data, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        int version = in.readUnsignedByte();
+        if (version != FEATURES_VERSION) {
+            throw new IOException("Unsupported features record version: " + version);
+        }
+        CompactClothFeatures.Builder builder = CompactClothFeatures.builder();
+        builder.timestamp(in.readLong());
+        builder.histogram(readDoubleArray(in));
+        builder.edges(readDoubleArray(in));
+        
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = readString(in);
+            builder.texture(key, in.readDouble());
+        }
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = readString(in);
+            builder.dimension(key, in.readDouble());
+        }
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = readString(in);
+            builder.pattern(key, readValue(in));
+        }
+        return builder.build();
+    }
+    
+    public static byte[] encodeIdentity(ClothIdentity identity) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(IDENTITY_VERSION);
+        writeNullableString(out, identity.getClothId());
+        writeNullableString(out, identity.getFeaturesHash());
+        writeNullableString(out, identity.getTimestampHash());
+        writeNullableString(out, identity.getCombinedHash());
+        out.writeLong(identity.getCreationTime());
+        writeNullableString(out, identity.getImagePath());
+        out.writeInt(identity.getHashVersion());
+        writeNullableString(out, identity.getLshSignature());
+        writeNullableString(out, identity.getImageDigest());
+        out.flush();
+        return bytes.toByteArray();
+    }
+    
+    public static ClothIdentity decodeIdentity(byte[] data, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        int version = in.readUnsignedByte();
+        if (version < 1 || version > IDENTITY_VERSION) {
+            throw new IOException("Unsupported identity record version: " + version);
+        }
+        ClothIdentity identity = new ClothIdentity();
+        identity.setClothId(readNullableString(in));
+        identity.setFeaturesHash(readNullableString(in));
+        identity.setTimestampHash(readNullableString(in));
+        identity.setCombinedHash(readNullableString(in));
+        identity.setCreationTime(in.readLong());
+        identity.setImagePath(readNullableString(in));
+        // Version 1 records predate hash versions and always hold v1 hashes
+        identity.setHashVersion(version >= 2 ? in.readInt() : 1);
+        if (version >= 3) {
+            identity.setLshSignature(readNullableString(in));
+        }
+        if (version >= 4) {
+            identity.setImageDigest(readNullableString(in));
+        }
+        return identity;
+    }
+    
+    private static void writeDoubles(DataOutputStream out, List<Double> values) throws IOException {
+        out.writeInt(values.size());
+        for (Double value : values) {
+            out.writeDouble(value);
+        }
+    }
+    
+    private static List<Double> readDoubles(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Double> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(in.readDouble());
+        }
+        return values;
+    }
+    
+    private static double[] readDoubleArray(DataInputStream in) throws IOException {
+        double[] values = new double[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+    
+    private static void writeDoubleMap(DataOutputStream out, Map<String, Double> values) throws IOException {
+        out.writeInt(values.size());
+        for (Map.Entry<String, Double> entry : values.entrySet()) {
+            writeString(out, entry.getKey());
+            out.writeDouble(entry.getValue());
+        }
+    }
+    
+    private static Map<String, Double> readDoubleMap(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Map<String, Double> values = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            String key = readString(in);
+            values.put(key, in.readDouble());
+        }
+        return values;
+    }
+    
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else {
+            out.writeByte(TYPE_JSON);
+            writeString(out, objectMapper.writeValueAsString(value));
+        }
+    }
+    
+    private static Object readValue(DataInputStream in) throws IOException {
+        int type = in.readUnsignedByte();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_DOUBLE:
+                return in.readDouble();
+            case TYPE_INT:
+                return in.readInt();
+            case TYPE_LONG:
+                return in.readLong();
+            case TYPE_STRING:
+                return readString(in);
+            case TYPE_BOOLEAN:
+                return in.readBoolean();
+            case TYPE_JSON:
+                return objectMapper.readValue(readString(in), Object.class);
+            default:
+                throw new IOException("Unknown value type: " + type);
+        }
+    }
+    
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    static void writeNullableString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writeString(out, value);
+        }
+    }
+    
+    static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? readString(in) : null;
+    }
+}
@@ -0,0 +1,377 @@
+package com.clothauth.storage;
+
+import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.ClothIdentity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Exports the whole registry into one sequential archive file and imports
+ * it back, so a backup or migration copies a single file instead of two
+ * small files per cloth.
+ *
+ * The file is {@code [magic][version][export ID][created at]}, then one
+ * record per cloth, {@code [length][CRC32][ID][features][identity]} in the
+ * binary encoding of {@link RecordCodec}, and a terminating zero length
+ * followed by the record count, so a truncated file is detected.
+ *
+ * Both directions stream: the export lists the IDs page by page and the
+ * import keeps a bounded number of records in flight. On import the
+ * records are checked and decoded by worker threads and stored through
+ * {@link LocalStorageManager#storeCloth}, so concurrent records share group
+ * commits. Every few thousand records the offset before which everything
+ * is committed is saved in {@code data/import/}; an interrupted import of
+ * the same archive continues from there.
+ */
+public class RegistryArchive {
+    private static final Logger logger = LoggerFactory.getLogger(RegistryArchive.class);
+    private static final int MAGIC = 0x434C4558; // "CLEX"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 24;
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+    private static final int PAGE_SIZE = 1000;
+    private static final String PROGRESS_DIR = "data/import";
+    private static final int PROGRESS_INTERVAL = Integer.getInteger("clothauth.import.progressRecords", 5000);
+    
+    private final LocalStorageManager storageManager;
+    
+    public static final class Result {
+        private final long records;
+        private final long failed;
+        private final long resumedAt;
+        private final long elapsedMillis;
+        
+        Result(long records, long failed, long resumedAt, long elapsedMillis) {
+            this.records = records;
+            this.failed = failed;
+            this.resumedAt = resumedAt;
+            this.elapsedMillis = elapsedMillis;
+        }
+        
+        public long getRecords() { return records; }
+        public long getFailed() { return failed; }
+        public long getResumedAt() { return resumedAt; }
+        public long getElapsedMillis() { return elapsedMillis; }
+    }
+    
+    public RegistryArchive(LocalStorageManager storageManager) {
+        this.storageManager = storageManager;
+    }
+    
+    /**
+     * Writes every stored cloth to {@code file}, including cloths that only
+     * have an identity. The archive is written under a temporary name and
+     * renamed once complete.
+     */
+    public Result export(Path file) throws IOException {
+        long start = System.nanoTime();
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        long records = 0;
+        long failed = 0;
+        try (FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(new SecureRandom().nextLong());
+            out.writeLong(System.currentTimeMillis());
+            
+            CRC32 crc = new CRC32();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(16 * 1024);
+            String afterId = null;
+            List<String> page;
+            do {
+                page = storageManager.listClothIds(afterId, PAGE_SIZE);
+                for (String clothId : page) {
+                    ClothFeatures features = storageManager.loadClothFeatures(clothId);
+                    ClothIdentity identity = storageManager.loadClothIdentity(clothId);
+                    if (features == null && identity == null) {
+                        // Deleted since it was listed, or unreadable
+                        failed++;
+                        continue;
+                    }
+                    writeRecord(out, buffer, crc, clothId, features, identity);
+                    records++;
+                }
+                if (!page.isEmpty()) {
+                    afterId = page.get(page.size() - 1);
+                    logger.info("Exported {} cloths", records);
+                }
+            } while (page.size() == PAGE_SIZE);
+            
+            // Identities stored without features are not in the listing above
+            for (String clothId : storageManager.listIdentityOnlyClothIds()) {
+                ClothIdentity identity = storageManager.loadClothIdentity(clothId);
+                if (identity == null) {
+                    failed++;
+                    continue;
+                }
+                writeRecord(out, buffer, crc, clothId, null, identity);
+                records++;
+            }
+            
+            out.writeInt(0);
+            out.writeLong(records);
+            out.flush();
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        logger.info("Exported {} cloths to {} ({} KB) in {} ms, {} skipped",
+            records, file, Files.size(file) / 1024, elapsedMillis, failed);
+        return new Result(records, failed, 0, elapsedMillis);
+    }
+    
+    /**
+     * Stores every cloth in the archive. Records whose checksum does not
+     * match or that cannot be decoded are counted as failed and skipped.
+     *
+     * @param restart ignore the progress of an earlier interrupted import
+     */
+    public Result importArchive(Path file, int threads, boolean restart) throws IOException, InterruptedException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be positive: " + threads);
+        }
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            DataInputStream header = new DataInputStream(Channels.newInputStream(channel));
+            if (header.readInt() != MAGIC || header.readInt() != VERSION) {
+                throw new IOException("Not a registry archive: " + file);
+            }
+            long exportId = header.readLong();
+            Path progressFile = Paths.get(PROGRESS_DIR, Long.toHexString(exportId) + ".progress");
+            Progress progress = new Progress(progressFile, HEADER_BYTES);
+            if (!restart) {
+                progress.load();
+            }
+            long resumedAt = progress.records;
+            if (resumedAt > 0) {
+                logger.info("Resuming import of {} after {} records", file, resumedAt);
+            }
+            
+            channel.position(progress.offset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+            // Bounded queue; the reading thread stores records itself when the workers fall behind
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+            long offset = progress.offset;
+            long sequence = 0;
+            long expected;
+            try {
+                while (true) {
+                    int length = in.readInt();
+                    if (length == 0) {
+                        expected = in.readLong();
+                        break;
+                    }
+                    if (length < 0 || length > MAX_RECORD_BYTES) {
+                        throw new IOException("Corrupt record length " + length + " at offset " + offset + " of " + file);
+                    }
+                    int checksum = in.readInt();
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    offset += 8 + length;
+                    long recordSequence = sequence++;
+                    long endOffset = offset;
+                    executor.execute(() -> {
+                        boolean stored = store(payload, checksum, recordSequence + resumedAt);
+                        progress.completed(recordSequence, endOffset, stored);
+                    });
+                }
+            } catch (EOFException e) {
+                throw new IOException("Registry archive is truncated after " + (resumedAt + sequence) + " records: " + file, e);
+            } finally {
+                executor.shutdown();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                progress.save();
+            }
+            
+            long records = resumedAt + sequence;
+            if (records != expected) {
+                throw new IOException("Registry archive holds " + records + " records but declares " + expected + ": " + file);
+            }
+            Files.deleteIfExists(progressFile);
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            logger.info("Imported {} cloths from {} in {} ms ({} failed, {} resumed)",
+                records, file, elapsedMillis, progress.failed, resumedAt);
+            return new Result(records, progress.failed, resumedAt, elapsedMillis);
+        }
+    }
+    
+    private boolean store(byte[] payload, int checksum, long recordNumber) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+            logger.error("Checksum mismatch in record {}, skipping it", recordNumber);
+            return false;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            String clothId = RecordCodec.readString(in);
+            byte[] features = readBytes(in);
+            byte[] identity = readBytes(in);
+            ClothFeatures decodedFeatures = features != null ? RecordCodec.decodeFeatures(features, 0, features.length) : null;
+            ClothIdentity decodedIdentity = identity != null ? RecordCodec.decodeIdentity(identity, 0, identity.length) : null;
+            if (decodedIdentity == null) {
+                storageManager.storeClothFeatures(clothId, decodedFeatures);
+            } else if (decodedFeatures == null) {
+                storageManager.storeClothIdentity(clothId, decodedIdentity);
+            } else {
+                storageManager.storeCloth(clothId, decodedFeatures, decodedIdentity);
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to import record {}: {}", recordNumber, e.getMessage());
+            return false;
+        }
+    }
+    
+    private static void writeRecord(DataOutputStream out, ByteArrayOutputStream buffer, CRC32 crc,
+                                    String clothId, ClothFeatures features, ClothIdentity identity) throws IOException {
+        buffer.reset();
+        encode(new DataOutputStream(buffer), clothId, features, identity);
+        crc.reset();
+        crc.update(buffer.toByteArray(), 0, buffer.size());
+        out.writeInt(buffer.size());
+        out.writeInt((int) crc.getValue());
+        buffer.writeTo(out);
+    }
+    
+    private static void encode(DataOutputStream out, String clothId, ClothFeatures features, ClothIdentity identity) throws IOException {
+        RecordCodec.writeString(out, clothId);
+        writeBytes(out, features != null ? RecordCodec.encodeFeatures(features) : null);
+        writeBytes(out, identity != null ? RecordCodec.encodeIdentity(identity) : null);
+        out.flush();
+    }
+    
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+    
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+    
+    /**
+     * Tracks the archive offset before which every record has been stored.
+     * Records complete out of order, so finished ones wait here until all
+     * earlier ones are done.
+     */
+    private static final class Progress {
+        private final Path file;
+        private final Map<Long, long[]> pending = new TreeMap<>();
+        private long offset;
+        private long records;
+        private long failed;
+        private long nextSequence;
+        private long savedRecords;
+        
+        Progress(Path file, long offset) {
+            this.file = file;
+            this.offset = offset;
+        }
+        
+        void load() throws IOException {
+            if (!Files.exists(file)) {
+                return;
+            }
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(file)) {
+                properties.load(in);
+            }
+            try {
+                offset = Long.parseLong(properties.getProperty("offset"));
+                records = Long.parseLong(properties.getProperty("records"));
+                failed = Long.parseLong(properties.getProperty("failed", "0"));
+                savedRecords = records;
+            } catch (NumberFormatException | NullPointerException e) {
+                logger.warn("Ignoring unreadable import progress {}", file);
+                offset = HEADER_BYTES;
+                records = 0;
+                failed = 0;
+            }
+        }
+        
+        synchronized void completed(long sequence, long endOffset, boolean stored) {
+            pending.put(sequence, new long[] {endOffset, stored ? 0 : 1});
+            long[] next;
+            while ((next = pending.remove(nextSequence)) != null) {
+                offset = next[0];
+                failed += next[1];
+                records++;
+                nextSequence++;
+            }
+            if (records - savedRecords >= PROGRESS_INTERVAL) {
+                save();
+            }
+        }
+        
+        synchronized void save() {
+            if (records == savedRecords) {
+                return;
+            }
+            Properties properties = new Properties();
+            properties.setProperty("offset", Long.toString(offset));
+            properties.setProperty("records", Long.toString(records));
+            properties.setProperty("failed", Long.toString(failed));
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try {
+                Files.createDirectories(file.toAbsolutePath().getParent());
+                try (OutputStream out = Files.newOutputStream(temp)) {
+                    properties.store(out, "Registry import progress");
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                savedRecords = records;
+                logger.info("Imported {} records", records);
+            } catch (IOException e) {
+                // Only resuming is affected; the import itself goes on
+                logger.warn("Could not save import progress {}: {}", file, e.getMessage());
+            }
+        }
+    }
+}
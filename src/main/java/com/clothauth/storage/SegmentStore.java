@@ -0,0 +1,778 @@
+package com.clothauth.storage;
+
+import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.CompactClothFeatures;
+import com.clothauth.model.ClothIdentity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only backend that writes features, identities and deletes as
+ * binary records to numbered segment files.
+ *
+ * Every record is {@code [body length][CRC32 of body][type][id length][id][payload]}.
+ * An in-memory offset index maps each ID to the latest features and identity
+ * record. It is rebuilt at startup from the hint file written when a segment
+ * is sealed, or by scanning the segment when there is no valid hint. The
+ * active segment is always scanned and truncated after its last intact
+ * record, so a write torn by a crash is dropped instead of corrupting the
+ * store.
+ *
+ * Overwritten and deleted records are counted per segment. A background task
+ * rewrites the live records of sealed segments whose dead ratio exceeds the
+ * threshold into the active segment and then removes the old files.
+ */
+public class SegmentStore implements ClothStore {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentStore.class);
+    public static final String NAME = "segment";
+
+    private static final int SEGMENT_MAGIC = 0x434C5347; // "CLSG"
+    private static final int HINT_MAGIC = 0x434C4849; // "CLHI"
+    private static final int FORMAT_VERSION = 1;
+    private static final int SEGMENT_HEADER_BYTES = 8;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+    private static final Pattern SEGMENT_FILE = Pattern.compile("segment-(\\d+)\\.seg");
+
+    static final byte FEATURES = 1;
+    static final byte IDENTITY = 2;
+    static final byte DELETE = 3;
+
+    private static final long DEFAULT_MAX_SEGMENT_BYTES =
+        Long.getLong("clothauth.segment.maxBytes", 64L * 1024 * 1024);
+    private static final double DEFAULT_COMPACTION_RATIO =
+        Double.parseDouble(System.getProperty("clothauth.segment.compactionRatio", "0.5"));
+    private static final long DEFAULT_COMPACTION_INTERVAL_SECONDS =
+        Long.getLong("clothauth.segment.compactionIntervalSeconds", 60);
+
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private final double compactionRatio;
+    // Sorted, so listing pages are read straight off the index
+    private final ConcurrentSkipListMap<String, Pointer> featuresIndex = new ConcurrentSkipListMap<>();
+    private final Map<String, Pointer> identityIndex = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    // Reads hold the read lock so a compacted segment is never closed under them
+    private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService compactor;
+    private volatile Segment active;
+
+    public SegmentStore(Path directory) throws IOException {
+        this(directory, DEFAULT_MAX_SEGMENT_BYTES, DEFAULT_COMPACTION_RATIO, DEFAULT_COMPACTION_INTERVAL_SECONDS);
+    }
+
+    public SegmentStore(Path directory, long maxSegmentBytes, double compactionRatio,
+                        long compactionIntervalSeconds) throws IOException {
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.compactionRatio = compactionRatio;
+        Files.createDirectories(directory);
+        open();
+
+        if (compactionIntervalSeconds > 0) {
+            this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "segment-compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            compactor.scheduleWithFixedDelay(this::compactQuietly,
+                compactionIntervalSeconds, compactionIntervalSeconds, TimeUnit.SECONDS);
+        } else {
+            this.compactor = null;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void storeFeatures(String clothId, ClothFeatures features) throws IOException {
+        byte[] payload = RecordCodec.encodeFeatures(features);
+        synchronized (this) {
+            Pointer pointer = append(FEATURES, clothId, payload);
+            markDead(featuresIndex.put(clothId, pointer));
+        }
+    }
+
+    @Override
+    public void storeIdentity(String clothId, ClothIdentity identity) throws IOException {
+        byte[] payload = RecordCodec.encodeIdentity(identity);
+        synchronized (this) {
+            Pointer pointer = append(IDENTITY, clothId, payload);
+            markDead(identityIndex.put(clothId, pointer));
+        }
+    }
+
+    /**
+     * Appends all records of the batch, each cloth's features before its
+     * identity, and forces the active segment once for the whole batch.
+     * If an append fails, the cloths appended before it stay and a
+     * {@link PartialBatchException} names them.
+     */
+    @Override
+    public void storeBatch(List<ClothRecord> records, FsyncPolicy fsync) throws IOException {
+        List<byte[]> payloads = new ArrayList<>(2 * records.size());
+        for (ClothRecord record : records) {
+            payloads.add(record.getFeatures() != null ? RecordCodec.encodeFeatures(record.getFeatures()) : null);
+            payloads.add(record.getIdentity() != null ? RecordCodec.encodeIdentity(record.getIdentity()) : null);
+        }
+        synchronized (this) {
+            int appended = 0;
+            try {
+                for (; appended < records.size(); appended++) {
+                    String clothId = records.get(appended).getClothId();
+                    byte[] features = payloads.get(2 * appended);
+                    byte[] identity = payloads.get(2 * appended + 1);
+                    if (features != null) {
+                        markDead(featuresIndex.put(clothId, append(FEATURES, clothId, features)));
+                    }
+                    if (identity != null) {
+                        markDead(identityIndex.put(clothId, append(IDENTITY, clothId, identity)));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                List<String> clothIds = new ArrayList<>(appended + 1);
+                for (int i = 0; i < appended; i++) {
+                    clothIds.add(records.get(i).getClothId());
+                }
+                // Its features may be in place without its identity
+                if (appended < records.size() && payloads.get(2 * appended) != null && payloads.get(2 * appended + 1) != null) {
+                    clothIds.add(records.get(appended).getClothId());
+                }
+                if (clothIds.isEmpty()) {
+                    throw e;
+                }
+                throw new PartialBatchException(clothIds, e);
+            }
+            if (fsync == FsyncPolicy.BATCH) {
+                // Segments sealed during the batch were forced when they rolled
+                active.channel.force(false);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        active.channel.force(false);
+    }
+
+    @Override
+    public ClothFeatures loadFeatures(String clothId) throws IOException {
+        segmentLock.readLock().lock();
+        try {
+            Pointer pointer = featuresIndex.get(clothId);
+            if (pointer == null) {
+                return null;
+            }
+            Record record = read(pointer);
+            return RecordCodec.decodeFeatures(record.bytes, record.payloadOffset, record.payloadLength());
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CompactClothFeatures loadCompactFeatures(String clothId) throws IOException {
+        segmentLock.readLock().lock();
+        try {
+            Pointer pointer = featuresIndex.get(clothId);
+            if (pointer == null) {
+                return null;
+            }
+            Record record = read(pointer);
+            return RecordCodec.decodeCompactFeatures(record.bytes, record.payloadOffset, record.payloadLength());
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ClothIdentity loadIdentity(String clothId) throws IOException {
+        segmentLock.readLock().lock();
+        try {
+            Pointer pointer = identityIndex.get(clothId);
+            if (pointer == null) {
+                return null;
+            }
+            Record record = read(pointer);
+            return RecordCodec.decodeIdentity(record.bytes, record.payloadOffset, record.payloadLength());
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long featuresFingerprint(String clothId) {
+        // Records are never rewritten in place, so their position changes with their content
+        return fingerprint(featuresIndex.get(clothId));
+    }
+
+    @Override
+    public long identityFingerprint(String clothId) {
+        return fingerprint(identityIndex.get(clothId));
+    }
+
+    private static long fingerprint(Pointer pointer) {
+        return pointer != null ? (long) pointer.segment.id << 40 | pointer.offset : 0;
+    }
+
+    @Override
+    public boolean exists(String clothId) {
+        return featuresIndex.containsKey(clothId) || identityIndex.containsKey(clothId);
+    }
+
+    @Override
+    public List<String> listClothIds() {
+        return new ArrayList<>(featuresIndex.keySet());
+    }
+
+    @Override
+    public List<String> listIdentityOnlyClothIds() {
+        List<String> clothIds = new ArrayList<>();
+        for (String clothId : identityIndex.keySet()) {
+            if (!featuresIndex.containsKey(clothId)) {
+                clothIds.add(clothId);
+            }
+        }
+        return clothIds;
+    }
+
+    @Override
+    public List<String> listClothIds(String afterId, int limit) {
+        Map<String, Pointer> tail = afterId == null ? featuresIndex : featuresIndex.tailMap(afterId, false);
+        List<String> page = new ArrayList<>(Math.min(limit, 1024));
+        for (String clothId : tail.keySet()) {
+            if (page.size() >= limit) {
+                break;
+            }
+            page.add(clothId);
+        }
+        return page;
+    }
+
+    @Override
+    public List<String> listClothIds(String fromId, String toId) {
+        return new ArrayList<>(featuresIndex.subMap(fromId, true, toId, false).keySet());
+    }
+
+    @Override
+    public synchronized void delete(String clothId) throws IOException {
+        if (!exists(clothId)) {
+            return;
+        }
+        Pointer tombstone = append(DELETE, clothId, new byte[0]);
+        markDead(featuresIndex.remove(clothId));
+        markDead(identityIndex.remove(clothId));
+        markDead(tombstone);
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public long getTotalBytes() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.size;
+        }
+        return total;
+    }
+
+    public long getDeadBytes() {
+        long dead = 0;
+        for (Segment segment : segments.values()) {
+            dead += segment.deadBytes.get();
+        }
+        return dead;
+    }
+
+    /**
+     * Rewrites every sealed segment whose dead ratio has reached the
+     * compaction threshold.
+     *
+     * @return the number of segments compacted
+     */
+    public int compact() throws IOException {
+        int compacted = 0;
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (segment != active && segment.deadRatio() >= compactionRatio) {
+                compactSegment(segment);
+                compacted++;
+            }
+        }
+        return compacted;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (compactor != null) {
+            compactor.shutdownNow();
+            try {
+                compactor.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            segmentLock.writeLock().lock();
+            try {
+                active.channel.force(false);
+                for (Segment segment : segments.values()) {
+                    segment.channel.close();
+                }
+            } finally {
+                segmentLock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        long start = System.nanoTime();
+        List<Integer> ids = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> {
+                Matcher matcher = SEGMENT_FILE.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    ids.add(Integer.parseInt(matcher.group(1)));
+                }
+            });
+        }
+        ids.sort(null);
+
+        for (int i = 0; i < ids.size(); i++) {
+            boolean last = i == ids.size() - 1;
+            Segment segment = openSegment(ids.get(i));
+            segments.put(segment.id, segment);
+
+            List<HintEntry> entries = last ? null : readHint(segment);
+            if (entries == null) {
+                // The active segment may end in a torn write; cut it off
+                entries = scan(segment, last);
+                if (!last) {
+                    writeHint(segment, entries);
+                }
+            }
+            for (HintEntry entry : entries) {
+                apply(segment, entry);
+            }
+            if (last) {
+                segment.entries = entries;
+                active = segment;
+            }
+        }
+
+        if (active == null) {
+            active = createSegment(1);
+        }
+        logger.info("Opened segment store with {} cloths in {} segments in {} ms",
+            featuresIndex.size(), segments.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void apply(Segment segment, HintEntry entry) {
+        Pointer pointer = new Pointer(segment, entry.offset, entry.length);
+        switch (entry.type) {
+            case FEATURES:
+                markDead(featuresIndex.put(entry.clothId, pointer));
+                break;
+            case IDENTITY:
+                markDead(identityIndex.put(entry.clothId, pointer));
+                break;
+            case DELETE:
+                markDead(featuresIndex.remove(entry.clothId));
+                markDead(identityIndex.remove(entry.clothId));
+                markDead(pointer);
+                break;
+            default:
+                logger.warn("Skipping record of unknown type {} in {}", entry.type, segment.path);
+        }
+    }
+
+    private void markDead(Pointer pointer) {
+        if (pointer != null) {
+            pointer.segment.deadBytes.addAndGet(pointer.length);
+        }
+    }
+
+    private Pointer append(byte type, String clothId, byte[] payload) throws IOException {
+        byte[] id = clothId.getBytes(StandardCharsets.UTF_8);
+        if (id.length > 0xFFFF) {
+            throw new IOException("Cloth ID too long: " + id.length + " bytes");
+        }
+        int bodyLength = 3 + id.length + payload.length;
+        if (bodyLength > MAX_RECORD_BYTES) {
+            throw new IOException("Record too large: " + bodyLength + " bytes");
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + bodyLength);
+        record.putInt(bodyLength);
+        record.putInt(0);
+        record.put(type);
+        record.putShort((short) id.length);
+        record.put(id);
+        record.put(payload);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_BYTES, bodyLength);
+        record.putInt(4, (int) crc.getValue());
+        return appendRecord(type, clothId, record.array());
+    }
+
+    private synchronized Pointer appendRecord(byte type, String clothId, byte[] record) throws IOException {
+        if (active.size + record.length > maxSegmentBytes && active.size > SEGMENT_HEADER_BYTES) {
+            roll();
+        }
+        long offset = active.size;
+        writeFully(active.channel, ByteBuffer.wrap(record), offset);
+        active.size += record.length;
+        active.entries.add(new HintEntry(type, clothId, offset, record.length));
+        return new Pointer(active, offset, record.length);
+    }
+
+    private void roll() throws IOException {
+        Segment sealed = active;
+        sealed.channel.force(false);
+        writeHint(sealed, sealed.entries);
+        sealed.entries = null;
+        active = createSegment(sealed.id + 1);
+        logger.info("Sealed segment {} ({} bytes), now writing {}", sealed.path.getFileName(), sealed.size, active.path.getFileName());
+    }
+
+    private Record read(Pointer pointer) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(pointer.length);
+        FileChannel channel = pointer.segment.channel;
+        long position = pointer.offset;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Record truncated in " + pointer.segment.path);
+            }
+            position += read;
+        }
+        byte[] bytes = buffer.array();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, RECORD_HEADER_BYTES, bytes.length - RECORD_HEADER_BYTES);
+        if ((int) crc.getValue() != buffer.getInt(4)) {
+            throw new IOException("Checksum mismatch at offset " + pointer.offset + " in " + pointer.segment.path);
+        }
+        int idLength = buffer.getShort(RECORD_HEADER_BYTES + 1) & 0xFFFF;
+        return new Record(bytes, RECORD_HEADER_BYTES + 3 + idLength);
+    }
+
+    private void compactSegment(Segment segment) throws IOException {
+        long start = System.nanoTime();
+        List<HintEntry> entries = readHint(segment);
+        if (entries == null) {
+            entries = scan(segment, false);
+        }
+        // Tombstones only matter while an older segment may still hold the deleted records
+        boolean olderSegments = segments.lowerKey(segment.id) != null;
+        int moved = 0;
+
+        for (HintEntry entry : entries) {
+            if (entry.type == DELETE) {
+                if (olderSegments) {
+                    synchronized (this) {
+                        if (!exists(entry.clothId)) {
+                            markDead(append(DELETE, entry.clothId, new byte[0]));
+                        }
+                    }
+                }
+                continue;
+            }
+
+            Map<String, Pointer> index = entry.type == FEATURES ? featuresIndex : identityIndex;
+            Pointer current = index.get(entry.clothId);
+            if (current == null || current.segment != segment || current.offset != entry.offset) {
+                continue;
+            }
+            byte[] record;
+            segmentLock.readLock().lock();
+            try {
+                record = read(current).bytes;
+            } finally {
+                segmentLock.readLock().unlock();
+            }
+            synchronized (this) {
+                // Skip records overwritten or deleted while copying
+                if (index.get(entry.clothId) == current) {
+                    index.put(entry.clothId, appendRecord(entry.type, entry.clothId, record));
+                    moved++;
+                }
+            }
+        }
+
+        synchronized (this) {
+            // The copies are the only ones once the segment is deleted; segments rolled meanwhile were forced
+            active.channel.force(false);
+        }
+        segmentLock.writeLock().lock();
+        try {
+            segments.remove(segment.id);
+            segment.channel.close();
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+        Files.deleteIfExists(hintPath(segment.id));
+        Files.deleteIfExists(segment.path);
+        logger.info("Compacted segment {}: moved {} live records, reclaimed {} bytes in {} ms",
+            segment.path.getFileName(), moved, segment.deadBytes.get(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (Exception e) {
+            logger.error("Segment compaction failed: {}", e.getMessage(), e);
+        }
+    }
+
+    private Segment createSegment(int id) throws IOException {
+        Path path = segmentPath(id);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES);
+        header.putInt(SEGMENT_MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.flip();
+        writeFully(channel, header, 0);
+
+        Segment segment = new Segment(id, path, channel, SEGMENT_HEADER_BYTES);
+        segment.entries = new ArrayList<>();
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        Path path = segmentPath(id);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES);
+        channel.read(header, 0);
+        if (header.position() < SEGMENT_HEADER_BYTES || header.getInt(0) != SEGMENT_MAGIC
+                || header.getInt(4) != FORMAT_VERSION) {
+            channel.close();
+            throw new IOException("Not a segment file or unsupported version: " + path);
+        }
+        return new Segment(id, path, channel, channel.size());
+    }
+
+    /**
+     * Reads records from the start of the segment up to the first one that is
+     * incomplete or fails its checksum. When {@code repair} is set the file is
+     * truncated there.
+     */
+    private List<HintEntry> scan(Segment segment, boolean repair) throws IOException {
+        List<HintEntry> entries = new ArrayList<>();
+        long fileSize = segment.channel.size();
+        long offset = SEGMENT_HEADER_BYTES;
+        CRC32 crc = new CRC32();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            Channels.newInputStream(segment.channel.position(offset)), 1 << 16));
+        try {
+            while (offset < fileSize) {
+                int bodyLength = in.readInt();
+                int checksum = in.readInt();
+                if (bodyLength < 3 || bodyLength > MAX_RECORD_BYTES || offset + RECORD_HEADER_BYTES + bodyLength > fileSize) {
+                    break;
+                }
+                byte[] body = new byte[bodyLength];
+                in.readFully(body);
+                crc.reset();
+                crc.update(body, 0, bodyLength);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                int idLength = ((body[1] & 0xFF) << 8) | (body[2] & 0xFF);
+                if (3 + idLength > bodyLength) {
+                    break;
+                }
+                String clothId = new String(body, 3, idLength, StandardCharsets.UTF_8);
+                int length = RECORD_HEADER_BYTES + bodyLength;
+                entries.add(new HintEntry(body[0], clothId, offset, length));
+                offset += length;
+            }
+        } catch (EOFException e) {
+            // Torn header at the end of the file
+        }
+
+        if (offset < fileSize) {
+            logger.warn("Segment {} has {} bytes after its last intact record at offset {}{}",
+                segment.path.getFileName(), fileSize - offset, offset, repair ? ", truncating" : "");
+            if (repair) {
+                segment.channel.truncate(offset);
+                segment.channel.force(true);
+            }
+        }
+        segment.size = offset;
+        return entries;
+    }
+
+    private List<HintEntry> readHint(Segment segment) {
+        Path path = hintPath(segment.id);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(path);
+            if (bytes.length < 20) {
+                logger.warn("Ignoring truncated hint file {}", path);
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 8);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (buffer.getLong(bytes.length - 8) != crc.getValue()
+                    || buffer.getInt(0) != HINT_MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+                logger.warn("Ignoring invalid hint file {}", path);
+                return null;
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 8, bytes.length - 16));
+            int count = in.readInt();
+            List<HintEntry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte type = in.readByte();
+                String clothId = RecordCodec.readString(in);
+                long offset = in.readLong();
+                int length = in.readInt();
+                entries.add(new HintEntry(type, clothId, offset, length));
+            }
+            return entries;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not read hint file {}: {}", path, e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeHint(Segment segment, List<HintEntry> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 * entries.size() + 32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(HINT_MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(entries.size());
+        for (HintEntry entry : entries) {
+            out.writeByte(entry.type);
+            RecordCodec.writeString(out, entry.clothId);
+            out.writeLong(entry.offset);
+            out.writeInt(entry.length);
+        }
+        out.flush();
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        out.flush();
+
+        Path path = hintPath(segment.id);
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, bytes.toByteArray());
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private Path segmentPath(int id) {
+        return directory.resolve(String.format("segment-%06d.seg", id));
+    }
+
+    private Path hintPath(int id) {
+        return directory.resolve(String.format("segment-%06d.hint", id));
+    }
+
+    private static final class Segment {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        final AtomicLong deadBytes = new AtomicLong();
+        volatile long size;
+        // Records appended to the active segment, written out as its hint when sealed
+        List<HintEntry> entries;
+
+        Segment(int id, Path path, FileChannel channel, long size) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        double deadRatio() {
+            long payload = size - SEGMENT_HEADER_BYTES;
+            return payload > 0 ? (double) deadBytes.get() / payload : 0.0;
+        }
+    }
+
+    private static final class Pointer {
+        final Segment segment;
+        final long offset;
+        final int length;
+
+        Pointer(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final class HintEntry {
+        final byte type;
+        final String clothId;
+        final long offset;
+        final int length;
+
+        HintEntry(byte type, String clothId, long offset, int length) {
+            this.type = type;
+            this.clothId = clothId;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final class Record {
+        final byte[] bytes;
+        final int payloadOffset;
+
+        Record(byte[] bytes, int payloadOffset) {
+            this.bytes = bytes;
+            this.payloadOffset = payloadOffset;
+        }
+
+        int payloadLength() {
+            return bytes.length - payloadOffset;
+        }
+    }
+}
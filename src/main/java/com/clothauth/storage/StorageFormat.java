@@ -0,0 +1,89 @@
+package com.clothauth.storage;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * File formats of the JSON directory store, set with
+ * {@code clothauth.storage.json.format}. Files keep their names whatever
+ * the format; readers detect it from the first bytes, so a store can mix
+ * formats and switching needs no migration.
+ */
+public enum StorageFormat {
+    /** Indented JSON, as written before formats were configurable. */
+    JSON_INDENTED("json-indented"),
+    JSON("json"),
+    /** Binary JSON; starts with the {@code ":)\n"} header. */
+    SMILE("smile"),
+    /** RFC 8949 CBOR; starts with the self-describe tag {@code D9 D9 F7}. */
+    CBOR("cbor");
+    
+    private final String id;
+    private final ObjectMapper mapper;
+    
+    StorageFormat(String id) {
+        this.id = id;
+        this.mapper = createMapper(id);
+    }
+    
+    public String getId() {
+        return id;
+    }
+    
+    /**
+     * Mapper writing this format; its factory creates the streaming
+     * generators and parsers.
+     */
+    ObjectMapper mapper() {
+        return mapper;
+    }
+    
+    JsonFactory factory() {
+        return mapper.getFactory();
+    }
+    
+    public static StorageFormat fromId(String id) {
+        for (StorageFormat format : values()) {
+            if (format.id.equalsIgnoreCase(id.trim())) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unknown storage format: " + id);
+    }
+    
+    public static StorageFormat fromSystemProperties() {
+        return fromId(System.getProperty("clothauth.storage.json.format", JSON.id));
+    }
+    
+    /**
+     * Detects the format of encoded data. Anything that is neither Smile nor
+     * CBOR is parsed as JSON, indented or not.
+     */
+    public static StorageFormat detect(byte[] data, int offset, int length) {
+        if (length >= 3 && data[offset] == ':' && data[offset + 1] == ')' && data[offset + 2] == '\n') {
+            return SMILE;
+        }
+        if (length >= 3 && (data[offset] & 0xFF) == 0xD9 && (data[offset + 1] & 0xFF) == 0xD9
+                && (data[offset + 2] & 0xFF) == 0xF7) {
+            return CBOR;
+        }
+        return JSON;
+    }
+    
+    private static ObjectMapper createMapper(String id) {
+        switch (id) {
+            case "json-indented":
+                return new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+            case "smile":
+                return new ObjectMapper(new SmileFactory());
+            case "cbor":
+                return new ObjectMapper(CBORFactory.builder().enable(CBORGenerator.Feature.WRITE_TYPE_HEADER).build());
+            default:
+                return new ObjectMapper();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.clothauth.storage;
+
+import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.ClothIdentity;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the storage formats on a sample of cloths: bytes on disk per
+ * cloth, and the time to encode and write, and to read and decode, its
+ * features and identity files. Writes are not synced, so the times are
+ * those of the codec and the file system cache.
+ *
+ * The first row is the baseline the formats replaced: indented JSON
+ * written and read through ObjectMapper data binding, file by file.
+ */
+public final class StorageFormatBenchmark {
+    public static final String BASELINE = "databind";
+    
+    public static final class Result {
+        private final String name;
+        private final long bytesPerCloth;
+        private final double writeMicros;
+        private final double readMicros;
+        
+        Result(String name, long bytesPerCloth, double writeMicros, double readMicros) {
+            this.name = name;
+            this.bytesPerCloth = bytesPerCloth;
+            this.writeMicros = writeMicros;
+            this.readMicros = readMicros;
+        }
+        
+        /**
+         * @return the format ID, or {@link #BASELINE} for the data binding baseline
+         */
+        public String getName() { return name; }
+        public long getBytesPerCloth() { return bytesPerCloth; }
+        public double getWriteMicros() { return writeMicros; }
+        public double getReadMicros() { return readMicros; }
+    }
+    
+    /**
+     * Writes and reads the two files of a cloth.
+     */
+    private interface FileCodec {
+        void write(Path features, Path identity, ClothRecord record) throws IOException;
+        
+        void read(Path features, Path identity) throws IOException;
+    }
+    
+    private StorageFormatBenchmark() {
+    }
+    
+    /**
+     * Runs the baseline and every format over the sample {@code rounds}
+     * times after one warm-up round, using files in {@code directory},
+     * which is emptied again afterwards.
+     */
+    public static List<Result> run(List<ClothRecord> sample, Path directory, int rounds) throws IOException {
+        List<Result> results = new ArrayList<>();
+        if (sample.isEmpty()) {
+            return results;
+        }
+        results.add(measure(BASELINE, dataBinding(), sample, directory, rounds));
+        for (StorageFormat format : StorageFormat.values()) {
+            results.add(measure(format.getId(), streaming(new JsonRecordCodec(format)), sample, directory, rounds));
+        }
+        return results;
+    }
+    
+    private static Result measure(String name, FileCodec codec, List<ClothRecord> sample, Path directory, int rounds) throws IOException {
+        Path dir = Files.createDirectories(directory.resolve(name));
+        long bytes = 0;
+        long writeNanos = 0;
+        long readNanos = 0;
+        try {
+            for (int round = 0; round <= rounds; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < sample.size(); i++) {
+                    codec.write(dir.resolve(i + "_features"), dir.resolve(i + "_identity"), sample.get(i));
+                }
+                long written = System.nanoTime();
+                for (int i = 0; i < sample.size(); i++) {
+                    codec.read(dir.resolve(i + "_features"), dir.resolve(i + "_identity"));
+                }
+                long read = System.nanoTime();
+                if (round > 0) {
+                    writeNanos += written - start;
+                    readNanos += read - written;
+                }
+            }
+            for (int i = 0; i < sample.size(); i++) {
+                bytes += Files.size(dir.resolve(i + "_features")) + Files.size(dir.resolve(i + "_identity"));
+            }
+        } finally {
+            for (int i = 0; i < sample.size(); i++) {
+                Files.deleteIfExists(dir.resolve(i + "_features"));
+                Files.deleteIfExists(dir.resolve(i + "_identity"));
+            }
+            Files.deleteIfExists(dir);
+        }
+        double operations = (double) rounds * sample.size() * 1000;
+        return new Result(name, bytes / sample.size(), writeNanos / operations, readNanos / operations);
+    }
+    
+    private static FileCodec streaming(JsonRecordCodec codec) {
+        return new FileCodec() {
+            @Override
+            public void write(Path features, Path identity, ClothRecord record) throws IOException {
+                Files.write(features, codec.encodeFeatures(record.getFeatures()));
+                Files.write(identity, codec.encodeIdentity(record.getIdentity()));
+            }
+            
+            @Override
+            public void read(Path features, Path identity) throws IOException {
+                JsonRecordCodec.decodeFeatures(Files.readAllBytes(features));
+                JsonRecordCodec.decodeIdentity(Files.readAllBytes(identity));
+            }
+        };
+    }
+    
+    private static FileCodec dataBinding() {
+        // The mapper and calls the store used before formats were configurable
+        ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        return new FileCodec() {
+            @Override
+            public void write(Path features, Path identity, ClothRecord record) throws IOException {
+                mapper.writeValue(features.toFile(), record.getFeatures());
+                mapper.writeValue(identity.toFile(), record.getIdentity());
+            }
+            
+            @Override
+            public void read(Path features, Path identity) throws IOException {
+                mapper.readValue(features.toFile(), ClothFeatures.class);
+                mapper.readValue(identity.toFile(), ClothIdentity.class);
+            }
+        };
+    }
+}
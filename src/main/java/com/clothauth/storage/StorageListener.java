@@ -0,0 +1,19 @@
+package com.clothauth.storage;
+
+import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.ClothIdentity;
+
+/**
+ * Notified by LocalStorageManager after cloth data has been written or
+ * deleted, so in-memory indexes can stay in sync with storage.
+ */
+public interface StorageListener {
+    default void onFeaturesStored(String clothId, ClothFeatures features) {
+    }
+    
+    default void onIdentityStored(String clothId, ClothIdentity identity) {
+    }
+    
+    default void onClothDeleted(String clothId) {
+    }
+}
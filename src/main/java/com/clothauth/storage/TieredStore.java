@@ -0,0 +1,272 @@
+package com.clothauth.storage;
+
+import com.clothauth.model.ClothFeatures;
+import com.clothauth.model.ClothIdentity;
+import com.clothauth.model.CompactClothFeatures;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Store with a hot tier, the regular backend, in front of a
+ * {@link ColdArchive}. New writes always go to the hot tier, and reads look
+ * there first, so a cloth written again after it was archived shadows its
+ * archived copy until {@link #delete} removes both.
+ *
+ * {@link #archiveOlderThan} moves cloths whose identity was created before
+ * a cutoff into a new archive file and only then removes them from the hot
+ * tier; cloths written or deleted meanwhile keep their hot state. A crash
+ * in between leaves both copies, which the next run archives again.
+ */
+public class TieredStore implements ClothStore {
+    private static final Logger logger = LoggerFactory.getLogger(TieredStore.class);
+    
+    private final ClothStore hot;
+    private final ColdArchive archive;
+    private final int maxRecordsPerArchive;
+    private final Object writeLock = new Object();
+    private Set<String> writtenDuringArchive;
+    
+    public TieredStore(ClothStore hot, ColdArchive archive, int maxRecordsPerArchive) {
+        this.hot = hot;
+        this.archive = archive;
+        this.maxRecordsPerArchive = maxRecordsPerArchive;
+    }
+    
+    public ClothStore getHotStore() {
+        return hot;
+    }
+    
+    public ColdArchive getArchive() {
+        return archive;
+    }
+    
+    @Override
+    public String getName() {
+        return hot.getName();
+    }
+    
+    @Override
+    public void storeFeatures(String clothId, ClothFeatures features) throws IOException {
+        synchronized (writeLock) {
+            written(clothId);
+            hot.storeFeatures(clothId, features);
+        }
+    }
+    
+    @Override
+    public void storeIdentity(String clothId, ClothIdentity identity) throws IOException {
+        synchronized (writeLock) {
+            written(clothId);
+            hot.storeIdentity(clothId, identity);
+        }
+    }
+    
+    @Override
+    public void storeBatch(List<ClothRecord> records, FsyncPolicy fsync) throws IOException {
+        synchronized (writeLock) {
+            for (ClothRecord record : records) {
+                written(record.getClothId());
+            }
+            hot.storeBatch(records, fsync);
+        }
+    }
+    
+    @Override
+    public ClothFeatures loadFeatures(String clothId) throws IOException {
+        ClothFeatures features = hot.loadFeatures(clothId);
+        return features != null ? features : archive.loadFeatures(clothId);
+    }
+    
+    @Override
+    public CompactClothFeatures loadCompactFeatures(String clothId) throws IOException {
+        CompactClothFeatures features = hot.loadCompactFeatures(clothId);
+        return features != null ? features : archive.loadCompactFeatures(clothId);
+    }
+    
+    @Override
+    public ClothIdentity loadIdentity(String clothId) throws IOException {
+        ClothIdentity identity = hot.loadIdentity(clothId);
+        return identity != null ? identity : archive.loadIdentity(clothId);
+    }
+    
+    @Override
+    public long featuresFingerprint(String clothId) {
+        return hot.exists(clothId) ? hot.featuresFingerprint(clothId) : archive.featuresFingerprint(clothId);
+    }
+    
+    @Override
+    public long identityFingerprint(String clothId) {
+        return hot.exists(clothId) ? hot.identityFingerprint(clothId) : archive.identityFingerprint(clothId);
+    }
+    
+    @Override
+    public boolean exists(String clothId) {
+        return hot.exists(clothId) || archive.contains(clothId);
+    }
+    
+    @Override
+    public List<String> listClothIds() throws IOException {
+        if (archive.size() == 0) {
+            return hot.listClothIds();
+        }
+        Set<String> clothIds = new HashSet<>(hot.listClothIds());
+        clothIds.addAll(archive.listClothIds());
+        return new ArrayList<>(clothIds);
+    }
+    
+    @Override
+    public List<String> listIdentityOnlyClothIds() throws IOException {
+        List<String> clothIds = new ArrayList<>();
+        for (String clothId : hot.listIdentityOnlyClothIds()) {
+            if (!archive.hasFeatures(clothId)) {
+                clothIds.add(clothId);
+            }
+        }
+        for (String clothId : archive.listIdentityOnlyClothIds()) {
+            // Cloths also in the hot tier are listed through it
+            if (!hot.exists(clothId)) {
+                clothIds.add(clothId);
+            }
+        }
+        return clothIds;
+    }
+    
+    @Override
+    public List<String> listClothIds(String afterId, int limit) throws IOException {
+        if (archive.size() == 0) {
+            return hot.listClothIds(afterId, limit);
+        }
+        return merge(hot.listClothIds(afterId, limit), archive.listClothIds(afterId, limit), limit);
+    }
+    
+    @Override
+    public List<String> listClothIds(String fromId, String toId) throws IOException {
+        if (archive.size() == 0) {
+            return hot.listClothIds(fromId, toId);
+        }
+        return merge(hot.listClothIds(fromId, toId), archive.listClothIds(fromId, toId), Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Merges two sorted ID lists into one sorted list of at most {@code limit} IDs.
+     * A cloth that is being archived may briefly be in both tiers; it is listed once.
+     */
+    private static List<String> merge(List<String> hotIds, List<String> archivedIds, int limit) {
+        List<String> merged = new ArrayList<>(Math.min(limit, hotIds.size() + archivedIds.size()));
+        int h = 0;
+        int a = 0;
+        while (merged.size() < limit && (h < hotIds.size() || a < archivedIds.size())) {
+            int order = h == hotIds.size() ? 1 : a == archivedIds.size() ? -1 : hotIds.get(h).compareTo(archivedIds.get(a));
+            if (order <= 0) {
+                merged.add(hotIds.get(h++));
+                if (order == 0) {
+                    a++;
+                }
+            } else {
+                merged.add(archivedIds.get(a++));
+            }
+        }
+        return merged;
+    }
+    
+    @Override
+    public void delete(String clothId) throws IOException {
+        synchronized (writeLock) {
+            written(clothId);
+            hot.delete(clothId);
+            archive.delete(clothId);
+        }
+    }
+    
+    @Override
+    public void sync() throws IOException {
+        hot.sync();
+    }
+    
+    /**
+     * Moves the cloths whose identity was created before {@code cutoffMillis}
+     * from the hot tier into the archive. Runs one at a time; writes
+     * continue meanwhile.
+     *
+     * @return the number of cloths moved
+     */
+    public synchronized int archiveOlderThan(long cutoffMillis) throws IOException {
+        long start = System.nanoTime();
+        synchronized (writeLock) {
+            writtenDuringArchive = new HashSet<>();
+        }
+        int moved = 0;
+        try {
+            List<String> clothIds = hot.listClothIds();
+            Collections.sort(clothIds);
+            List<ClothRecord> batch = new ArrayList<>();
+            for (String clothId : clothIds) {
+                ClothIdentity identity = hot.loadIdentity(clothId);
+                if (identity == null || identity.getCreationTime() >= cutoffMillis) {
+                    continue;
+                }
+                ClothFeatures features = hot.loadFeatures(clothId);
+                if (features == null) {
+                    continue;
+                }
+                batch.add(new ClothRecord(clothId, features, identity));
+                if (batch.size() >= maxRecordsPerArchive) {
+                    moved += move(batch);
+                    batch.clear();
+                }
+            }
+            moved += move(batch);
+        } finally {
+            synchronized (writeLock) {
+                writtenDuringArchive = null;
+            }
+        }
+        if (moved > 0) {
+            logger.info("Moved {} cloths to the cold archive in {} ms", moved, (System.nanoTime() - start) / 1_000_000);
+        }
+        return moved;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        try {
+            hot.close();
+        } finally {
+            archive.close();
+        }
+    }
+    
+    private int move(List<ClothRecord> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        archive.append(batch);
+        int moved = 0;
+        synchronized (writeLock) {
+            for (ClothRecord record : batch) {
+                // A cloth written or deleted after it was read must not come back from the archive
+                if (writtenDuringArchive.contains(record.getClothId())) {
+                    archive.delete(record.getClothId());
+                } else {
+                    hot.delete(record.getClothId());
+                    moved++;
+                }
+            }
+            hot.sync();
+        }
+        return moved;
+    }
+    
+    private void written(String clothId) {
+        if (writtenDuringArchive != null) {
+            writtenDuringArchive.add(clothId);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.clothauth.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Sequential log of store and delete operations, written and synced before
+ * they are applied to the ClothStore. Each store record holds a cloth's
+ * features and identity together, so replaying the log after a crash
+ * restores both or neither, without scanning the store.
+ *
+ * The file is a header {@code [magic][version][checkpoint]} followed by
+ * records {@code [body length][CRC32 of body][type][id][payload]}. A
+ * checkpoint is taken once the store has been synced: the log is truncated
+ * back to its header and the checkpoint number incremented. Replay reads
+ * every record after the header and stops at the first torn or corrupt one.
+ */
+public class WriteAheadLog implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+    private static final int MAGIC = 0x434C574C; // "CLWL"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+    
+    private static final byte RECORD_STORE = 1;
+    private static final byte RECORD_DELETE = 2;
+    
+    private final Path file;
+    private final FileChannel channel;
+    private long checkpoint;
+    private int records;
+    
+    private WriteAheadLog(Path file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+    
+    /**
+     * Opens the log and replays the operations logged since the last
+     * checkpoint into {@code store}. The store is synced and a checkpoint
+     * taken before this returns.
+     */
+    public static WriteAheadLog open(Path file, ClothStore store) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        FileChannel channel = FileChannel.open(file,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        WriteAheadLog log = new WriteAheadLog(file, channel);
+        try {
+            log.recover(store);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return log;
+    }
+    
+    /**
+     * Appends the operations in order, as one write. A write or sync that
+     * fails is cut off again, so later appends never end up behind a torn
+     * record that replay would stop at.
+     *
+     * @return the log position the operations start at, for {@link #rollback}
+     */
+    public synchronized long append(List<ClothRecord> operations, boolean sync) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096 * operations.size());
+        for (ClothRecord operation : operations) {
+            encode(bytes, operation);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        long start = channel.size();
+        try {
+            long position = start;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            if (sync) {
+                channel.force(false);
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                channel.truncate(start);
+            } catch (IOException truncateFailure) {
+                e.addSuppressed(truncateFailure);
+            }
+            throw e;
+        }
+        records += operations.size();
+        return start;
+    }
+    
+    /**
+     * Removes the operations of the last append, which starts at
+     * {@code position}, when they could not be applied to the store. The
+     * truncation is synced before this returns, so they are not replayed.
+     */
+    public synchronized void rollback(long position, int operations) throws IOException {
+        channel.truncate(position);
+        channel.force(false);
+        records = Math.max(0, records - operations);
+    }
+    
+    /**
+     * Discards the logged operations. Only call once they are durable in
+     * the store.
+     */
+    public synchronized void checkpoint() throws IOException {
+        checkpoint++;
+        writeHeader();
+        channel.truncate(HEADER_BYTES);
+        channel.force(true);
+        records = 0;
+    }
+    
+    /**
+     * @return the number of operations logged since the last checkpoint
+     */
+    public synchronized int getRecords() {
+        return records;
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+    
+    private void recover(ClothStore store) throws IOException {
+        long start = System.nanoTime();
+        long size = channel.size();
+        if (size < HEADER_BYTES) {
+            if (size > 0) {
+                logger.warn("Write-ahead log {} has a torn header, starting a new one", file);
+            }
+            writeHeader();
+            channel.truncate(HEADER_BYTES);
+            channel.force(true);
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException("Not a write-ahead log of a supported version: " + file);
+        }
+        checkpoint = header.getLong();
+        
+        int stores = 0;
+        int deletes = 0;
+        long position = HEADER_BYTES;
+        List<ClothRecord> batch = new ArrayList<>();
+        while (true) {
+            byte[] body = readBody(position, size);
+            if (body == null) {
+                break;
+            }
+            position += RECORD_HEADER_BYTES + body.length;
+            ClothRecord operation = decode(body);
+            if (operation.isDeletion()) {
+                apply(store, batch);
+                store.delete(operation.getClothId());
+                deletes++;
+            } else {
+                batch.add(operation);
+                stores++;
+            }
+        }
+        apply(store, batch);
+        if (position < size) {
+            logger.warn("Discarding {} bytes of torn or corrupt records at the end of write-ahead log {}", size - position, file);
+        }
+        if (stores + deletes > 0) {
+            store.sync();
+        }
+        checkpoint();
+        logger.info("Replayed write-ahead log {} from checkpoint {}: {} stores and {} deletes in {} ms",
+            file, checkpoint - 1, stores, deletes, (System.nanoTime() - start) / 1_000_000);
+    }
+    
+    private static void apply(ClothStore store, List<ClothRecord> batch) throws IOException {
+        if (!batch.isEmpty()) {
+            store.storeBatch(new ArrayList<>(batch), FsyncPolicy.DEFERRED);
+            batch.clear();
+        }
+    }
+    
+    /**
+     * @return the body of the record at the position, or null at the end of
+     *         the log or at a torn or corrupt record
+     */
+    private byte[] readBody(long position, long size) throws IOException {
+        if (size - position < RECORD_HEADER_BYTES) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        readFully(header, position);
+        header.flip();
+        int bodyLength = header.getInt();
+        int checksum = header.getInt();
+        if (bodyLength < 1 || bodyLength > MAX_RECORD_BYTES || size - position - RECORD_HEADER_BYTES < bodyLength) {
+            return null;
+        }
+        ByteBuffer body = ByteBuffer.allocate(bodyLength);
+        readFully(body, position + RECORD_HEADER_BYTES);
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+        return body.array();
+    }
+    
+    private static void encode(ByteArrayOutputStream bytes, ClothRecord operation) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(body);
+        if (operation.isDeletion()) {
+            out.writeByte(RECORD_DELETE);
+            RecordCodec.writeString(out, operation.getClothId());
+        } else {
+            out.writeByte(RECORD_STORE);
+            RecordCodec.writeString(out, operation.getClothId());
+            writePayload(out, operation.getFeatures() != null ? RecordCodec.encodeFeatures(operation.getFeatures()) : null);
+            writePayload(out, operation.getIdentity() != null ? RecordCodec.encodeIdentity(operation.getIdentity()) : null);
+        }
+        out.flush();
+        byte[] data = body.toByteArray();
+        if (data.length > MAX_RECORD_BYTES) {
+            throw new IOException("Write-ahead log record too large: " + data.length + " bytes");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(data.length);
+        header.writeInt((int) crc.getValue());
+        header.write(data);
+    }
+    
+    private static void writePayload(DataOutputStream out, byte[] payload) throws IOException {
+        if (payload == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+    }
+    
+    private static ClothRecord decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = in.readByte();
+        String clothId = RecordCodec.readString(in);
+        switch (type) {
+            case RECORD_DELETE:
+                return ClothRecord.deletion(clothId);
+            case RECORD_STORE:
+                byte[] features = readPayload(in);
+                byte[] identity = readPayload(in);
+                return new ClothRecord(clothId,
+                    features != null ? RecordCodec.decodeFeatures(features, 0, features.length) : null,
+                    identity != null ? RecordCodec.decodeIdentity(identity, 0, identity.length) : null);
+            default:
+                throw new IOException("Unknown write-ahead log record type: " + type);
+        }
+    }
+    
+    private static byte[] readPayload(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+    
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(checkpoint);
+        header.flip();
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+    }
+    
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of write-ahead log " + file);
+            }
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.clothauth.utils;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Co-occurrence statistics derived from a single horizontal GLCM pass
+ * (distance 1). The image is quantised to a fixed number of grey levels,
+ * copied out of the Mat once and the pair counts are accumulated into a
+ * primitive array.
+ *
+ * Contrast and homogeneity are computed over the min-max normalised matrix,
+ * as the texture features have always been. Energy, entropy and correlation
+ * use the usual probability-normalised matrix.
+ */
+public final class GlcmStats {
+    private static final double EPSILON = 2.220446049250313E-16; // DBL_EPSILON, as used by Core.normalize
+
+    private final int levels;
+    private final double contrast;
+    private final double homogeneity;
+    private final double energy;
+    private final double entropy;
+    private final double correlation;
+
+    private GlcmStats(int levels, double contrast, double homogeneity, double energy, double entropy, double correlation) {
+        this.levels = levels;
+        this.contrast = contrast;
+        this.homogeneity = homogeneity;
+        this.energy = energy;
+        this.entropy = entropy;
+        this.correlation = correlation;
+    }
+
+    public static GlcmStats compute(Mat image, int levels) {
+        // Quantise to [0, levels - 1] with the same OpenCV calls as before
+        try (NativeScope scope = new NativeScope()) {
+            Mat scaled = scope.newMat();
+            image.convertTo(scaled, CvType.CV_32F);
+            Core.normalize(scaled, scaled, 0, levels - 1, Core.NORM_MINMAX);
+            scaled.convertTo(scaled, CvType.CV_8U);
+
+            int rows = scaled.rows();
+            int cols = scaled.cols();
+            byte[] quantised = new byte[rows * cols];
+            scaled.get(0, 0, quantised);
+
+            return fromCounts(accumulate(quantised, rows, cols, levels), levels);
+        }
+    }
+
+    static long[] accumulate(byte[] quantised, int rows, int cols, int levels) {
+        long[] counts = new long[levels * levels];
+        for (int i = 0; i < rows; i++) {
+            int rowOffset = i * cols;
+            int left = quantised[rowOffset] & 0xFF;
+            for (int j = 1; j < cols; j++) {
+                int right = quantised[rowOffset + j] & 0xFF;
+                counts[left * levels + right]++;
+                left = right;
+            }
+        }
+        return counts;
+    }
+
+    static GlcmStats fromCounts(long[] counts, int levels) {
+        long total = 0;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (long count : counts) {
+            total += count;
+            min = Math.min(min, count);
+            max = Math.max(max, count);
+        }
+
+        // Min-max normalisation to [0, 1], mirroring Core.normalize(NORM_MINMAX)
+        double scale = (max - min) > EPSILON ? 1.0 / (max - min) : 0.0;
+        double shift = -min * scale;
+
+        double contrast = 0;
+        double homogeneity = 0;
+        double energy = 0;
+        double entropy = 0;
+        double meanI = 0;
+        double meanJ = 0;
+
+        for (int i = 0; i < levels; i++) {
+            for (int j = 0; j < levels; j++) {
+                long count = counts[i * levels + j];
+                double normalized = count * scale + shift;
+                double distance = (i - j) * (i - j);
+                contrast += normalized * distance;
+                homogeneity += normalized / (1 + distance);
+
+                if (count > 0) {
+                    double p = (double) count / total;
+                    energy += p * p;
+                    entropy -= p * Math.log(p);
+                    meanI += i * p;
+                    meanJ += j * p;
+                }
+            }
+        }
+
+        double varianceI = 0;
+        double varianceJ = 0;
+        double covariance = 0;
+        if (total > 0) {
+            for (int i = 0; i < levels; i++) {
+                for (int j = 0; j < levels; j++) {
+                    long count = counts[i * levels + j];
+                    if (count > 0) {
+                        double p = (double) count / total;
+                        varianceI += (i - meanI) * (i - meanI) * p;
+                        varianceJ += (j - meanJ) * (j - meanJ) * p;
+                        covariance += (i - meanI) * (j - meanJ) * p;
+                    }
+                }
+            }
+        }
+        double deviation = Math.sqrt(varianceI * varianceJ);
+        double correlation = deviation > 0 ? covariance / deviation : 1.0;
+
+        return new GlcmStats(levels, contrast, homogeneity, energy, entropy, correlation);
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    public double getContrast() {
+        return contrast;
+    }
+
+    public double getHomogeneity() {
+        return homogeneity;
+    }
+
+    public double getEnergy() {
+        return energy;
+    }
+
+    public double getEntropy() {
+        return entropy;
+    }
+
+    public double getCorrelation() {
+        return correlation;
+    }
+}
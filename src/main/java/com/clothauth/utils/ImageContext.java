@@ -0,0 +1,95 @@
+package com.clothauth.utils;
+
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A decoded image shared by all extraction stages of a single cloth item.
+ * The image file is decoded once; grayscale and blurred variants are derived
+ * lazily from the decoded BGR pixels and reused by every stage.
+ * Accessors are synchronized so stages may run on different threads.
+ */
+public class ImageContext implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ImageContext.class);
+
+    static {
+        // Load OpenCV native library
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    private final String imagePath;
+    private final NativeScope scope;
+    private final Mat bgr;
+    private Mat gray;
+    private Mat blurred;
+
+    private ImageContext(String imagePath, NativeScope scope, Mat bgr) {
+        this.imagePath = imagePath;
+        this.scope = scope;
+        this.bgr = bgr;
+    }
+
+    public static ImageContext load(String imagePath) {
+        NativeScope scope = new NativeScope();
+        Mat image = scope.track(Imgcodecs.imread(imagePath, Imgcodecs.IMREAD_COLOR));
+        logger.debug("Decoded image {} ({}x{})", imagePath, image.cols(), image.rows());
+        return new ImageContext(imagePath, scope, image);
+    }
+
+    public String getImagePath() {
+        return imagePath;
+    }
+
+    public boolean isEmpty() {
+        return bgr.empty();
+    }
+
+    public int getWidth() {
+        return bgr.cols();
+    }
+
+    public int getHeight() {
+        return bgr.rows();
+    }
+
+    public synchronized Mat getBgr() {
+        ensureLoaded();
+        return bgr;
+    }
+
+    public synchronized Mat getGray() {
+        ensureLoaded();
+        if (gray == null) {
+            // Not bit-identical to an IMREAD_GRAYSCALE decode; the texture (LBP, GLCM) and
+            // edge stages all read this Mat, so their values can differ from older registrations
+            gray = scope.newMat();
+            Imgproc.cvtColor(bgr, gray, Imgproc.COLOR_BGR2GRAY);
+            scope.refresh();
+        }
+        return gray;
+    }
+
+    public synchronized Mat getBlurred() {
+        if (blurred == null) {
+            Mat source = getGray();
+            blurred = scope.newMat();
+            Imgproc.GaussianBlur(source, blurred, ImageProcessor.GAUSSIAN_BLUR_SIZE, ImageProcessor.GAUSSIAN_BLUR_SIGMA);
+            scope.refresh();
+        }
+        return blurred;
+    }
+
+    private void ensureLoaded() {
+        if (bgr.empty()) {
+            throw new RuntimeException("Could not load image: " + imagePath);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        scope.close();
+    }
+}
@@ -1,7 +1,6 @@
 package com.clothauth.utils;
 
 import org.opencv.core.*;
-import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,8 +11,9 @@ public class ImageProcessor {
     private static final Logger logger = LoggerFactory.getLogger(ImageProcessor.class);
     private static final int DECIMAL_PRECISION = 4; // Match HashGenerator precision
     private static final int COLOR_CONVERT_CODE = Imgproc.COLOR_BGR2RGB;
-    private static final Size GAUSSIAN_BLUR_SIZE = new Size(3, 3);
-    private static final double GAUSSIAN_BLUR_SIGMA = 0.0;
+    static final Size GAUSSIAN_BLUR_SIZE = new Size(3, 3);
+    static final double GAUSSIAN_BLUR_SIGMA = 0.0;
+    private static final int GLCM_LEVELS = 8;
     
     static {
         // Load OpenCV native library
@@ -26,36 +26,44 @@ public class ImageProcessor {
         int cannyHighThreshold,
         int lbpRadius,
         int lbpNeighbors
+    ) {
+        try (ImageContext context = ImageContext.load(imagePath)) {
+            return extractTextureFeatures(context, cannyLowThreshold, cannyHighThreshold, lbpRadius, lbpNeighbors);
+        }
+    }
+    
+    public static Map<String, Double> extractTextureFeatures(
+        ImageContext context,
+        int cannyLowThreshold,
+        int cannyHighThreshold,
+        int lbpRadius,
+        int lbpNeighbors
     ) {
         TreeMap<String, Double> textureFeatures = new TreeMap<>();
         
-        try {
-            // Read image in grayscale mode for consistency
-            Mat image = Imgcodecs.imread(imagePath, Imgcodecs.IMREAD_GRAYSCALE);
-            if (image.empty()) {
-                throw new RuntimeException("Could not load image: " + imagePath);
-            }
-            
-            // Apply Gaussian blur to reduce noise
-            Mat blurredImage = new Mat();
-            Imgproc.GaussianBlur(image, blurredImage, GAUSSIAN_BLUR_SIZE, GAUSSIAN_BLUR_SIGMA);
+        try (NativeScope scope = new NativeScope()) {
+            // Blurred grayscale image shared with the other stages
+            Mat blurredImage = context.getBlurred();
             
             // Calculate LBP features
-            Mat lbp = new Mat();
+            Mat lbp = scope.newMat();
             calculateLBP(blurredImage, lbp, lbpRadius, lbpNeighbors);
             
             // Calculate statistical features
             Scalar mean = Core.mean(lbp);
-            MatOfDouble std = new MatOfDouble();
-            Core.meanStdDev(lbp, new MatOfDouble(), std);
+            MatOfDouble std = scope.track(new MatOfDouble());
+            Core.meanStdDev(lbp, scope.track(new MatOfDouble()), std);
+            
+            // Single GLCM pass for all co-occurrence statistics
+            GlcmStats glcm = GlcmStats.compute(blurredImage, GLCM_LEVELS);
             
             // Store features in sorted order
-            textureFeatures.put("contrast", roundToDecimal(calculateContrast(blurredImage)));
-            textureFeatures.put("homogeneity", roundToDecimal(calculateHomogeneity(blurredImage)));
+            textureFeatures.put("contrast", roundToDecimal(glcm.getContrast()));
+            textureFeatures.put("homogeneity", roundToDecimal(glcm.getHomogeneity()));
             textureFeatures.put("mean_intensity", roundToDecimal(mean.val[0]));
             textureFeatures.put("std_deviation", roundToDecimal(std.get(0, 0)[0]));
             
-            logger.info("Extracted texture features for image: {}", imagePath);
+            logger.info("Extracted texture features for image: {}", context.getImagePath());
             
         } catch (Exception e) {
             logger.error("Error extracting texture features: {}", e.getMessage());
@@ -69,31 +77,35 @@ public class ImageProcessor {
     }
     
     public static List<Double> extractColorHistogram(String imagePath, int bins) {
+        try (ImageContext context = ImageContext.load(imagePath)) {
+            return extractColorHistogram(context, bins);
+        }
+    }
+    
+    public static List<Double> extractColorHistogram(ImageContext context, int bins) {
         List<Double> histogram = new ArrayList<>();
         
-        try {
-            // Read image in BGR mode
-            Mat image = Imgcodecs.imread(imagePath, Imgcodecs.IMREAD_COLOR);
-            if (image.empty()) {
-                throw new RuntimeException("Could not load image: " + imagePath);
-            }
+        try (NativeScope scope = new NativeScope()) {
+            // Decoded BGR image shared with the other stages
+            Mat image = context.getBgr();
             
             // Convert to RGB with consistent parameters
-            Mat rgbImage = new Mat();
+            Mat rgbImage = scope.newMat();
             Imgproc.cvtColor(image, rgbImage, COLOR_CONVERT_CODE);
             
             // Split channels
             List<Mat> channels = new ArrayList<>();
             Core.split(rgbImage, channels);
+            scope.trackAll(channels);
             
             // Calculate histogram for each channel
-            MatOfInt histSize = new MatOfInt(bins);
-            MatOfFloat ranges = new MatOfFloat(0f, 256f);
-            MatOfInt channels_arr = new MatOfInt(0);
-            Mat mask = new Mat();
+            MatOfInt histSize = scope.track(new MatOfInt(bins));
+            MatOfFloat ranges = scope.track(new MatOfFloat(0f, 256f));
+            MatOfInt channels_arr = scope.track(new MatOfInt(0));
+            Mat mask = scope.newMat();
             
             for (Mat channel : channels) {
-                Mat hist = new Mat();
+                Mat hist = scope.newMat();
                 Imgproc.calcHist(
                     Arrays.asList(channel),
                     channels_arr,
@@ -104,7 +116,7 @@ public class ImageProcessor {
                 );
                 
                 // Normalize with consistent parameters
-                Core.normalize(hist, hist, 0, 1, Core.NORM_MINMAX, -1, new Mat());
+                Core.normalize(hist, hist, 0, 1, Core.NORM_MINMAX, -1, scope.newMat());
                 
                 // Round values for consistency
                 for (int i = 0; i < hist.rows(); i++) {
@@ -112,7 +124,7 @@ public class ImageProcessor {
                 }
             }
             
-            logger.info("Extracted color histogram for image: {}", imagePath);
+            logger.info("Extracted color histogram for image: {}", context.getImagePath());
             
         } catch (Exception e) {
             logger.error("Error extracting color histogram: {}", e.getMessage());
@@ -120,9 +132,6 @@ public class ImageProcessor {
             for (int i = 0; i < bins * 3; i++) {
                 histogram.add(0.0);
             }
-        } finally {
-            // Release OpenCV resources
-            System.gc();
         }
         
         return histogram;
@@ -132,22 +141,25 @@ public class ImageProcessor {
         String imagePath,
         int cannyLowThreshold,
         int cannyHighThreshold
+    ) {
+        try (ImageContext context = ImageContext.load(imagePath)) {
+            return extractEdgeFeatures(context, cannyLowThreshold, cannyHighThreshold);
+        }
+    }
+    
+    public static List<Double> extractEdgeFeatures(
+        ImageContext context,
+        int cannyLowThreshold,
+        int cannyHighThreshold
     ) {
         List<Double> edgeFeatures = new ArrayList<>();
         
-        try {
-            // Read image in grayscale mode
-            Mat image = Imgcodecs.imread(imagePath, Imgcodecs.IMREAD_GRAYSCALE);
-            if (image.empty()) {
-                throw new RuntimeException("Could not load image: " + imagePath);
-            }
-            
-            // Apply Gaussian blur with consistent parameters
-            Mat blurredImage = new Mat();
-            Imgproc.GaussianBlur(image, blurredImage, GAUSSIAN_BLUR_SIZE, GAUSSIAN_BLUR_SIGMA);
+        try (NativeScope scope = new NativeScope()) {
+            // Blurred grayscale image shared with the other stages
+            Mat blurredImage = context.getBlurred();
             
             // Apply Canny edge detection with consistent thresholds
-            Mat edges = new Mat();
+            Mat edges = scope.newMat();
             Imgproc.Canny(blurredImage, edges, cannyLowThreshold, cannyHighThreshold);
             
             // Calculate edge statistics
@@ -155,7 +167,7 @@ public class ImageProcessor {
             double edgeDensity = roundToDecimal(edgeSum.val[0] / (edges.rows() * edges.cols()));
             
             // Calculate edge orientation
-            Mat sobelX = new Mat(), sobelY = new Mat();
+            Mat sobelX = scope.newMat(), sobelY = scope.newMat();
             Imgproc.Sobel(blurredImage, sobelX, CvType.CV_64F, 1, 0, 3);
             Imgproc.Sobel(blurredImage, sobelY, CvType.CV_64F, 0, 1, 3);
             
@@ -164,7 +176,7 @@ public class ImageProcessor {
             edgeFeatures.add(edgeDensity);
             edgeFeatures.add(roundToDecimal(orientation));
             
-            logger.info("Extracted edge features for image: {}", imagePath);
+            logger.info("Extracted edge features for image: {}", context.getImagePath());
             
         } catch (Exception e) {
             logger.error("Error extracting edge features: {}", e.getMessage());
@@ -176,13 +188,16 @@ public class ImageProcessor {
     }
     
     public static Map<String, Double> extractDimensions(String imagePath) {
+        try (ImageContext context = ImageContext.load(imagePath)) {
+            return extractDimensions(context);
+        }
+    }
+    
+    public static Map<String, Double> extractDimensions(ImageContext context) {
         TreeMap<String, Double> dimensions = new TreeMap<>();
         
         try {
-            Mat image = Imgcodecs.imread(imagePath);
-            if (image.empty()) {
-                throw new RuntimeException("Could not load image: " + imagePath);
-            }
+            Mat image = context.getBgr();
             
             // Store dimensions in sorted order
             dimensions.put("area", roundToDecimal((double) (image.cols() * image.rows())));
@@ -190,7 +205,7 @@ public class ImageProcessor {
             dimensions.put("height", roundToDecimal((double) image.rows()));
             dimensions.put("width", roundToDecimal((double) image.cols()));
             
-            logger.info("Extracted dimensions for image: {}", imagePath);
+            logger.info("Extracted dimensions for image: {}", context.getImagePath());
             
         } catch (Exception e) {
             logger.error("Error extracting dimensions: {}", e.getMessage());
@@ -204,96 +219,10 @@ public class ImageProcessor {
     }
     
     private static void calculateLBP(Mat src, Mat dst, int radius, int neighbors) {
-        dst.create(src.size(), src.type());
-        
-        for (int i = radius; i < src.rows() - radius; i++) {
-            for (int j = radius; j < src.cols() - radius; j++) {
-                double center = src.get(i, j)[0];
-                int lbpValue = 0;
-                
-                for (int n = 0; n < neighbors; n++) {
-                    double x = j + radius * Math.cos(2 * Math.PI * n / neighbors);
-                    double y = i - radius * Math.sin(2 * Math.PI * n / neighbors);
-                    
-                    int x1 = (int) Math.floor(x);
-                    int y1 = (int) Math.floor(y);
-                    
-                    // Use bilinear interpolation for consistent sampling
-                    double tx = x - x1;
-                    double ty = y - y1;
-                    
-                    double value = (1 - tx) * (1 - ty) * src.get(y1, x1)[0] +
-                                 tx * (1 - ty) * src.get(y1, x1 + 1)[0] +
-                                 (1 - tx) * ty * src.get(y1 + 1, x1)[0] +
-                                 tx * ty * src.get(y1 + 1, x1 + 1)[0];
-                    
-                    if (value >= center) {
-                        lbpValue |= (1 << n);
-                    }
-                }
-                
-                dst.put(i, j, lbpValue);
-            }
-        }
+        // Bulk-array implementation; see LbpOperator
+        new LbpOperator(radius, neighbors).apply(src, dst);
     }
 
-    private static double calculateContrast(Mat image) {
-        double contrast = 0;
-        Mat glcm = calculateGLCM(image);
-        
-        int size = (int) glcm.total();
-        int dim = (int) Math.sqrt(size);
-        
-        for (int i = 0; i < dim; i++) {
-            for (int j = 0; j < dim; j++) {
-                contrast += glcm.get(i, j)[0] * Math.pow(i - j, 2);
-            }
-        }
-        
-        return contrast;
-    }
-    
-    private static double calculateHomogeneity(Mat image) {
-        double homogeneity = 0;
-        Mat glcm = calculateGLCM(image);
-        
-        int size = (int) glcm.total();
-        int dim = (int) Math.sqrt(size);
-        
-        for (int i = 0; i < dim; i++) {
-            for (int j = 0; j < dim; j++) {
-                homogeneity += glcm.get(i, j)[0] / (1 + Math.pow(i - j, 2));
-            }
-        }
-        
-        return homogeneity;
-    }
-    
-    private static Mat calculateGLCM(Mat image) {
-        // Calculate GLCM with fixed parameters for consistency
-        int levels = 8;
-        Mat scaled = new Mat();
-        image.convertTo(scaled, CvType.CV_32F);
-        Core.normalize(scaled, scaled, 0, levels - 1, Core.NORM_MINMAX);
-        scaled.convertTo(scaled, CvType.CV_8U);
-        
-        Mat glcm = Mat.zeros(levels, levels, CvType.CV_64F);
-        
-        // Calculate horizontal GLCM with distance 1
-        for (int i = 0; i < image.rows(); i++) {
-            for (int j = 0; j < image.cols() - 1; j++) {
-                int val1 = (int) scaled.get(i, j)[0];
-                int val2 = (int) scaled.get(i, j + 1)[0];
-                glcm.put(val1, val2, glcm.get(val1, val2)[0] + 1);
-            }
-        }
-        
-        // Normalize GLCM
-        Core.normalize(glcm, glcm, 0, 1, Core.NORM_MINMAX);
-        
-        return glcm;
-    }
-    
     private static double calculateEdgeOrientation(Mat sobelX, Mat sobelY) {
         Scalar meanX = Core.mean(sobelX);
         Scalar meanY = Core.mean(sobelY);
@@ -0,0 +1,125 @@
+package com.clothauth.utils;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Times {@link LbpOperator} against the per-pixel loop it replaced, on the
+ * blurred grayscale image the texture stage reads, and counts the pixels
+ * where their codes differ.
+ *
+ * The legacy loop is kept here as it was, except that a read outside the
+ * image returns 0 instead of failing: the old loop only read there with a
+ * bilinear weight of zero, and the resulting exception sent every texture
+ * extraction to its all-zero fallback.
+ */
+public final class LbpBenchmark {
+    public static final class Result {
+        private final String imagePath;
+        private final int width;
+        private final int height;
+        private final double legacyMillis;
+        private final double operatorMillis;
+        private final long differingPixels;
+
+        Result(String imagePath, int width, int height, double legacyMillis, double operatorMillis, long differingPixels) {
+            this.imagePath = imagePath;
+            this.width = width;
+            this.height = height;
+            this.legacyMillis = legacyMillis;
+            this.operatorMillis = operatorMillis;
+            this.differingPixels = differingPixels;
+        }
+
+        public String getImagePath() { return imagePath; }
+        public int getWidth() { return width; }
+        public int getHeight() { return height; }
+        public double getLegacyMillis() { return legacyMillis; }
+        public double getOperatorMillis() { return operatorMillis; }
+        public long getDifferingPixels() { return differingPixels; }
+    }
+
+    private LbpBenchmark() {
+    }
+
+    /**
+     * Runs both implementations {@code rounds} times after one warm-up
+     * round on the image, enlarged by {@code scale}, and compares the codes
+     * of the last round.
+     */
+    public static Result run(String imagePath, int scale, int radius, int neighbors, int rounds) {
+        LbpOperator operator = new LbpOperator(radius, neighbors);
+        try (ImageContext context = ImageContext.load(imagePath);
+             NativeScope scope = new NativeScope()) {
+            Mat src = context.getBlurred();
+            if (scale > 1) {
+                Mat scaled = scope.newMat();
+                Imgproc.resize(src, scaled, new Size(src.cols() * scale, src.rows() * scale), 0, 0, Imgproc.INTER_LINEAR);
+                src = scaled;
+            }
+            Mat legacy = scope.newMat();
+            Mat bulk = scope.newMat();
+            long legacyNanos = 0;
+            long operatorNanos = 0;
+            for (int round = 0; round <= rounds; round++) {
+                long start = System.nanoTime();
+                legacyLbp(src, legacy, radius, neighbors);
+                long legacyDone = System.nanoTime();
+                operator.apply(src, bulk);
+                long operatorDone = System.nanoTime();
+                if (round > 0) {
+                    legacyNanos += legacyDone - start;
+                    operatorNanos += operatorDone - legacyDone;
+                }
+            }
+            Mat difference = scope.newMat();
+            Core.absdiff(legacy, bulk, difference);
+            return new Result(imagePath, src.cols(), src.rows(), legacyNanos / (rounds * 1e6),
+                operatorNanos / (rounds * 1e6), Core.countNonZero(difference));
+        }
+    }
+
+    private static void legacyLbp(Mat src, Mat dst, int radius, int neighbors) {
+        dst.create(src.size(), src.type());
+        // The operator zeroes the border the loop does not cover
+        dst.setTo(Scalar.all(0));
+
+        for (int i = radius; i < src.rows() - radius; i++) {
+            for (int j = radius; j < src.cols() - radius; j++) {
+                double center = src.get(i, j)[0];
+                int lbpValue = 0;
+
+                for (int n = 0; n < neighbors; n++) {
+                    double x = j + radius * Math.cos(2 * Math.PI * n / neighbors);
+                    double y = i - radius * Math.sin(2 * Math.PI * n / neighbors);
+
+                    int x1 = (int) Math.floor(x);
+                    int y1 = (int) Math.floor(y);
+
+                    // Use bilinear interpolation for consistent sampling
+                    double tx = x - x1;
+                    double ty = y - y1;
+
+                    double value = (1 - tx) * (1 - ty) * pixel(src, y1, x1) +
+                                 tx * (1 - ty) * pixel(src, y1, x1 + 1) +
+                                 (1 - tx) * ty * pixel(src, y1 + 1, x1) +
+                                 tx * ty * pixel(src, y1 + 1, x1 + 1);
+
+                    if (value >= center) {
+                        lbpValue |= (1 << n);
+                    }
+                }
+
+                dst.put(i, j, lbpValue);
+            }
+        }
+    }
+
+    private static double pixel(Mat src, int row, int col) {
+        double[] value = src.get(row, col);
+        return value != null ? value[0] : 0;
+    }
+}
@@ -0,0 +1,121 @@
+package com.clothauth.utils;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Local binary pattern operator working on a primitive copy of the image.
+ * The pixels are copied out of the Mat once and the result is written back
+ * once; sampling offsets and bilinear weights are precomputed per row and
+ * column so the per-pixel loop does no trigonometry and no JNI calls.
+ *
+ * The sampling arithmetic is kept identical to the original per-pixel
+ * implementation so the produced codes are bit-identical. Border pixels
+ * that the operator does not cover are set to zero.
+ */
+public final class LbpOperator {
+    private final int radius;
+    private final int neighbors;
+    private final double[] offsetX;
+    private final double[] offsetY;
+
+    public LbpOperator(int radius, int neighbors) {
+        if (radius < 1 || neighbors < 1 || neighbors > 31) {
+            throw new IllegalArgumentException("Unsupported LBP parameters: radius=" + radius + ", neighbors=" + neighbors);
+        }
+        this.radius = radius;
+        this.neighbors = neighbors;
+        this.offsetX = new double[neighbors];
+        this.offsetY = new double[neighbors];
+        for (int n = 0; n < neighbors; n++) {
+            offsetX[n] = radius * Math.cos(2 * Math.PI * n / neighbors);
+            offsetY[n] = radius * Math.sin(2 * Math.PI * n / neighbors);
+        }
+    }
+
+    public void apply(Mat src, Mat dst) {
+        if (src.type() != CvType.CV_8UC1) {
+            throw new IllegalArgumentException("LBP requires a single channel 8-bit image, got type " + src.type());
+        }
+        int rows = src.rows();
+        int cols = src.cols();
+        byte[] pixels = new byte[rows * cols];
+        byte[] codes = new byte[rows * cols];
+        src.get(0, 0, pixels);
+
+        if (rows > 2 * radius && cols > 2 * radius) {
+            compute(pixels, codes, rows, cols);
+        }
+
+        dst.create(rows, cols, CvType.CV_8UC1);
+        dst.put(0, 0, codes);
+    }
+
+    private void compute(byte[] pixels, byte[] codes, int rows, int cols) {
+        // Column tables: x = j + dx, split into integer sample column and weight
+        int[] colLeft = new int[neighbors * cols];
+        int[] colRight = new int[neighbors * cols];
+        double[] colWeight = new double[neighbors * cols];
+        double[] colWeightInv = new double[neighbors * cols];
+        for (int n = 0; n < neighbors; n++) {
+            for (int j = radius; j < cols - radius; j++) {
+                double x = j + offsetX[n];
+                int x1 = (int) Math.floor(x);
+                double tx = x - x1;
+                int k = n * cols + j;
+                colLeft[k] = x1;
+                // The right sample only falls outside the image when its weight is zero
+                colRight[k] = Math.min(x1 + 1, cols - 1);
+                colWeight[k] = tx;
+                colWeightInv[k] = 1 - tx;
+            }
+        }
+
+        int[] rowTop = new int[neighbors];
+        int[] rowBottom = new int[neighbors];
+        double[] rowWeight = new double[neighbors];
+        double[] rowWeightInv = new double[neighbors];
+
+        for (int i = radius; i < rows - radius; i++) {
+            for (int n = 0; n < neighbors; n++) {
+                double y = i - offsetY[n];
+                int y1 = (int) Math.floor(y);
+                double ty = y - y1;
+                rowTop[n] = y1 * cols;
+                rowBottom[n] = Math.min(y1 + 1, rows - 1) * cols;
+                rowWeight[n] = ty;
+                rowWeightInv[n] = 1 - ty;
+            }
+
+            int rowOffset = i * cols;
+            for (int j = radius; j < cols - radius; j++) {
+                double center = pixels[rowOffset + j] & 0xFF;
+                int lbpValue = 0;
+
+                for (int n = 0; n < neighbors; n++) {
+                    int k = n * cols + j;
+                    int x1 = colLeft[k];
+                    int x2 = colRight[k];
+                    double tx = colWeight[k];
+                    double itx = colWeightInv[k];
+                    double ty = rowWeight[n];
+                    double ity = rowWeightInv[n];
+                    int top = rowTop[n];
+                    int bottom = rowBottom[n];
+
+                    double value = itx * ity * (pixels[top + x1] & 0xFF) +
+                                 tx * ity * (pixels[top + x2] & 0xFF) +
+                                 itx * ty * (pixels[bottom + x1] & 0xFF) +
+                                 tx * ty * (pixels[bottom + x2] & 0xFF);
+
+                    if (value >= center) {
+                        lbpValue |= (1 << n);
+                    }
+                }
+
+                // Saturate like Mat.put on an 8-bit Mat
+                codes[rowOffset + j] = (byte) Math.min(lbpValue, 255);
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.clothauth.utils;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Owns the native OpenCV Mats created during one extraction step and
+ * releases all of them when closed, instead of leaving them to finalisation.
+ *
+ * Every scope also reports the native bytes held by its Mats to a process
+ * wide counter. Sizes are sampled whenever a Mat is tracked or the scope is
+ * refreshed, so Mats filled in by OpenCV after tracking are accounted for at
+ * the next checkpoint.
+ */
+public final class NativeScope implements AutoCloseable {
+    private static final AtomicLong liveBytes = new AtomicLong();
+    private static final AtomicLong peakBytes = new AtomicLong();
+    private static final AtomicLong releasedMats = new AtomicLong();
+    private static final AtomicInteger openScopes = new AtomicInteger();
+
+    private final List<Mat> mats = new ArrayList<>();
+    private long[] accountedBytes = new long[8];
+    private boolean closed;
+
+    public NativeScope() {
+        openScopes.incrementAndGet();
+    }
+
+    public synchronized <T extends Mat> T track(T mat) {
+        if (closed) {
+            throw new IllegalStateException("Native scope already closed");
+        }
+        if (mats.size() == accountedBytes.length) {
+            long[] grown = new long[accountedBytes.length * 2];
+            System.arraycopy(accountedBytes, 0, grown, 0, accountedBytes.length);
+            accountedBytes = grown;
+        }
+        mats.add(mat);
+        refresh();
+        return mat;
+    }
+
+    public <T extends Mat> List<T> trackAll(List<T> list) {
+        for (T mat : list) {
+            track(mat);
+        }
+        return list;
+    }
+
+    public Mat newMat() {
+        return track(new Mat());
+    }
+
+    /**
+     * Re-samples the size of every tracked Mat and updates the live byte counter.
+     */
+    public synchronized void refresh() {
+        if (closed) {
+            return;
+        }
+        long delta = 0;
+        for (int i = 0; i < mats.size(); i++) {
+            Mat mat = mats.get(i);
+            long bytes = mat.total() * mat.elemSize();
+            delta += bytes - accountedBytes[i];
+            accountedBytes[i] = bytes;
+        }
+        if (delta != 0) {
+            long live = liveBytes.addAndGet(delta);
+            peakBytes.accumulateAndGet(live, Math::max);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        refresh();
+        closed = true;
+
+        long accounted = 0;
+        for (int i = mats.size() - 1; i >= 0; i--) {
+            mats.get(i).release();
+            accounted += accountedBytes[i];
+        }
+        liveBytes.addAndGet(-accounted);
+        releasedMats.addAndGet(mats.size());
+        openScopes.decrementAndGet();
+        mats.clear();
+    }
+
+    public static long getLiveNativeBytes() {
+        return liveBytes.get();
+    }
+
+    public static long getPeakNativeBytes() {
+        return peakBytes.get();
+    }
+
+    public static long getReleasedMatCount() {
+        return releasedMats.get();
+    }
+
+    public static int getOpenScopeCount() {
+        return openScopes.get();
+    }
+}